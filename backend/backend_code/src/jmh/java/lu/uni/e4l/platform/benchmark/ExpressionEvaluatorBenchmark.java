@@ -0,0 +1,99 @@
+package lu.uni.e4l.platform.benchmark;
+
+import lu.uni.e4l.platform.model.Answer;
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.service.CompiledExpression;
+import lu.uni.e4l.platform.service.ExpressionEvaluator;
+import lu.uni.e4l.platform.service.FormulaRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Cost of each formula stage over all formulas of the questionnaire, and of evaluating the answers of
+ * one realistic session.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExpressionEvaluatorBenchmark {
+
+    private List<String> formulas;
+    private List<List<String>> tokens;
+    private Map<String, String> allVariables;
+    private List<Answer> answers;
+    private List<Map<String, String>> answerVariables;
+    private List<CompiledExpression> compiledExpressions;
+    private List<double[]> boundValues;
+
+    @Setup
+    public void setUp() {
+        SessionFixtures fixtures = new SessionFixtures(42);
+        Session session = fixtures.session();
+
+        formulas = fixtures.formulas();
+        tokens = formulas.stream()
+                .map(ExpressionEvaluator::tokenize)
+                .collect(Collectors.toList());
+
+        // any value will do to turn the formulas into reverse polish notation
+        allVariables = new HashMap<>();
+        FormulaRegistry.DEFAULT_VARIABLE_VALUES.keySet().forEach(name -> allVariables.put(name, "1.0"));
+        fixtures.getQuestions().stream()
+                .flatMap(q -> q.getPossibleAnswers().stream())
+                .filter(a -> a.getVariables() != null)
+                .flatMap(a -> a.getVariables().stream())
+                .forEach(v -> allVariables.put(v.getName(), "1.0"));
+
+        answers = session.getAnswers();
+        answerVariables = new ArrayList<>();
+        compiledExpressions = new ArrayList<>();
+        boundValues = new ArrayList<>();
+
+        for (Answer answer : answers) {
+            Map<String, String> variables = new HashMap<>();
+            FormulaRegistry.DEFAULT_VARIABLE_VALUES.forEach((name, value) -> variables.put(name, String.valueOf(value)));
+            answer.getVariableValues().forEach(v -> variables.put(v.getVariable().getName(), String.valueOf(v.getValue())));
+            answerVariables.add(variables);
+
+            CompiledExpression expression = FormulaRegistry.get(answer.getPossibleAnswer());
+            compiledExpressions.add(expression);
+            boundValues.add(expression.bind(answer.getVariableValues(), FormulaRegistry.DEFAULT_VARIABLE_VALUES));
+        }
+    }
+
+    @Benchmark
+    public void tokenize(Blackhole blackhole) {
+        for (String formula : formulas)
+            blackhole.consume(ExpressionEvaluator.tokenize(formula));
+    }
+
+    @Benchmark
+    public void reversePolishNotation(Blackhole blackhole) {
+        for (List<String> formulaTokens : tokens)
+            blackhole.consume(ExpressionEvaluator.toReverePolishNotation(
+                    ExpressionEvaluator.replaceVariablesWithValues(formulaTokens, allVariables)));
+    }
+
+    @Benchmark
+    public void compile(Blackhole blackhole) {
+        for (String formula : formulas)
+            blackhole.consume(ExpressionEvaluator.compile(formula));
+    }
+
+    @Benchmark
+    public void evaluateSessionAnswers(Blackhole blackhole) {
+        for (int i = 0; i < answers.size(); i++)
+            blackhole.consume(ExpressionEvaluator.evaluate(answers.get(i).getPossibleAnswer().getFormula(),
+                    answerVariables.get(i)));
+    }
+
+    @Benchmark
+    public void evaluateCompiledSessionAnswers(Blackhole blackhole) {
+        for (int i = 0; i < compiledExpressions.size(); i++)
+            blackhole.consume(compiledExpressions.get(i).evaluate(boundValues.get(i)));
+    }
+}
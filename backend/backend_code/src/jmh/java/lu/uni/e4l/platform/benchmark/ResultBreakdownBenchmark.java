@@ -0,0 +1,68 @@
+package lu.uni.e4l.platform.benchmark;
+
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.model.dto.ResultBreakdown;
+import lu.uni.e4l.platform.model.dto.ResultBreakdownSeminar;
+import lu.uni.e4l.platform.service.ScoreCache;
+import lu.uni.e4l.platform.service.SessionScorer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Breakdown of a single session and the population statistics computed for every result page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResultBreakdownBenchmark {
+
+    @Param({"1000", "10000"})
+    private int population;
+
+    private Session session;
+    private List<Session> sessions;
+    private List<Double> results;
+
+    @Setup
+    public void setUp() {
+        SessionFixtures fixtures = new SessionFixtures(42);
+        session = fixtures.session();
+        sessions = fixtures.sessions(population);
+        results = Arrays.stream(SessionScorer.totalScores(sessions))
+                .boxed()
+                .collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public ResultBreakdown fromSession() {
+        return ResultBreakdown.fromSession(session);
+    }
+
+    @Benchmark
+    public ResultBreakdown fromSessionWithoutScoreCache() {
+        ScoreCache.invalidateAll();
+        return ResultBreakdown.fromSession(session);
+    }
+
+    @Benchmark
+    public double[] totalScores() {
+        return SessionScorer.totalScores(sessions);
+    }
+
+    @Benchmark
+    public ResultBreakdown populationStatistics() {
+        ResultBreakdown resultBreakdown = new ResultBreakdown();
+        resultBreakdown.averageCalculation(sessions);
+        resultBreakdown.listOfScores(sessions);
+        return resultBreakdown;
+    }
+
+    @Benchmark
+    public List<Integer> seminarListOfScores() {
+        return ResultBreakdownSeminar.listOfScores(results);
+    }
+}
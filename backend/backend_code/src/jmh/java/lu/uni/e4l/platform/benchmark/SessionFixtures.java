@@ -0,0 +1,145 @@
+package lu.uni.e4l.platform.benchmark;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import lu.uni.e4l.platform.model.*;
+import lu.uni.e4l.platform.model.scale.DiscreteScale;
+import lu.uni.e4l.platform.model.scale.IntervalScale;
+import lu.uni.e4l.platform.service.FormulaRegistry;
+import lu.uni.e4l.platform.service.crypto.SignedObjectSerializer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+/**
+ * Sessions answering the real questionnaire ({@code poll.yml}) with random but valid answers.
+ * Every fixture is built from a fixed seed, so two builds benchmark exactly the same data.
+ */
+public class SessionFixtures {
+
+    public static final String SIGNATURE_KEY = "benchmark";
+
+    private final List<Question> questions;
+    private final Random random;
+    private long nextId = 1;
+
+    public SessionFixtures(long seed) {
+        this.questions = readPoll();
+        this.random = new Random(seed);
+
+        for (Question question : questions) {
+            question.setId(nextId++);
+            for (PossibleAnswer possibleAnswer : question.getPossibleAnswers()) {
+                possibleAnswer.setId(nextId++);
+                possibleAnswer.setQuestion(question);
+            }
+        }
+
+        new SignedObjectSerializer().setNameStatic(SIGNATURE_KEY);
+        FormulaRegistry.register(new Questionnaire("energy4life", questions));
+    }
+
+    public List<Question> getQuestions() {
+        return questions;
+    }
+
+    /**
+     * All formulas of the questionnaire, in questionnaire order.
+     */
+    public List<String> formulas() {
+        List<String> formulas = new ArrayList<>();
+
+        for (Question question : questions) {
+            for (PossibleAnswer possibleAnswer : question.getPossibleAnswers()) {
+                formulas.add(possibleAnswer.getFormula());
+            }
+        }
+
+        return formulas;
+    }
+
+    public List<Session> sessions(int count) {
+        List<Session> sessions = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            sessions.add(session());
+        }
+
+        return sessions;
+    }
+
+    public Session session() {
+        Session session = new Session();
+        session.setId(nextId++);
+        session.setDateTime(ZonedDateTime.now());
+        session.setIskid(random.nextBoolean());
+
+        List<Answer> answers = new ArrayList<>();
+
+        for (Question question : questions) {
+            List<PossibleAnswer> possibleAnswers = new ArrayList<>(question.getPossibleAnswers());
+            Collections.shuffle(possibleAnswers, random);
+
+            int min = question.getMinAnswersNumber() == null ? 1 : Math.max(1, question.getMinAnswersNumber());
+            int max = question.getMaxAnswersNumber() == null ? possibleAnswers.size() :
+                    Math.min(question.getMaxAnswersNumber(), possibleAnswers.size());
+            int answersNumber = min + random.nextInt(Math.max(1, max - min + 1));
+
+            for (PossibleAnswer possibleAnswer : possibleAnswers.subList(0, Math.min(answersNumber, possibleAnswers.size()))) {
+                answers.add(answer(session, possibleAnswer));
+            }
+        }
+
+        session.setAnswers(answers);
+        return session;
+    }
+
+    private Answer answer(Session session, PossibleAnswer possibleAnswer) {
+        Answer answer = new Answer();
+        answer.setId(nextId++);
+        answer.setSession(session);
+        answer.setPossibleAnswer(possibleAnswer);
+
+        if (possibleAnswer.getVariables() != null) {
+            for (Variable variable : possibleAnswer.getVariables()) {
+                VariableValue variableValue = new VariableValue();
+                variableValue.setId(nextId++);
+                variableValue.setVariable(variable);
+                variableValue.setValue(value(variable));
+                answer.getVariableValues().add(variableValue);
+            }
+        }
+
+        return answer;
+    }
+
+    private Double value(Variable variable) {
+        if (variable.getScale() instanceof DiscreteScale) {
+            DiscreteScale scale = (DiscreteScale) variable.getScale();
+            return scale.getAllowedOptions().get(random.nextInt(scale.getAllowedOptions().size())).getValue();
+        }
+
+        if (variable.getScale() instanceof IntervalScale) {
+            IntervalScale scale = (IntervalScale) variable.getScale();
+            double precision = scale.getPrecision() == null ? 1 : scale.getPrecision();
+            double steps = Math.floor((scale.getMaxValue() - scale.getMinValue()) / precision);
+            return scale.getMinValue() + Math.floor(random.nextDouble() * steps) * precision;
+        }
+
+        return 1.0;
+    }
+
+    private static List<Question> readPoll() {
+        try {
+            return new ObjectMapper(new YAMLFactory()).readValue(
+                    SessionFixtures.class.getResourceAsStream("/poll.yml"),
+                    new TypeReference<List<Question>>() {
+                    });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package lu.uni.e4l.platform.benchmark;
+
+import lu.uni.e4l.platform.model.Answer;
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.model.VariableValue;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inserts of submitted sessions (with their answers and variable values) per second, with the statements Hibernate
+ * sends for each id scheme, on an in-memory H2 database:
+ * <ul>
+ *     <li>{@code allocationSize=1}: one id per round trip to the shared {@code hibernate_sequence} table, in its own
+ *     transaction, and one insert statement per row (the former {@code GenerationType.AUTO} mapping);</li>
+ *     <li>{@code allocationSize=50}: one round trip per block of ids to the sequence table of the entity, and the
+ *     inserts sent as JDBC batches ({@link lu.uni.e4l.platform.model.PooledIdGenerator}).</li>
+ * </ul>
+ * H2 runs in the same process, so the difference only grows with the network latency of a database server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SessionInsertBenchmark {
+
+    @Param({"1", "50"})
+    private int allocationSize;
+
+    private Session session;
+    private Connection connection;
+    private Connection sequenceConnection;
+    private long[] nextIds;
+    private long[] lastIds;
+
+    @Setup
+    public void setUp() throws SQLException {
+        session = new SessionFixtures(42).session();
+
+        connection = DriverManager.getConnection("jdbc:h2:mem:insert-" + allocationSize + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        sequenceConnection = DriverManager.getConnection("jdbc:h2:mem:insert-" + allocationSize + ";MODE=MySQL");
+        connection.setAutoCommit(false);
+        sequenceConnection.setAutoCommit(false);
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("create table session (id bigint primary key, date_time timestamp, total_score double)");
+            statement.execute("create table answer (id bigint primary key, fk_session bigint, score double)");
+            statement.execute("create table variable_value (id bigint primary key, value double)");
+            statement.execute("create table answer_variable_values (answer_id bigint, variable_values_id bigint)");
+            for (String sequence : new String[]{"hibernate_sequence", "session_seq", "answer_seq", "variable_value_seq"}) {
+                statement.execute("create table " + sequence + " (next_val bigint)");
+                statement.execute("insert into " + sequence + " values (1)");
+            }
+        }
+        connection.commit();
+
+        nextIds = new long[3];
+        lastIds = new long[]{-1, -1, -1};
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        sequenceConnection.close();
+        connection.close();
+    }
+
+    @Benchmark
+    public void insertSession() throws SQLException {
+        boolean batched = allocationSize > 1;
+
+        try (PreparedStatement insertSession = connection.prepareStatement(
+                "insert into session (id, date_time, total_score) values (?, ?, ?)");
+             PreparedStatement insertAnswer = connection.prepareStatement(
+                     "insert into answer (id, fk_session, score) values (?, ?, ?)");
+             PreparedStatement insertVariableValue = connection.prepareStatement(
+                     "insert into variable_value (id, value) values (?, ?)");
+             PreparedStatement insertAnswerVariableValue = connection.prepareStatement(
+                     "insert into answer_variable_values (answer_id, variable_values_id) values (?, ?)")) {
+
+            long sessionId = nextId(0, "session_seq");
+            insertSession.setLong(1, sessionId);
+            insertSession.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+            insertSession.setDouble(3, 1.0);
+            insertSession.executeUpdate();
+
+            for (Answer answer : session.getAnswers()) {
+                long answerId = nextId(1, "answer_seq");
+                insertAnswer.setLong(1, answerId);
+                insertAnswer.setLong(2, sessionId);
+                insertAnswer.setDouble(3, 1.0);
+                execute(insertAnswer, batched);
+
+                for (VariableValue variableValue : answer.getVariableValues()) {
+                    long variableValueId = nextId(2, "variable_value_seq");
+                    insertVariableValue.setLong(1, variableValueId);
+                    insertVariableValue.setDouble(2, variableValue.getValue() == null ? 0 : variableValue.getValue());
+                    execute(insertVariableValue, batched);
+
+                    insertAnswerVariableValue.setLong(1, answerId);
+                    insertAnswerVariableValue.setLong(2, variableValueId);
+                    execute(insertAnswerVariableValue, batched);
+                }
+            }
+
+            if (batched) {
+                insertAnswer.executeBatch();
+                insertVariableValue.executeBatch();
+                insertAnswerVariableValue.executeBatch();
+            }
+        }
+
+        connection.commit();
+    }
+
+    private static void execute(PreparedStatement statement, boolean batched) throws SQLException {
+        if (batched)
+            statement.addBatch();
+        else
+            statement.executeUpdate();
+    }
+
+    /**
+     * Next id of the entity, reserving a block of ids in a separate transaction when the current one is used up, as
+     * the table generators of Hibernate do.
+     */
+    private long nextId(int entity, String sequence) throws SQLException {
+        if (nextIds[entity] <= lastIds[entity])
+            return nextIds[entity]++;
+
+        String table = allocationSize == 1 ? "hibernate_sequence" : sequence;
+        long value;
+        try (Statement statement = sequenceConnection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select next_val from " + table + " for update")) {
+            resultSet.next();
+            value = resultSet.getLong(1);
+            statement.executeUpdate("update " + table + " set next_val = " + (value + allocationSize));
+        }
+        sequenceConnection.commit();
+
+        nextIds[entity] = value + 1;
+        lastIds[entity] = value + allocationSize - 1;
+        return value;
+    }
+}
@@ -0,0 +1,35 @@
+package lu.uni.e4l.platform.benchmark;
+
+import lu.uni.e4l.platform.service.crypto.SignedObjectSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of the signed session ids handed out to clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SignedObjectSerializerBenchmark {
+
+    private long sessionId;
+    private String signedSessionId;
+
+    @Setup
+    public void setUp() {
+        new SignedObjectSerializer().setNameStatic(SessionFixtures.SIGNATURE_KEY);
+        sessionId = 123456789L;
+        signedSessionId = SignedObjectSerializer.serializeWithSignature(sessionId);
+    }
+
+    @Benchmark
+    public String encode() {
+        return SignedObjectSerializer.serializeWithSignature(sessionId);
+    }
+
+    @Benchmark
+    public Long decode() {
+        return SignedObjectSerializer.deserialize(signedSessionId, Long.class);
+    }
+}
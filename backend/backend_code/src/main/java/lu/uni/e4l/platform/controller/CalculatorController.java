@@ -2,13 +2,32 @@ package lu.uni.e4l.platform.controller;
 
 import lu.uni.e4l.platform.model.*;
 import lu.uni.e4l.platform.exception.BadRequestException;
+import lu.uni.e4l.platform.exception.NotFoundException;
+import lu.uni.e4l.platform.exception.ServiceUnavailableException;
+import lu.uni.e4l.platform.model.dto.QuestionComparison;
 import lu.uni.e4l.platform.model.dto.ResultBreakdown;
 import lu.uni.e4l.platform.model.dto.ResultBreakdownSeminar;
 import lu.uni.e4l.platform.service.CalculatorService;
+import lu.uni.e4l.platform.service.FormulaBackend;
+import lu.uni.e4l.platform.service.FormulaRegistry;
+import lu.uni.e4l.platform.service.PopulationAggregateService;
+import lu.uni.e4l.platform.service.QuestionScoreService;
 import lu.uni.e4l.platform.service.QuestionnaireService;
+import lu.uni.e4l.platform.service.ResultBreakdownCache;
+import lu.uni.e4l.platform.service.ScoreCache;
+import lu.uni.e4l.platform.service.SessionScoreMigrationService;
 import lu.uni.e4l.platform.service.SessionService;
 import lu.uni.e4l.platform.service.SeminarService;
+import lu.uni.e4l.platform.service.crypto.SignedObjectSerializer;
+import org.springframework.context.i18n.LocaleContextHolder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+
+import javax.servlet.http.HttpServletResponse;
 import java.util.*;
 
 @RestController
@@ -17,33 +36,84 @@ public class CalculatorController {
     private final CalculatorService calculatorService;
     private final SessionService sessionService;
     private final SeminarService seminarService;
+    private final SessionScoreMigrationService sessionScoreMigrationService;
+    private final PopulationAggregateService populationAggregateService;
+    private final QuestionScoreService questionScoreService;
+    private final ResultBreakdownCache resultBreakdownCache;
 
     public CalculatorController(CalculatorService calculatorService,
                                 SessionService sessionService,
-                                SeminarService seminarService) {
+                                SeminarService seminarService,
+                                SessionScoreMigrationService sessionScoreMigrationService,
+                                PopulationAggregateService populationAggregateService,
+                                QuestionScoreService questionScoreService,
+                                ResultBreakdownCache resultBreakdownCache) {
         this.calculatorService = calculatorService;
         this.sessionService = sessionService;
         this.seminarService = seminarService;
+        this.sessionScoreMigrationService = sessionScoreMigrationService;
+        this.populationAggregateService = populationAggregateService;
+        this.questionScoreService = questionScoreService;
+        this.resultBreakdownCache = resultBreakdownCache;
     }
 
+    /**
+     * @param durable with write-behind ingestion, respond only once the session is written
+     */
     @PostMapping("/session")
-    public String saveSession(@RequestBody Session session) {
-        return sessionService.saveSession(session);
+    public String saveSession(@RequestBody Session session, @RequestParam(defaultValue = "false") boolean durable) {
+        return sessionService.saveSession(session, "", durable);
     }
 
     @PostMapping("/session/{seminarAccessCode}")
-    public String saveSession(@RequestBody Session session, @PathVariable String seminarAccessCode) {
-        return sessionService.saveSession(session, seminarAccessCode);
+    public String saveSession(@RequestBody Session session, @PathVariable String seminarAccessCode,
+                              @RequestParam(defaultValue = "false") boolean durable) {
+        return sessionService.saveSession(session, seminarAccessCode, durable);
+    }
+
+    @ExceptionHandler(ServiceUnavailableException.class)
+    public ResponseEntity<String> serviceUnavailable(ServiceUnavailableException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body(e.getMessage());
     }
 
     @GetMapping("/calculate/session/{sessionId}")
-    public ResultBreakdown calculate(@PathVariable String sessionId) {
-        ResultBreakdown resBreakdown = calculatorService.calculate(sessionService.getSession(sessionId));
-        resBreakdown.averageCalculation(sessionService.getSessions());
-        resBreakdown.listOfScores(sessionService.getSessions());
+    public ResultBreakdown calculate(@PathVariable String sessionId, WebRequest webRequest, HttpServletResponse response) {
+        long id = SignedObjectSerializer.deserialize(sessionId, Long.class);
+
+        // a saved session never changes, so the response only changes with the population statistics and the
+        // language; a revalidation is answered without reading the database
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_LANGUAGE);
+        String etag = "\"" + Long.toHexString(id) + "-" + Long.toHexString(populationAggregateService.getLastModified()) +
+                "-" + populationAggregateService.getVersion() + "-" + LocaleContextHolder.getLocale().toLanguageTag() + "\"";
+        if (webRequest.checkNotModified(etag, populationAggregateService.getLastModified()))
+            return null;
+
+        ResultBreakdown resBreakdown = resultBreakdownCache.get(id, sessionIdToCalculate -> {
+            Session session = sessionService.getSession(sessionIdToCalculate);
+            if (session == null)
+                throw new NotFoundException("Session not found");
+            return calculatorService.calculate(session);
+        });
+        resBreakdown.setAvgScores(populationAggregateService.getAverageScore());
+        resBreakdown.setClusters(populationAggregateService.getClusters());
+        resBreakdown.setPercentile(populationAggregateService.getPercentile(resBreakdown.getResult()));
+        if (resBreakdown.getSeminarId() != null)
+            resBreakdown.setSeminarPercentile(
+                    populationAggregateService.getSeminarPercentile(resBreakdown.getSeminarId(), resBreakdown.getResult()));
         return resBreakdown;
     }
-    
+
+    /**
+     * Result of the session for each question next to the results of all sessions and of its seminar.
+     */
+    @GetMapping("/calculate/session/{sessionId}/questions")
+    public List<QuestionComparison> compareQuestions(@PathVariable String sessionId) {
+        return questionScoreService.getComparison(SignedObjectSerializer.deserialize(sessionId, Long.class));
+    }
+
     @GetMapping("/calculate/seminar/{seminarAccessCode}")
     public ResultBreakdownSeminar calculateSeminar(@PathVariable String seminarAccessCode) {
         
@@ -53,16 +123,71 @@ public class CalculatorController {
             throw new BadRequestException("Seminar with this access code does not exist");
         }
         else if(seminar.getStatus().equals(SeminarStatus.CLOSED)) {
-            ResultBreakdownSeminar resultBreakdownSeminar = ResultBreakdownSeminar.newFromSeminar(seminar, sessionService);
-            return resultBreakdownSeminar;
+            return seminarService.getSeminarResult(seminar);
         } else {
             throw new BadRequestException("Seminar with this access code is not open");
         }
     }
 
     @PostMapping("/calculate/energyConsumption")
-    public ResultBreakdown calculateEnergyConsumption(@RequestBody Session session) {
-        return calculatorService.calculate(sessionService.updateSession(session));
+    public ResultBreakdown calculateEnergyConsumption(@RequestBody Session session,
+                                                      @RequestParam(defaultValue = "false") boolean scoreOnly) {
+        // the breakdown refers to the shared entities of the questionnaire catalog, which must not be localized
+        if (scoreOnly)
+            return calculatorService.calculateScore(sessionService.updateSession(session)).copy();
+
+        return calculatorService.calculate(sessionService.updateSession(session)).copy();
+    }
+
+    @GetMapping("/calculate/formulaBackend")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public FormulaBackend getFormulaBackend() {
+        return FormulaRegistry.getBackend();
+    }
+
+    @PutMapping("/calculate/formulaBackend")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public FormulaBackend setFormulaBackend(@RequestBody Map<String, FormulaBackend> payload) {
+        if (payload.get("backend") == null)
+            throw new BadRequestException("Missing 'backend'");
+
+        FormulaRegistry.setBackend(payload.get("backend"));
+        return FormulaRegistry.getBackend();
+    }
+
+    @GetMapping("/calculate/scoreCache")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public Map<String, Long> getScoreCacheStatistics() {
+        return ScoreCache.getStatistics();
+    }
+
+    @GetMapping("/calculate/breakdownCache")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public Map<String, Number> getBreakdownCacheStatistics() {
+        return resultBreakdownCache.getStatistics();
+    }
+
+    @GetMapping("/migrateSessionScores")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public String migrateSessionScores() {
+        long migrated = sessionScoreMigrationService.migrateSessionScores();
+        if (migrated > 0)
+            populationAggregateService.rebuild();
+        return "Migration of session scores completed successfully (" + migrated + " sessions)";
+    }
+
+    @GetMapping("/migrateEncodedAnswers")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public String migrateEncodedAnswers() {
+        long migrated = sessionScoreMigrationService.migrateEncodedAnswers();
+        return "Migration of encoded answers completed successfully (" + migrated + " sessions)";
+    }
+
+    @GetMapping("/migrateQuestionScores")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public String migrateQuestionScores() {
+        long rows = questionScoreService.rebuild();
+        return "Migration of question scores completed successfully (" + rows + " question scores)";
     }
 
 }
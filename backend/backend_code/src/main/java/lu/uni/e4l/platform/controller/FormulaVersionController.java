@@ -0,0 +1,47 @@
+package lu.uni.e4l.platform.controller;
+
+import lu.uni.e4l.platform.model.FormulaVersion;
+import lu.uni.e4l.platform.model.dto.RescoringProgress;
+import lu.uni.e4l.platform.service.FormulaVersionService;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+import java.util.Map;
+
+@RestController
+public class FormulaVersionController {
+
+    private final FormulaVersionService formulaVersionService;
+
+    public FormulaVersionController(FormulaVersionService formulaVersionService) {
+        this.formulaVersionService = formulaVersionService;
+    }
+
+    @GetMapping("/formulaVersions")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public List<FormulaVersion> getFormulaVersions() {
+        return formulaVersionService.getVersions();
+    }
+
+    /**
+     * @param formulas new formula by possible answer id, the other formulas are those of the active version
+     */
+    @PostMapping("/formulaVersions")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public FormulaVersion createFormulaVersion(@RequestBody Map<Long, String> formulas) {
+        return formulaVersionService.createVersion(formulas);
+    }
+
+    @PostMapping("/formulaVersions/{number}/rescore")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public RescoringProgress rescore(@PathVariable int number) {
+        return formulaVersionService.startRescoring(number);
+    }
+
+    @GetMapping("/formulaVersions/rescoring")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public RescoringProgress getRescoringProgress() {
+        return formulaVersionService.getProgress();
+    }
+}
@@ -1,16 +1,27 @@
 package lu.uni.e4l.platform.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lu.uni.e4l.platform.i18n.service.Localizer;
 import lu.uni.e4l.platform.model.*;
+import lu.uni.e4l.platform.model.dto.ResponsePage;
 import lu.uni.e4l.platform.model.dto.ResultBreakdown;
 import lu.uni.e4l.platform.repository.RequestSourceRepository;
 import lu.uni.e4l.platform.service.QuestionnaireService;
+import lu.uni.e4l.platform.service.ResponseCountService;
 import lu.uni.e4l.platform.service.SessionService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.i18n.LocaleContextHolder;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.Locale;
 import java.util.stream.Collectors;
 
 import org.springframework.web.bind.annotation.RestController;
@@ -21,18 +32,27 @@ import java.util.Optional;
 @RestController
 public class QuestionnaireController {
 
+    private static final MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+    private static final int STREAM_PAGE_SIZE = 200;
 
     @Autowired
     private RequestSourceRepository requestSourceRepository;
 
     private final QuestionnaireService questionnaireService;
     private final SessionService sessionService;
+    private final ResponseCountService responseCountService;
+    private final ObjectMapper objectMapper;
 
     @Autowired
     public QuestionnaireController(QuestionnaireService questionnaireService,
-                                   SessionService sessionService) {
+                                   SessionService sessionService,
+                                   ResponseCountService responseCountService,
+                                   ObjectMapper objectMapper) {
         this.questionnaireService = questionnaireService;
         this.sessionService = sessionService;
+        this.responseCountService = responseCountService;
+        this.objectMapper = objectMapper;
     }
 
     @GetMapping("/questionnaire")
@@ -52,8 +72,7 @@ public class QuestionnaireController {
 
     @GetMapping("/responses/count")
     public int allResponsesCount(Boolean kid) {
-        return (int) sessionService.getSessions().stream().filter(q->q.getIskid()==kid).count();
-//        return (int) sessionService.getSessions().size();
+        return (int) responseCountService.getCount(kid);
     }
 
     @GetMapping("/calculateAble")
@@ -71,14 +90,67 @@ public class QuestionnaireController {
     @GetMapping("/responses")
     @PreAuthorize("isAuthenticated()")
     public List<ResultBreakdown> getResponses(Authentication authentication) {
-        User user = (User) authentication.getPrincipal();
+        Long userId = responsesUserId(authentication);
+        List<Session> sessions = userId == null ? sessionService.getSessions() : sessionService.getUserSessions(userId);
 
-        return sessionService.getSessions().stream()
-                .filter(q -> user.getRoles().contains(UserRole.ADMIN) || user.getId() == q.getUser().getId())
+        return sessions.stream()
                 .map(ResultBreakdown::fromSession)
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Responses newest first, {@code size} at a time. {@code cursor} is the {@code nextCursor} of the previous page.
+     */
+    @GetMapping("/responses/page")
+    @PreAuthorize("isAuthenticated()")
+    public ResponsePage getResponsePage(Authentication authentication,
+                                        @RequestParam(required = false) String cursor,
+                                        @RequestParam(defaultValue = "50") int size) {
+        List<Session> sessions = sessionService.getSessionPage(responsesUserId(authentication), cursor, size);
+
+        ResponsePage page = new ResponsePage();
+        page.setResponses(sessions.stream()
+                .map(ResultBreakdown::fromSession)
+                .collect(Collectors.toList()));
+        page.setNextCursor(sessions.size() < size ? null : SessionService.cursorOf(sessions.get(sessions.size() - 1)));
+        return page;
+    }
+
+    /**
+     * All responses newest first as newline-delimited JSON, one breakdown per line, written while the sessions are
+     * read so that memory use doesn't depend on the number of responses.
+     */
+    @GetMapping("/responses/stream")
+    @PreAuthorize("isAuthenticated()")
+    public ResponseEntity<StreamingResponseBody> streamResponses(Authentication authentication) {
+        Long userId = responsesUserId(authentication);
+        // the body is written on another thread, without the locale of the request
+        Locale locale = LocaleContextHolder.getLocale();
+
+        StreamingResponseBody body = outputStream -> sessionService.forEachSession(userId, STREAM_PAGE_SIZE, session -> {
+            // not a @ResponseBody, so not localized by the I18nInterceptor
+            ResultBreakdown resultBreakdown = ResultBreakdown.fromSession(session);
+            Localizer.localizeObject(resultBreakdown, locale);
+
+            try {
+                outputStream.write(objectMapper.writeValueAsBytes(resultBreakdown));
+                outputStream.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        return ResponseEntity.ok().contentType(APPLICATION_NDJSON).body(body);
+    }
+
+    /**
+     * Admins see all responses, other users only theirs.
+     */
+    private static Long responsesUserId(Authentication authentication) {
+        User user = (User) authentication.getPrincipal();
+        return user.getRoles().contains(UserRole.ADMIN) ? null : user.getId();
+    }
+
     private String generateUniqueIdentifier(HttpServletRequest request) {
         String ip = request.getRemoteAddr();
         String userAgent = request.getHeader("User-Agent");
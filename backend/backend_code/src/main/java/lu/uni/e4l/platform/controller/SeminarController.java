@@ -91,6 +91,13 @@ public class SeminarController {
         return "Migration of seminar counters completed successfully";
     }
 
+    @GetMapping("/rebuildSeminarResults")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public String rebuildSeminarResults() {
+        int rebuilt = seminarService.rebuildResultSnapshots();
+        return "Rebuild of seminar results completed successfully (" + rebuilt + " seminars)";
+    }
+
     private boolean rateLimiterEnabled = false;
 
     @GetMapping("/ratelimiterstatus")
@@ -0,0 +1,44 @@
+package lu.uni.e4l.platform.controller;
+
+import lu.uni.e4l.platform.model.RollupGranularity;
+import lu.uni.e4l.platform.model.dto.ScoreTrend;
+import lu.uni.e4l.platform.service.ScoreRollupService;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.*;
+
+import java.time.LocalDate;
+import java.util.List;
+
+@RestController
+public class StatisticsController {
+
+    private final ScoreRollupService scoreRollupService;
+
+    public StatisticsController(ScoreRollupService scoreRollupService) {
+        this.scoreRollupService = scoreRollupService;
+    }
+
+    @GetMapping("/statistics/trend")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public List<ScoreTrend> getTrend(@RequestParam(defaultValue = "WEEK") RollupGranularity granularity,
+                                     @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+                                     @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+                                     @RequestParam(required = false) Boolean kid,
+                                     @RequestParam(required = false) Long seminarId) {
+        return scoreRollupService.getTrend(granularity, from, to, kid, seminarId);
+    }
+
+    @GetMapping("/statistics/rollupCheck")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public List<String> checkRollups() {
+        return scoreRollupService.check();
+    }
+
+    @GetMapping("/migrateScoreRollups")
+    @PreAuthorize("hasAuthority('ADMIN')")
+    public String migrateScoreRollups() {
+        int rollups = scoreRollupService.rebuild();
+        return "Migration of score rollups completed successfully (" + rollups + " rollups)";
+    }
+}
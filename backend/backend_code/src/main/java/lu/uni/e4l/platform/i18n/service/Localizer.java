@@ -36,7 +36,10 @@ public class Localizer {
     }
 
     public static void localizeObject(Object obj) {
-        final Locale locale = LocaleContextHolder.getLocale();
+        localizeObject(obj, LocaleContextHolder.getLocale());
+    }
+
+    public static void localizeObject(Object obj, Locale locale) {
         modifyObject(obj, Main.class.getPackage().getName(), String.class, 10, (msg) -> toLocale(msg, locale));
     }
 
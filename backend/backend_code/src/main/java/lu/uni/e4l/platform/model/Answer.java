@@ -4,6 +4,9 @@ import com.fasterxml.jackson.annotation.*;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 import javax.persistence.*;
 import java.util.ArrayList;
 import java.util.List;
@@ -15,7 +18,9 @@ import java.util.List;
 public class Answer {
 
     @Id
-    @GeneratedValue(strategy= GenerationType.AUTO)
+    @GeneratedValue(generator = "answerId")
+    @GenericGenerator(name = "answerId", strategy = "lu.uni.e4l.platform.model.PooledIdGenerator",
+            parameters = @Parameter(name = "sequence_name", value = "answer_seq"))
     private long id;
 
     @JsonBackReference
@@ -29,4 +34,12 @@ public class Answer {
     @ManyToOne
     @JoinColumn(name = "fk_possible_answer")
     private PossibleAnswer possibleAnswer;
+
+    // computed when the session is saved
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    private Double score;
+
+    // score with the formula version being rescored (Session.pendingFormulaVersion)
+    @JsonIgnore
+    private Double pendingScore;
 }
@@ -0,0 +1,42 @@
+package lu.uni.e4l.platform.model;
+
+import lombok.Data;
+
+import javax.persistence.*;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Formulas of all possible answers of the questionnaire. Sessions are scored by the ACTIVE version; a new version
+ * is activated once {@link lu.uni.e4l.platform.service.FormulaVersionService} has rescored all sessions with it.
+ */
+@Data
+@Entity
+public class FormulaVersion {
+
+    @Id
+    @GeneratedValue(strategy= GenerationType.AUTO)
+    private long id;
+
+    @Column(unique = true)
+    private int number;
+
+    @Enumerated(EnumType.STRING)
+    private FormulaVersionStatus status;
+
+    // formula by possible answer id
+    @ElementCollection
+    @MapKeyColumn(name = "possible_answer_id")
+    @Column(name = "formula", length = 2048)
+    private Map<Long, String> formulas = new HashMap<>();
+
+    // rescoring checkpoint: sessions are rescored by increasing id
+    private long lastRescoredSessionId;
+
+    private long rescoredSessionCount;
+
+    private ZonedDateTime createdDateTime;
+
+    private ZonedDateTime activatedDateTime;
+}
@@ -0,0 +1,5 @@
+package lu.uni.e4l.platform.model;
+
+public enum FormulaVersionStatus {
+    PENDING, RESCORING, ACTIVE, RETIRED
+}
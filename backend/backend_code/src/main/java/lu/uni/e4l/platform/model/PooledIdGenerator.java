@@ -0,0 +1,37 @@
+package lu.uni.e4l.platform.model;
+
+import org.hibernate.MappingException;
+import org.hibernate.engine.config.spi.ConfigurationService;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.service.ServiceRegistry;
+import org.hibernate.type.Type;
+
+import java.util.Properties;
+
+/**
+ * Ids of the entities saved with every submission (sessions, answers, variable values), each entity with its own
+ * sequence table named by the {@code sequence_name} parameter. A block of {@code e4l.id.allocation-size} ids is
+ * reserved per round trip to the sequence table (pooled-lo optimizer), instead of one id per row from the
+ * {@code hibernate_sequence} table shared by all entities.
+ * <p>
+ * The sequence is always a table, MySQL having no sequences, so that the schema is the same on every database.
+ * Existing ids are taken into account by {@link lu.uni.e4l.platform.service.IdSequenceMigrationService}.
+ */
+public class PooledIdGenerator extends SequenceStyleGenerator {
+
+    public static final String ALLOCATION_SIZE_SETTING = "e4l.id.allocation-size";
+    public static final int DEFAULT_ALLOCATION_SIZE = 50;
+
+    @Override
+    public void configure(Type type, Properties params, ServiceRegistry serviceRegistry) throws MappingException {
+        int allocationSize = ConfigurationHelper.getInt(ALLOCATION_SIZE_SETTING,
+                serviceRegistry.getService(ConfigurationService.class).getSettings(), DEFAULT_ALLOCATION_SIZE);
+
+        params.setProperty(INCREMENT_PARAM, String.valueOf(allocationSize));
+        params.setProperty(OPT_PARAM, "pooled-lo");
+        params.setProperty(FORCE_TBL_PARAM, "true");
+
+        super.configure(type, params, serviceRegistry);
+    }
+}
@@ -0,0 +1,35 @@
+package lu.uni.e4l.platform.model;
+
+import lombok.Data;
+
+import javax.persistence.*;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Snapshot of the population statistics kept in memory by
+ * {@link lu.uni.e4l.platform.service.PopulationAggregateService}.
+ */
+@Data
+@Entity
+public class PopulationAggregate {
+
+    @Id
+    @GeneratedValue(strategy= GenerationType.AUTO)
+    private long id;
+
+    private long sessionCount;
+
+    private double scoreSum;
+
+    @ElementCollection
+    @OrderColumn
+    private List<Long> clusters = new ArrayList<>();
+
+    // serialized t-digest of the total scores
+    @Lob
+    private byte[] digest;
+
+    private ZonedDateTime dateTime;
+}
@@ -0,0 +1,18 @@
+package lu.uni.e4l.platform.model;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+
+public enum RollupGranularity {
+    WEEK, MONTH;
+
+    /**
+     * First day of the bucket containing the date: the Monday of its week or the first day of its month.
+     */
+    public LocalDate bucketStart(LocalDate date) {
+        if (this == WEEK)
+            return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+        return date.withDayOfMonth(1);
+    }
+}
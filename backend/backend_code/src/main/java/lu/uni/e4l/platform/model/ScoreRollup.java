@@ -0,0 +1,43 @@
+package lu.uni.e4l.platform.model;
+
+import lombok.Data;
+
+import javax.persistence.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Total scores of the sessions saved during a week or a month (UTC), by kid flag and seminar, maintained by
+ * {@link lu.uni.e4l.platform.service.ScoreRollupService}.
+ */
+@Data
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"granularity", "bucketStart", "kid", "seminarId"}))
+public class ScoreRollup {
+
+    @Id
+    @GeneratedValue(strategy= GenerationType.AUTO)
+    private long id;
+
+    @Enumerated(EnumType.STRING)
+    private RollupGranularity granularity;
+
+    private LocalDate bucketStart;
+
+    private boolean kid;
+
+    // 0 for sessions without a seminar
+    private long seminarId;
+
+    private long sessionCount;
+
+    private double scoreSum;
+
+    private double scoreSquareSum;
+
+    // sessions below the first cluster, then the clusters of PopulationAggregateService
+    @ElementCollection
+    @OrderColumn
+    private List<Long> histogram = new ArrayList<>();
+}
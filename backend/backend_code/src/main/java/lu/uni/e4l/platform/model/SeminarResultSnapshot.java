@@ -0,0 +1,27 @@
+package lu.uni.e4l.platform.model;
+
+import lombok.Data;
+
+import javax.persistence.*;
+import java.time.ZonedDateTime;
+
+/**
+ * Results of a closed seminar ({@link lu.uni.e4l.platform.model.dto.ResultBreakdownSeminar} as JSON), computed
+ * once when the seminar is closed since they can't change afterwards.
+ */
+@Data
+@Entity
+public class SeminarResultSnapshot {
+
+    @Id
+    @GeneratedValue(strategy= GenerationType.AUTO)
+    private long id;
+
+    @Column(unique = true)
+    private long seminarId;
+
+    @Lob
+    private String result;
+
+    private ZonedDateTime dateTime;
+}
@@ -0,0 +1,25 @@
+package lu.uni.e4l.platform.model;
+
+import lombok.Data;
+
+import javax.persistence.*;
+
+/**
+ * Serialized t-digest of the total scores of the sessions of a seminar.
+ */
+@Data
+@Entity
+public class SeminarScoreDigest {
+
+    @Id
+    @GeneratedValue(strategy= GenerationType.AUTO)
+    private long id;
+
+    @Column(unique = true)
+    private long seminarId;
+
+    private long sessionCount;
+
+    @Lob
+    private byte[] digest;
+}
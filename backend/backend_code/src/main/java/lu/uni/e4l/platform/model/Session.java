@@ -2,20 +2,31 @@ package lu.uni.e4l.platform.model;
 
 import lombok.Data;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 import javax.persistence.*;
 
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import lombok.EqualsAndHashCode;
 import com.fasterxml.jackson.annotation.*;
 
 @Data
 @Entity
+// keyset pagination of the responses (SessionRepository.findPageIdsAfter) and counts by kid flag
+@Table(indexes = {
+        @Index(name = "idx_session_date_time_id", columnList = "dateTime, id"),
+        @Index(name = "idx_session_iskid", columnList = "iskid")
+})
 @JsonIdentityInfo(generator=ObjectIdGenerators.IntSequenceGenerator.class, property="@id")
 public class Session {
 
     @Id
-    @GeneratedValue(strategy= GenerationType.AUTO)
+    @GeneratedValue(generator = "sessionId")
+    @GenericGenerator(name = "sessionId", strategy = "lu.uni.e4l.platform.model.PooledIdGenerator",
+            parameters = @Parameter(name = "sequence_name", value = "session_seq"))
     private long id;
 
     private ZonedDateTime dateTime;
@@ -24,7 +35,8 @@ public class Session {
     @JsonManagedReference
     private List<Answer> answers;
 
-    @ManyToOne(fetch = FetchType.EAGER, cascade = CascadeType.ALL)
+    // only the id of the seminar is read with a session, from the foreign key of the proxy
+    @ManyToOne(fetch = FetchType.LAZY, cascade = CascadeType.ALL)
     @JoinColumn(name="seminar_fk")
     @JsonBackReference
     private Seminar seminar;
@@ -37,6 +49,56 @@ public class Session {
 
     private Boolean iskid;
 
+    // computed when the session is saved, changes only when a new formula version is activated
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    private Double totalScore;
+
+    // formula version of totalScore, null for sessions scored before formulas were versioned (version 1)
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    private Integer formulaVersion;
+
+    // total score with the formula version being rescored, swapped in when the version is activated
+    @JsonIgnore
+    private Double pendingTotalScore;
+
+    @JsonIgnore
+    private Integer pendingFormulaVersion;
+
+    // the answers in the compact form of AnswerCodec, null for sessions saved before it
+    @Lob
+    @JsonIgnore
+    private byte[] encodedAnswers;
+
+    // false when the answers are only stored in encodedAnswers, without rows in the answer tables
+    @JsonIgnore
+    private Boolean relationalAnswers;
+
+    // the answers of a session without answer rows: kept from the submission, or decoded from encodedAnswers by
+    // the code that loads the session (AnswerCodec.decodeAnswers)
+    @JsonIgnore
+    private transient List<Answer> decodedAnswers;
+
+    /**
+     * The answer rows, or the decoded answers if the session has no rows.
+     */
+    public List<Answer> getAnswers() {
+        return hasRelationalAnswers() ? answers : decodedAnswers;
+    }
+
+    public boolean hasRelationalAnswers() {
+        return !Boolean.FALSE.equals(relationalAnswers);
+    }
+
+    /**
+     * Keeps the answers out of the answer tables when the session is saved: they are only stored in
+     * {@link #encodedAnswers}.
+     */
+    public void storeAnswersEncodedOnly() {
+        decodedAnswers = answers;
+        answers = new ArrayList<>();
+        relationalAnswers = false;
+    }
+
     @Override
     public String toString() {
         return "Session{" +
@@ -46,6 +108,8 @@ public class Session {
                 ", questionnaire=" + (questionnaire != null ? questionnaire.getId() : "null") +
                 ", user=" + (user != null ? user.getId() : "null") +
                 ", is Kid=" + (iskid) +
+                ", totalScore=" + totalScore +
+                ", formulaVersion=" + formulaVersion +
                 '}';
     }
 }
@@ -0,0 +1,34 @@
+package lu.uni.e4l.platform.model;
+
+import lombok.Data;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
+import javax.persistence.*;
+
+/**
+ * Result of one question of a saved session, as in its breakdown ({@code ResultBreakdown.QuestionEntry}), so that
+ * per-question statistics are computed without rescoring sessions. Maintained by
+ * {@link lu.uni.e4l.platform.service.QuestionScoreService}.
+ */
+@Data
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"sessionId", "questionId"}),
+        indexes = @Index(name = "idx_session_question_score_seminar", columnList = "seminarId, questionId"))
+public class SessionQuestionScore {
+
+    @Id
+    @GeneratedValue(generator = "sessionQuestionScoreId")
+    @GenericGenerator(name = "sessionQuestionScoreId", strategy = "lu.uni.e4l.platform.model.PooledIdGenerator",
+            parameters = @Parameter(name = "sequence_name", value = "session_question_score_seq"))
+    private long id;
+
+    private long sessionId;
+
+    private long questionId;
+
+    // null for sessions without a seminar
+    private Long seminarId;
+
+    private double result;
+}
@@ -4,6 +4,9 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.NonNull;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 import javax.persistence.*;
 
 @Data
@@ -12,7 +15,9 @@ import javax.persistence.*;
 public class VariableValue {
 
     @Id
-    @GeneratedValue(strategy= GenerationType.AUTO)
+    @GeneratedValue(generator = "variableValueId")
+    @GenericGenerator(name = "variableValueId", strategy = "lu.uni.e4l.platform.model.PooledIdGenerator",
+            parameters = @Parameter(name = "sequence_name", value = "variable_value_seq"))
     private long id;
 
     @NonNull
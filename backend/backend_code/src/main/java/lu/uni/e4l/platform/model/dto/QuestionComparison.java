@@ -0,0 +1,29 @@
+package lu.uni.e4l.platform.model.dto;
+
+import lombok.Data;
+
+/**
+ * Result of a session for one question, next to the results of all sessions and of the sessions of its seminar for
+ * that question.
+ */
+@Data
+public class QuestionComparison {
+
+    private long questionId;
+
+    private String question;
+
+    private double result;
+
+    private long sessionCount;
+
+    private double populationMean;
+
+    // percentage of the sessions with a result lower than or equal to the result of the session
+    private double populationPercentile;
+
+    // null for sessions without a seminar
+    private Double seminarMean;
+
+    private Double seminarPercentile;
+}
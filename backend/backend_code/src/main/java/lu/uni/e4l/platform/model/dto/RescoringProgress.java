@@ -0,0 +1,29 @@
+package lu.uni.e4l.platform.model.dto;
+
+import lombok.Data;
+
+import java.time.ZonedDateTime;
+
+/**
+ * Progress of the rescoring of all sessions with a formula version.
+ */
+@Data
+public class RescoringProgress {
+
+    private int formulaVersion;
+
+    private boolean running;
+
+    private long rescoredSessionCount;
+
+    // rescored sessions plus the sessions left when the job (re)started
+    private long totalSessionCount;
+
+    private double sessionsPerSecond;
+
+    private ZonedDateTime startedDateTime;
+
+    private ZonedDateTime finishedDateTime;
+
+    private String error;
+}
@@ -0,0 +1,16 @@
+package lu.uni.e4l.platform.model.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ResponsePage {
+
+    private List<ResultBreakdown> responses;
+
+    /**
+     * Cursor of the next page, null on the last page.
+     */
+    private String nextCursor;
+}
@@ -1,10 +1,16 @@
 package lu.uni.e4l.platform.model.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 import lu.uni.e4l.platform.model.*;
 import lu.uni.e4l.platform.service.*;
+import lu.uni.e4l.platform.model.scale.DiscreteScale;
+import lu.uni.e4l.platform.model.scale.Scale;
 import lu.uni.e4l.platform.service.crypto.SignedObjectSerializer;
+import org.hibernate.Hibernate;
+import org.springframework.beans.BeanUtils;
 
 import java.time.ZonedDateTime;
 import java.util.*;
@@ -22,6 +28,8 @@ public class ResultBreakdown {
     private String sessionId;
     private List<QuestionEntry> breakdown;
     private long avgScores;
+    private Double percentile;
+    private Double seminarPercentile;
     private List<Integer> clusters = new ArrayList<>();
     private List<String> ans = new ArrayList<>();
     private List<String> situations = new ArrayList<>();
@@ -29,15 +37,18 @@ public class ResultBreakdown {
     private Double cnt;
     private List<String> note = new ArrayList<>();
     private List<String> colors = new ArrayList<>();
+    @JsonIgnore
+    private Long seminarId;
 
     public static ResultBreakdown fromSession(Session session) {
-        Map<Long, List<Answer>> questionIdToAnswers = session.getAnswers().stream()
-                .collect(Collectors.toMap(
-                        a -> a.getPossibleAnswer().getQuestion().getId(),
-                        a -> new ArrayList<>(Collections.singletonList(a)),
-                        (a, b) -> Stream.concat(a.stream(), b.stream()).collect(Collectors.toList()),
-                        LinkedHashMap::new
-                ));
+        return fromSession(session, false);
+    }
+
+    /**
+     * @param scoreOnly only fill the results (breakdown and total), without the presentation fields
+     */
+    public static ResultBreakdown fromSession(Session session, boolean scoreOnly) {
+        Map<Long, List<Answer>> questionIdToAnswers = answersByQuestion(session);
 
         Map<Long, Question> questionIdToQuestion = session.getAnswers().stream()
                 .collect(Collectors.toMap(
@@ -52,107 +63,158 @@ public class ResultBreakdown {
                 .map(e -> QuestionEntry.fromAnswers(questionIdToQuestion.get(e.getKey()), e.getValue()))
                 .collect(Collectors.toList());
 
-        for(int k=0; k< resultBreakdown.breakdown.size();k++)
-        {
-            String a = "";
-            String qn ="";
-            for(int l=0; l<resultBreakdown.breakdown.get(k).answers.size();l++) {
-                if(l==resultBreakdown.breakdown.get(k).answers.size()-1) {
-                        a = a + resultBreakdown.breakdown.get(k).answers.get(l).answer;
-                        if(resultBreakdown.breakdown.get(k).question.equalsIgnoreCase("electric_and_heating_energy_consumption_where_do_you_work"))
-                       {
-                           qn = resultBreakdown.breakdown.get(k).question.replace("electric_and_heating_energy_consumption_where_do_you_work","where_do_you_work");
-                           resultBreakdown.ans.add(qn + " : "+ a);
-                        }
-                       else{
-                           qn = resultBreakdown.breakdown.get(k).question.replace("other_energy_consumptions","embodied_energy");
-                           resultBreakdown.ans.add(qn + " : "+ a);
-                        }
-
-               }else{
-                    a = a + resultBreakdown.breakdown.get(k).answers.get(l).answer + " & ";
-                }
-            }
-        }
+        resultBreakdown.result = resultBreakdown.breakdown.stream()
+                .mapToDouble(QuestionEntry::getResult)
+                .sum();
 
-        for(int k=0; k< resultBreakdown.ans.size(); k++) {
-            if (resultBreakdown.ans.get(k).contains("_"))
-            {
-                resultBreakdown.situations.add(resultBreakdown.ans.get(k).replace("_"," "));
-            }
-        }
+        if (scoreOnly)
+            return resultBreakdown;
 
-        for(int k=0; k<resultBreakdown.breakdown.size();k++)
-        {
-            if(resultBreakdown.breakdown.get(k).question.equalsIgnoreCase("where_do_you_live"))
-            {
-                resultBreakdown.colors.add("#007BFF");
-            }else if(resultBreakdown.breakdown.get(k).question.equalsIgnoreCase("what_is_your_diet"))
-            {
-                resultBreakdown.colors.add("#28A745");
-            }else if(resultBreakdown.breakdown.get(k).question.equalsIgnoreCase("do_you_have_pets"))
-            {
-                resultBreakdown.colors.add("#DC3545");
-            }else if(resultBreakdown.breakdown.get(k).question.equalsIgnoreCase("how_do_you_get_to_work"))
-            {
-                resultBreakdown.colors.add("#FFC107");
-            }else if(resultBreakdown.breakdown.get(k).question.equalsIgnoreCase("electric_and_heating_energy_consumption_where_do_you_work"))
-            {
-                resultBreakdown.colors.add("#17A2B8");
-            }else if(resultBreakdown.breakdown.get(k).question.equalsIgnoreCase("holiday_travel_during_last_year"))
-            {
-                resultBreakdown.colors.add("#6C757D");
-            }else{
-                resultBreakdown.colors.add("#343A40");
-            }
+        int k = 0;
+        for (Map.Entry<Long, List<Answer>> e : questionIdToAnswers.entrySet()) {
+            QuestionPresentation presentation = QuestionPresentation.get(questionIdToQuestion.get(e.getKey()));
+            QuestionEntry questionEntry = resultBreakdown.breakdown.get(k++);
+            resultBreakdown.addPresentation(presentation, questionEntry, e.getValue());
         }
 
+        resultBreakdown.user = session.getUser();
 
-        for(int k=0; k< resultBreakdown.breakdown.size();k++)
-        {
-                if (resultBreakdown.breakdown.get(k).result < 1.0 && resultBreakdown.breakdown.get(k).result > 0.0) {
-                    resultBreakdown.scores.add(resultBreakdown.breakdown.get(k).result + 1.0);
-                    if (resultBreakdown.breakdown.get(k).question.contains("_"))
-                    {
-                        resultBreakdown.note.add("$ The result of the question \" "+ resultBreakdown.breakdown.get(k).question.replace("_"," ") + " \" is increased by 1 from "+ (resultBreakdown.breakdown.get(k).result*100)/100+"\n");
-                    }
-                } else {
-                    resultBreakdown.scores.add((resultBreakdown.breakdown.get(k).result*100)/100);
-                }
+        resultBreakdown.date = session.getDateTime();
 
-        }
+        resultBreakdown.sessionId = SignedObjectSerializer.serializeWithSignature(session.getId());
 
-        resultBreakdown.result = resultBreakdown.breakdown.stream()
-                .mapToDouble(QuestionEntry::getResult)
-                .sum();
+        resultBreakdown.seminarId = session.getSeminar() != null ? session.getSeminar().getId() : null;
 
-        resultBreakdown.user = session.getUser();
+        return resultBreakdown;
+    }
 
-        resultBreakdown.date = session.getDateTime();
+    /**
+     * Result of each question answered by the session by question id, in the order of the breakdown, computed as
+     * the results of the breakdown are.
+     */
+    public static Map<Long, Double> questionResults(Session session) {
+        Map<Long, Double> results = new LinkedHashMap<>();
 
-        resultBreakdown.sessionId = SignedObjectSerializer.serializeWithSignature(session.getId());
+        answersByQuestion(session).forEach((questionId, answers) -> results.put(questionId,
+                QuestionEntry.fromAnswers(answers.get(0).getPossibleAnswer().getQuestion(), answers).getResult()));
+
+        return results;
+    }
+
+    private static Map<Long, List<Answer>> answersByQuestion(Session session) {
+        return session.getAnswers().stream()
+                .collect(Collectors.toMap(
+                        a -> a.getPossibleAnswer().getQuestion().getId(),
+                        a -> new ArrayList<>(Collections.singletonList(a)),
+                        (a, b) -> Stream.concat(a.stream(), b.stream()).collect(Collectors.toList()),
+                        LinkedHashMap::new
+                ));
+    }
 
-        for (int i = 0; i < resultBreakdown.situations.size(); i++) {
-            String situation = resultBreakdown.situations.get(i);
+    /**
+     * Copy of the breakdown in which everything the response localization
+     * ({@link lu.uni.e4l.platform.i18n.service.Localizer}) modifies is copied too, so that a cached breakdown
+     * is never changed by the requests it is served to.
+     */
+    public ResultBreakdown copy() {
+        ResultBreakdown copy = new ResultBreakdown();
+
+        copy.result = result;
+        copy.user = copyEntity(user);
+        copy.date = date;
+        copy.sessionId = sessionId;
+        copy.breakdown = breakdown == null ? null : breakdown.stream()
+                .map(QuestionEntry::copy)
+                .collect(Collectors.toList());
+        copy.avgScores = avgScores;
+        copy.percentile = percentile;
+        copy.seminarPercentile = seminarPercentile;
+        copy.clusters = new ArrayList<>(clusters);
+        copy.ans = new ArrayList<>(ans);
+        copy.situations = new ArrayList<>(situations);
+        copy.scores = new ArrayList<>(scores);
+        copy.cnt = cnt;
+        copy.note = new ArrayList<>(note);
+        copy.colors = new ArrayList<>(colors);
+        copy.seminarId = seminarId;
+
+        return copy;
+    }
 
-            if (situation.contains(": im a "))
-                situation = situation.replace("im a ", "");
-            if (situation.contains(": im "))
-                situation = situation.replace("im ", "");
+    @SuppressWarnings("unchecked")
+    private static <T> T copyEntity(T entity) {
+        if (entity == null)
+            return null;
 
-            resultBreakdown.situations.set(i, situation);
+        T source = (T) Hibernate.unproxy(entity);
+        T copy = (T) BeanUtils.instantiateClass(source.getClass());
+        BeanUtils.copyProperties(source, copy);
+        return copy;
+    }
+
+    private static VariableValue copyVariableValue(VariableValue variableValue) {
+        VariableValue copy = copyEntity(variableValue);
+        Variable variable = copyEntity(variableValue.getVariable());
+        copy.setVariable(variable);
+
+        if (variable != null && variable.getScale() != null) {
+            Scale scale = copyEntity(variable.getScale());
+            if (scale instanceof DiscreteScale && ((DiscreteScale) scale).getAllowedOptions() != null)
+                ((DiscreteScale) scale).setAllowedOptions(((DiscreteScale) scale).getAllowedOptions().stream()
+                        .map(ResultBreakdown::copyEntity)
+                        .collect(Collectors.toList()));
+            variable.setScale(scale);
         }
 
-        return resultBreakdown;
+        return copy;
+    }
+
+    private void addPresentation(QuestionPresentation presentation, QuestionEntry questionEntry, List<Answer> answers) {
+        StringBuilder answer = new StringBuilder(presentation.getDisplayName()).append(" : ");
+        StringBuilder situation = new StringBuilder(presentation.getSituationName()).append(" : ");
+        boolean hasUnderscore = presentation.getDisplayName().contains("_");
+
+        for (int l = 0; l < answers.size(); l++) {
+            PossibleAnswer possibleAnswer = answers.get(l).getPossibleAnswer();
+            if (l > 0) {
+                answer.append(" & ");
+                situation.append(" & ");
+            }
+            answer.append(possibleAnswer.getName());
+            situation.append(presentation.getAnswerSituationName(possibleAnswer));
+            hasUnderscore |= String.valueOf(possibleAnswer.getName()).contains("_");
+        }
+
+        ans.add(answer.toString());
+
+        if (hasUnderscore) {
+            String text = situation.toString();
+            if (text.contains(": im a "))
+                text = text.replace("im a ", "");
+            if (text.contains(": im "))
+                text = text.replace("im ", "");
+            situations.add(text);
+        }
+
+        colors.add(presentation.getColor());
+
+        double questionResult = questionEntry.result;
+        if (questionResult < 1.0 && questionResult > 0.0) {
+            scores.add(questionResult + 1.0);
+            if (presentation.getNoteName() != null)
+                note.add("$ The result of the question \" " + presentation.getNoteName() + " \" is increased by 1 from " + (questionEntry.result * 100) / 100 + "\n");
+        } else {
+            scores.add((questionEntry.result * 100) / 100);
+        }
     }
 
    public void averageCalculation(List<Session> listSessions){
        Double prevResult = 0.0;
+       double[] results = SessionScorer.totalScores(listSessions);
 
-        for (int i=0; i<listSessions.size(); i++)
+        for (int i=0; i<results.length; i++)
         {
-            ResultBreakdown res = fromSession(listSessions.get(i));
-            prevResult = Double.sum(prevResult,res.result);
+            prevResult = Double.sum(prevResult,results[i]);
         }
        Double v = prevResult/listSessions.size();
        avgScores = Math.round(v);
@@ -160,10 +222,10 @@ public class ResultBreakdown {
 
     public void listOfScores(List<Session> listSessions){
         List<Double> listOfResults = new ArrayList<>();
-        for (int i=0; i<listSessions.size(); i++)
+        double[] results = SessionScorer.totalScores(listSessions);
+        for (int i=0; i<results.length; i++)
         {
-            ResultBreakdown res = fromSession(listSessions.get(i));
-            listOfResults.add(Math.floor(res.result*100)/100);
+            listOfResults.add(Math.floor(results[i]*100)/100);
 
         }
         int count1 = 0, count2 = 0,count3 = 0,count4 = 0,count5 = 0,count6 = 0,count7 = 0,count8 = 0,count9 = 0,count10 = 0, count11 =0, count12 = 0, count13 =0, count14 =0, count15 = 0;
@@ -244,40 +306,38 @@ public class ResultBreakdown {
             questionEntry.detailsFile = question.getDetailsFile();
 
             questionEntry.result = answers.stream()
-                    .mapToDouble(asw -> {
-                        List<VariableValue> variables = new ArrayList<>(asw.getVariableValues());
-                        // Ensure 'type' variable is present with default value of 1
-                        if (variables.stream().noneMatch(var -> var.getVariable().getName().equals("type"))) {
-                            variables.add(createVariableValue("type", 1.0));
-                        }
-                        return Math.floor(ExpressionEvaluator.evaluate(asw.getPossibleAnswer().getFormula(), variables) * 100) / 100;
-                    })
+                    .mapToDouble(SessionScorer::storedScore)
                     .sum();
 
+            // copies: the variables are translated in place, and those of decoded answers are the catalog's
             questionEntry.answers = answers.stream()
-                    .map(a -> new AnswerEntry(a.getPossibleAnswer().getName(), a.getVariableValues()))
+                    .map(a -> new AnswerEntry(a.getPossibleAnswer().getName(), a.getVariableValues().stream()
+                            .map(ResultBreakdown::copyVariableValue)
+                            .collect(Collectors.toList())))
                     .collect(Collectors.toList());
 
             return questionEntry;
         }
 
+        private QuestionEntry copy() {
+            QuestionEntry copy = new QuestionEntry();
+            copy.question = question;
+            copy.result = result;
+            copy.detailsFile = detailsFile;
+            copy.answers = answers.stream()
+                    .map(a -> new AnswerEntry(a.answer, a.variables == null ? null : a.variables.stream()
+                            .map(ResultBreakdown::copyVariableValue)
+                            .collect(Collectors.toList())))
+                    .collect(Collectors.toList());
+            return copy;
+        }
+
         @Data
         @AllArgsConstructor
+        @NoArgsConstructor
         public static class AnswerEntry {
             private String answer;
             private List<VariableValue> variables;
         }
     }
-    private static VariableValue createVariableValue(String name, Double value) {
-        VariableValue variableValue = new VariableValue();
-
-        Variable variable = new Variable();
-        variable.setName(name);
-
-        variableValue.setVariable(variable);
-        variableValue.setValue(value);
-
-        return variableValue;
-    }
-
 }
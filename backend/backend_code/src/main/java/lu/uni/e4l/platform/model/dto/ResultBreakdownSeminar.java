@@ -2,19 +2,19 @@ package lu.uni.e4l.platform.model.dto;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 import lu.uni.e4l.platform.model.*;
 import lu.uni.e4l.platform.service.*;
 import lu.uni.e4l.platform.service.crypto.SignedObjectSerializer;
 import lu.uni.e4l.platform.model.dto.ResultBreakdown;
 
-import lu.uni.e4l.platform.service.SessionService;
-
 import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 @Data
+@NoArgsConstructor
 public class ResultBreakdownSeminar {
 
     private List<ResultBreakdown> resultBreakdownList;
@@ -32,44 +32,38 @@ public class ResultBreakdownSeminar {
 
     }
 
-    public static ResultBreakdownSeminar newFromSeminar(Seminar seminar, SessionService sessionService) {
+    public static ResultBreakdownSeminar newFromSeminar(Seminar seminar, PopulationAggregateService populationAggregateService) {
+        return newFromSessions(seminar.getSessions(), populationAggregateService);
+    }
+
+    /**
+     * Results of the sessions of a seminar, with their answers loaded.
+     */
+    public static ResultBreakdownSeminar newFromSessions(List<Session> sessions, PopulationAggregateService populationAggregateService) {
         List<ResultBreakdown> resultBreakdownList = new ArrayList<>();
-        List<Double> resultList = new ArrayList<>();
         List<Double> resultListSeminar = new ArrayList<>();
         long averageScore =0;
         long averageScoreSeminar = 0;
         List<Integer> clusterList = new ArrayList<>();
         List<Integer> clusterListSeminar= new ArrayList<>();
 
-        List<Long> sessionIdList = seminar.getSessions().stream()
-            .map(s -> s.getId())
-            .collect(Collectors.toList());
-
-        resultBreakdownList = seminar.getSessions().stream()
+        resultBreakdownList = sessions.stream()
             .map(ResultBreakdown::fromSession)
             .collect(Collectors.toList());
 
-        resultList = sessionService.getSessions().stream()
-            .map(session -> ResultBreakdown.fromSession(session).getResult())
-            .collect(Collectors.toList());
-
-        Double prevResult = resultList.stream()
-            .collect(Collectors.summingDouble(Double::doubleValue));
-        
-        Double value = prevResult/sessionService.getSessions().size();
-        averageScore = Math.round(value);
+        averageScore = populationAggregateService.getAverageScore();
         
         resultListSeminar = resultBreakdownList.stream()
             .map(result -> result.getResult())
             .collect(Collectors.toList());
 
-        prevResult = resultListSeminar.stream()
+        Double prevResult = resultListSeminar.stream()
             .collect(Collectors.summingDouble(Double::doubleValue));
         
-        value = prevResult/resultBreakdownList.size();
+        Double value = prevResult/resultBreakdownList.size();
         averageScoreSeminar = Math.round(value);
 
-        clusterList = listOfScores(resultList);
+        clusterList = populationAggregateService.getClusters();
 
         clusterListSeminar = listOfScores(resultListSeminar);
         
@@ -0,0 +1,24 @@
+package lu.uni.e4l.platform.model.dto;
+
+import lombok.Data;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Statistics of the total scores of the sessions saved during one bucket of a trend.
+ */
+@Data
+public class ScoreTrend {
+
+    private LocalDate bucketStart;
+
+    private long sessionCount;
+
+    private double averageScore;
+
+    private double standardDeviation;
+
+    // sessions below the first cluster, then the clusters of the result breakdown
+    private List<Long> histogram;
+}
@@ -0,0 +1,18 @@
+package lu.uni.e4l.platform.repository;
+
+import lu.uni.e4l.platform.model.FormulaVersion;
+import lu.uni.e4l.platform.model.FormulaVersionStatus;
+import org.springframework.data.repository.CrudRepository;
+
+import java.util.List;
+
+public interface FormulaVersionRepository extends CrudRepository<FormulaVersion, Long> {
+
+    FormulaVersion findByNumber(int number);
+
+    List<FormulaVersion> findByStatus(FormulaVersionStatus status);
+
+    List<FormulaVersion> findAllByOrderByNumberAsc();
+
+    FormulaVersion findFirstByOrderByNumberDesc();
+}
@@ -0,0 +1,9 @@
+package lu.uni.e4l.platform.repository;
+
+import lu.uni.e4l.platform.model.PopulationAggregate;
+import org.springframework.data.repository.CrudRepository;
+
+public interface PopulationAggregateRepository extends CrudRepository<PopulationAggregate, Long> {
+
+    PopulationAggregate findFirstByOrderByIdAsc();
+}
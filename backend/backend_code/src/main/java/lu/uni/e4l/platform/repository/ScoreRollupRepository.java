@@ -0,0 +1,32 @@
+package lu.uni.e4l.platform.repository;
+
+import lu.uni.e4l.platform.model.RollupGranularity;
+import lu.uni.e4l.platform.model.ScoreRollup;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDate;
+import java.util.List;
+
+public interface ScoreRollupRepository extends CrudRepository<ScoreRollup, Long> {
+
+    ScoreRollup findByGranularityAndBucketStartAndKidAndSeminarId(RollupGranularity granularity, LocalDate bucketStart,
+                                                                  boolean kid, long seminarId);
+
+    /**
+     * Rollups of the buckets starting in [from, to], optionally only those of kids or adults and of a seminar.
+     */
+    @Query("select r from ScoreRollup r where r.granularity = :granularity and r.bucketStart between :from and :to " +
+            "and (:kid is null or r.kid = :kid) and (:seminarId is null or r.seminarId = :seminarId) " +
+            "order by r.bucketStart")
+    List<ScoreRollup> findBuckets(@Param("granularity") RollupGranularity granularity,
+                                  @Param("from") LocalDate from,
+                                  @Param("to") LocalDate to,
+                                  @Param("kid") Boolean kid,
+                                  @Param("seminarId") Long seminarId);
+
+    @Transactional
+    void deleteBySeminarId(long seminarId);
+}
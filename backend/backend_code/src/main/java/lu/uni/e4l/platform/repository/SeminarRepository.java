@@ -1,14 +1,35 @@
 package lu.uni.e4l.platform.repository;
 
 import lu.uni.e4l.platform.model.Seminar;
+import lu.uni.e4l.platform.model.SeminarStatus;
 import lu.uni.e4l.platform.model.SeminarView;
 
 import java.util.List;
 
-import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
-public interface SeminarRepository extends CrudRepository<Seminar, Long> {
+public interface SeminarRepository extends JpaRepository<Seminar, Long> {
     List<Seminar> findAll();
 
+    /**
+     * @return the seminar with this access code (unique), or null
+     */
+    Seminar findByAccessCode(String accessCode);
+
     List<SeminarView> findBy();
+
+    @Query("select s.id from Seminar s where s.status = :status order by s.id")
+    List<Long> findIdsByStatus(@Param("status") SeminarStatus status);
+
+    /**
+     * Atomically counts one more session in the seminar, without reading it.
+     */
+    @Transactional
+    @Modifying
+    @Query("update Seminar s set s.seminarCounter = s.seminarCounter + 1 where s.id = :id")
+    int incrementSeminarCounter(@Param("id") long id);
 }
@@ -0,0 +1,13 @@
+package lu.uni.e4l.platform.repository;
+
+import lu.uni.e4l.platform.model.SeminarScoreDigest;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.transaction.annotation.Transactional;
+
+public interface SeminarScoreDigestRepository extends CrudRepository<SeminarScoreDigest, Long> {
+
+    SeminarScoreDigest findBySeminarId(long seminarId);
+
+    @Transactional
+    void deleteBySeminarId(long seminarId);
+}
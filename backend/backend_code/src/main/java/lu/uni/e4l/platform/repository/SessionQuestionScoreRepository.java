@@ -0,0 +1,37 @@
+package lu.uni.e4l.platform.repository;
+
+import lu.uni.e4l.platform.model.SessionQuestionScore;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface SessionQuestionScoreRepository extends JpaRepository<SessionQuestionScore, Long> {
+
+    List<SessionQuestionScore> findBySessionId(long sessionId);
+
+    /**
+     * id, question id and result of the rows after {@code id}, by id.
+     */
+    @Query("select q.id, q.questionId, q.result from SessionQuestionScore q where q.id > :id order by q.id")
+    List<Object[]> findResultRowsAfter(@Param("id") long id, Pageable pageable);
+
+    @Query("select distinct q.sessionId from SessionQuestionScore q where q.sessionId in :sessionIds")
+    List<Long> findSessionIdsIn(@Param("sessionIds") Collection<Long> sessionIds);
+
+    /**
+     * question id and result of the rows of the seminar.
+     */
+    @Query("select q.questionId, q.result from SessionQuestionScore q where q.seminarId = :seminarId")
+    List<Object[]> findSeminarResultRows(@Param("seminarId") long seminarId);
+
+    @Transactional
+    @Modifying
+    @Query("delete from SessionQuestionScore q where q.seminarId = :seminarId")
+    int deleteBySeminarId(@Param("seminarId") long seminarId);
+}
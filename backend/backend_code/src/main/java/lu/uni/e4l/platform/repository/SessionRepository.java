@@ -1,7 +1,138 @@
 package lu.uni.e4l.platform.repository;
 
+import lu.uni.e4l.platform.model.Answer;
 import lu.uni.e4l.platform.model.Session;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.QueryHint;
+import java.time.ZonedDateTime;
+import java.util.*;
 
 public interface SessionRepository extends CrudRepository<Session, Long> {
+
+    List<Session> findByTotalScoreIsNullOrderByIdAsc(Pageable pageable);
+
+    List<Session> findByEncodedAnswersIsNullOrderByIdAsc(Pageable pageable);
+
+    List<Session> findByIdGreaterThanOrderByIdAsc(long id, Pageable pageable);
+
+    // ids of the sessions to show, newest first, whose sessions are then read with findForScoring
+
+    @Query("select s.id from Session s order by s.dateTime desc, s.id desc")
+    List<Long> findAllIds();
+
+    @Query("select s.id from Session s where s.user.id = :userId order by s.dateTime desc, s.id desc")
+    List<Long> findIdsByUserId(@Param("userId") long userId);
+
+    @Query("select s.id from Session s where s.id in :ids order by s.dateTime desc, s.id desc")
+    List<Long> findIdsByIdIn(@Param("ids") Collection<Long> ids);
+
+    @Query("select s.id from Session s where s.seminar.id = :seminarId order by s.id")
+    List<Long> findIdsBySeminarId(@Param("seminarId") long seminarId);
+
+    long countByIdGreaterThan(long id);
+
+    @Query("select s.id from Session s where s.id > :id order by s.id")
+    List<Long> findIdsAfter(@Param("id") long id, Pageable pageable);
+
+    long countByIskid(boolean iskid);
+
+    long countByIskidIsNull();
+
+    long countByTotalScoreIsNull();
+
+    long countByTotalScoreIsNotNull();
+
+    /**
+     * id, dateTime, iskid, seminar id and totalScore of the sessions after {@code id}, by id.
+     */
+    @Query("select s.id, s.dateTime, s.iskid, seminar.id, s.totalScore from Session s left join s.seminar seminar " +
+            "where s.id > :id order by s.id")
+    List<Object[]> findScoreRowsAfter(@Param("id") long id, Pageable pageable);
+
+    // keyset pagination, newest first: a page starts after the (dateTime, id) of the last session of the previous one
+
+    @Query("select s.id from Session s order by s.dateTime desc, s.id desc")
+    List<Long> findFirstPageIds(Pageable pageable);
+
+    @Query("select s.id from Session s where s.dateTime < :dateTime or (s.dateTime = :dateTime and s.id < :id) " +
+            "order by s.dateTime desc, s.id desc")
+    List<Long> findPageIdsAfter(@Param("dateTime") ZonedDateTime dateTime, @Param("id") long id, Pageable pageable);
+
+    @Query("select s.id from Session s where s.user.id = :userId order by s.dateTime desc, s.id desc")
+    List<Long> findFirstPageIdsByUser(@Param("userId") long userId, Pageable pageable);
+
+    @Query("select s.id from Session s where s.user.id = :userId " +
+            "and (s.dateTime < :dateTime or (s.dateTime = :dateTime and s.id < :id)) " +
+            "order by s.dateTime desc, s.id desc")
+    List<Long> findPageIdsAfterByUser(@Param("userId") long userId, @Param("dateTime") ZonedDateTime dateTime,
+                                      @Param("id") long id, Pageable pageable);
+
+    // fetch plan of the sessions that are shown or scored: everything ResultBreakdown reads is loaded by two
+    // statements per FETCH_SIZE sessions (distinct is applied to the entities, not sent to the database). Answers
+    // and variable values are both lists (bags), which one query can't fetch together; the second query
+    // initializes the variable values of the answers loaded by the first. The seminar is not fetched: only its id is
+    // read, which its proxy holds.
+
+    int FETCH_SIZE = 500;
+
+    @QueryHints(@QueryHint(name = "hibernate.query.passDistinctThrough", value = "false"))
+    @Query("select distinct s from Session s left join fetch s.answers a left join fetch a.possibleAnswer pa " +
+            "left join fetch pa.question left join fetch s.user " +
+            "left join fetch s.questionnaire where s.id in :ids")
+    List<Session> findWithAnswersByIdIn(@Param("ids") Collection<Long> ids);
+
+    @QueryHints(@QueryHint(name = "hibernate.query.passDistinctThrough", value = "false"))
+    @Query("select distinct a from Answer a left join fetch a.variableValues vv left join fetch vv.variable v " +
+            "left join fetch v.scale where a.session.id in :sessionIds")
+    List<Answer> findWithVariableValuesBySessionIdIn(@Param("sessionIds") Collection<Long> sessionIds);
+
+    /**
+     * Sessions with their answers, possible answers, questions and variable values, in the order of {@code ids}.
+     * Sessions stored only in encoded form have no answer rows: their answers are decoded by
+     * {@link lu.uni.e4l.platform.service.SessionLoader}.
+     */
+    @Transactional(readOnly = true)
+    default List<Session> findForScoring(List<Long> ids) {
+        Map<Long, Session> sessionsById = new HashMap<>();
+
+        for (int from = 0; from < ids.size(); from += FETCH_SIZE) {
+            List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + FETCH_SIZE));
+            for (Session session : findWithAnswersByIdIn(chunk)) {
+                sessionsById.put(session.getId(), session);
+            }
+            findWithVariableValuesBySessionIdIn(chunk);
+        }
+
+        List<Session> sessions = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Session session = sessionsById.get(id);
+            if (session != null)
+                sessions.add(session);
+        }
+        return sessions;
+    }
+
+    // activation of a formula version: pending scores become the scores, sessions not rescored are marked for
+    // scoring (SessionScoreMigrationService)
+
+    @Modifying
+    @Query("update Answer a set a.score = a.pendingScore, a.pendingScore = null " +
+            "where a.session.id in (select s.id from Session s where s.pendingFormulaVersion = :version)")
+    int activatePendingAnswerScores(@Param("version") int version);
+
+    @Modifying
+    @Query("update Session s set s.totalScore = s.pendingTotalScore, s.formulaVersion = s.pendingFormulaVersion, " +
+            "s.pendingTotalScore = null, s.pendingFormulaVersion = null where s.pendingFormulaVersion = :version")
+    int activatePendingTotalScores(@Param("version") int version);
+
+    @Modifying
+    @Query("update Session s set s.totalScore = null where s.formulaVersion is null or s.formulaVersion <> :version")
+    int clearScoresNotOfVersion(@Param("version") int version);
 }
@@ -1,7 +1,7 @@
 package lu.uni.e4l.platform.repository;
 
 import lu.uni.e4l.platform.model.Variable;
-import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.jpa.repository.JpaRepository;
 
-public interface VariableRepository extends CrudRepository<Variable, Long> {
+public interface VariableRepository extends JpaRepository<Variable, Long> {
 }
@@ -0,0 +1,130 @@
+package lu.uni.e4l.platform.service;
+
+import lu.uni.e4l.platform.model.Answer;
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.model.VariableValue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary form of the answers of a session ({@code Session.encodedAnswers}), stored in one column instead of rows of
+ * the answer, variable value and join tables:
+ * <pre>
+ * format version (1 byte)
+ * answer count (varint)
+ * for each answer: possible answer id (varint), variable count (varint),
+ *                  for each variable: variable id (varint), value (8 bytes, IEEE 754)
+ * </pre>
+ * Scores are not stored: they are computed with the registered formulas
+ * ({@link SessionScorer#totalScore(EncodedAnswers, QuestionnaireCatalog)}).
+ */
+public final class AnswerCodec {
+
+    static final byte FORMAT_VERSION = 1;
+
+    private AnswerCodec() {
+    }
+
+    public static byte[] encode(List<Answer> answers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + 24 * answers.size());
+        out.write(FORMAT_VERSION);
+        writeVarLong(out, answers.size());
+
+        byte[] value = new byte[Double.BYTES];
+        for (Answer answer : answers) {
+            writeVarLong(out, answer.getPossibleAnswer().getId());
+            writeVarLong(out, answer.getVariableValues().size());
+
+            for (VariableValue variableValue : answer.getVariableValues()) {
+                writeVarLong(out, variableValue.getVariable().getId());
+                ByteBuffer.wrap(value).putDouble(variableValue.getValue());
+                out.write(value, 0, value.length);
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Gives a session loaded without answer rows its answers, decoded with the possible answers and variables of the
+     * catalog. Sessions with answer rows or already decoded are left as they are.
+     */
+    public static void decodeAnswers(Session session, QuestionnaireCatalog catalog) {
+        if (session.hasRelationalAnswers() || session.getDecodedAnswers() != null)
+            return;
+
+        session.setDecodedAnswers(decode(session.getEncodedAnswers()).toAnswers(session, catalog));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not encoded answers
+     */
+    public static EncodedAnswers decode(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+
+        try {
+            byte version = in.get();
+            if (version != FORMAT_VERSION)
+                throw new IllegalArgumentException("Unknown encoded answers format " + version);
+
+            long answerCount = readVarLong(in);
+            // every answer takes at least 2 bytes
+            if (answerCount < 0 || answerCount > in.remaining() / 2)
+                throw new IllegalArgumentException("Truncated encoded answers");
+
+            long[] possibleAnswerIds = new long[(int) answerCount];
+            int[] variableStarts = new int[(int) answerCount + 1];
+            // every variable takes at least 9 bytes, so the arrays are trimmed once the count is known
+            long[] variableIds = new long[in.remaining() / 9];
+            double[] values = new double[variableIds.length];
+
+            int variableCount = 0;
+            for (int i = 0; i < answerCount; i++) {
+                possibleAnswerIds[i] = readVarLong(in);
+                int answerVariableCount = (int) readVarLong(in);
+                variableStarts[i] = variableCount;
+
+                for (int j = 0; j < answerVariableCount; j++) {
+                    variableIds[variableCount] = readVarLong(in);
+                    values[variableCount] = in.getDouble();
+                    variableCount++;
+                }
+            }
+            variableStarts[(int) answerCount] = variableCount;
+
+            if (in.hasRemaining())
+                throw new IllegalArgumentException("Encoded answers have " + in.remaining() + " trailing bytes");
+
+            return new EncodedAnswers(possibleAnswerIds, variableStarts,
+                    Arrays.copyOf(variableIds, variableCount), Arrays.copyOf(values, variableCount));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated encoded answers", e);
+        }
+    }
+
+    // unsigned LEB128: 7 bits per byte, low bits first, high bit set on all bytes but the last
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IllegalArgumentException("Malformed varint in encoded answers");
+    }
+}
@@ -10,4 +10,11 @@ public class CalculatorService {
     public ResultBreakdown calculate(Session session) {
         return ResultBreakdown.fromSession(session);
     }
+
+    /**
+     * Only the results of the breakdown, for callers that don't show the answers.
+     */
+    public ResultBreakdown calculateScore(Session session) {
+        return ResultBreakdown.fromSession(session, true);
+    }
 }
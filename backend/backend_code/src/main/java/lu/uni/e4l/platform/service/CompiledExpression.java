@@ -0,0 +1,267 @@
+package lu.uni.e4l.platform.service;
+
+import lu.uni.e4l.platform.model.VariableValue;
+
+import java.util.*;
+
+/**
+ * Immutable form of a formula produced by {@link ExpressionEvaluator#compile(String)}.
+ * Instructions are stored in reverse polish order, numeric literals are already parsed and variables
+ * are referenced by slot index (see {@link #getVariableNames()}).
+ */
+public final class CompiledExpression {
+
+    private static final ThreadLocal<double[]> STACK = ThreadLocal.withInitial(() -> new double[16]);
+
+    private final String source;
+    private final String[] variableNames;
+    private final Instruction[] instructions;
+    private final int maxStackDepth;
+    private final DoubleFormula generated;
+
+    CompiledExpression(String source, String[] variableNames, Instruction[] instructions, int maxStackDepth) {
+        this(source, variableNames, instructions, maxStackDepth, null);
+    }
+
+    private CompiledExpression(String source, String[] variableNames, Instruction[] instructions, int maxStackDepth,
+                               DoubleFormula generated) {
+        this.source = source;
+        this.variableNames = variableNames;
+        this.instructions = instructions;
+        this.maxStackDepth = maxStackDepth;
+        this.generated = generated;
+    }
+
+    /**
+     * Returns this expression executed by the given backend.
+     *
+     * @throws IllegalStateException if the bytecode of the formula cannot be generated
+     */
+    public CompiledExpression withBackend(FormulaBackend backend) {
+        if (backend == getBackend())
+            return this;
+
+        DoubleFormula formula = backend == FormulaBackend.BYTECODE ? FormulaClassGenerator.generate(this) : null;
+        return new CompiledExpression(source, variableNames, instructions, maxStackDepth, formula);
+    }
+
+    public FormulaBackend getBackend() {
+        return generated == null ? FormulaBackend.INTERPRETER : FormulaBackend.BYTECODE;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public List<String> getVariableNames() {
+        return Collections.unmodifiableList(Arrays.asList(variableNames));
+    }
+
+    public int getVariableCount() {
+        return variableNames.length;
+    }
+
+    public int slotOf(String variableName) {
+        for (int i = 0; i < variableNames.length; i++) {
+            if (variableNames[i].equals(variableName))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Binds variable values to the slots of this expression by variable name. A slot with no matching value
+     * takes its value from {@code defaults}; if there is none the expression cannot be evaluated.
+     */
+    public double[] bind(Collection<VariableValue> variables, Map<String, Double> defaults) {
+        double[] values = new double[variableNames.length];
+
+        for (int slot = 0; slot < variableNames.length; slot++) {
+            values[slot] = valueOf(slot, variables, defaults);
+        }
+
+        return values;
+    }
+
+    /**
+     * Same as {@link #bind(Collection, Map)} but writes the values into row {@code row} of slot-indexed columns,
+     * as used by {@link #evaluateColumns(double[][], int)}.
+     */
+    public void bind(Collection<VariableValue> variables, Map<String, Double> defaults, double[][] columns, int row) {
+        for (int slot = 0; slot < variableNames.length; slot++) {
+            columns[slot][row] = valueOf(slot, variables, defaults);
+        }
+    }
+
+    /**
+     * Same as {@link #bind(Collection, Map)} for the variables of answer {@code answer} of encoded answers, named by
+     * the variables of the catalog.
+     */
+    public double[] bind(EncodedAnswers answers, int answer, QuestionnaireCatalog catalog, Map<String, Double> defaults) {
+        double[] values = new double[variableNames.length];
+        int start = answers.variableStart(answer);
+        int end = answers.variableStart(answer + 1);
+
+        for (int slot = 0; slot < variableNames.length; slot++) {
+            values[slot] = valueOf(slot, answers, start, end, catalog, defaults);
+        }
+
+        return values;
+    }
+
+    private double valueOf(int slot, Collection<VariableValue> variables, Map<String, Double> defaults) {
+        String name = variableNames[slot];
+
+        for (VariableValue variable : variables) {
+            if (name.equals(variable.getVariable().getName()))
+                return variable.getValue();
+        }
+
+        Double value = defaults.get(name);
+        if (value == null)
+            throw new ExpressionEvaluator.InvalidExpressionException("invalid token " + name);
+
+        return value;
+    }
+
+    private double valueOf(int slot, EncodedAnswers answers, int start, int end, QuestionnaireCatalog catalog,
+                           Map<String, Double> defaults) {
+        String name = variableNames[slot];
+
+        for (int i = start; i < end; i++) {
+            if (name.equals(catalog.getVariable(answers.getVariableId(i)).getName()))
+                return answers.getValue(i);
+        }
+
+        Double value = defaults.get(name);
+        if (value == null)
+            throw new ExpressionEvaluator.InvalidExpressionException("invalid token " + name);
+
+        return value;
+    }
+
+    /**
+     * @param values variable values indexed by slot
+     */
+    public double evaluate(double[] values) {
+        if (generated != null)
+            return generated.eval(values);
+
+        return interpret(values);
+    }
+
+    /**
+     * Evaluates the expression over many rows at once.
+     *
+     * @param columns one column of {@code rows} values per variable name
+     * @return the result of every row
+     */
+    public double[] evaluateColumns(Map<String, double[]> columns, int rows) {
+        double[][] columnsBySlot = new double[variableNames.length][];
+
+        for (int slot = 0; slot < variableNames.length; slot++) {
+            columnsBySlot[slot] = columns.get(variableNames[slot]);
+            if (columnsBySlot[slot] == null)
+                throw new ExpressionEvaluator.InvalidExpressionException("invalid token " + variableNames[slot]);
+        }
+
+        return evaluateColumns(columnsBySlot, rows);
+    }
+
+    /**
+     * Evaluates the expression over many rows at once, one instruction at a time for the whole column, which gives
+     * the same results as {@link #evaluate(double[])} row by row.
+     *
+     * @param columns variable values columns indexed by slot, each with at least {@code rows} values
+     * @return the result of every row
+     */
+    public double[] evaluateColumns(double[][] columns, int rows) {
+        double[][] stack = new double[maxStackDepth][];
+        int top = 0;
+
+        for (Instruction instruction : instructions) {
+            switch (instruction.opcode) {
+                case Instruction.CONSTANT:
+                    double[] constant = new double[rows];
+                    Arrays.fill(constant, instruction.constant);
+                    stack[top++] = constant;
+                    break;
+                case Instruction.VARIABLE:
+                    stack[top++] = Arrays.copyOf(columns[instruction.slot], rows);
+                    break;
+                default:
+                    top = instruction.operator.applyColumns(stack, top, rows);
+            }
+        }
+
+        return stack[0];
+    }
+
+    /**
+     * Evaluates the expression on a primitive operand stack. The stack is a per-thread scratch buffer, so in
+     * steady state an evaluation does not allocate.
+     */
+    double interpret(double[] values) {
+        double[] stack = STACK.get();
+        if (stack.length < maxStackDepth) {
+            stack = new double[maxStackDepth];
+            STACK.set(stack);
+        }
+
+        int top = 0;
+
+        for (Instruction instruction : instructions) {
+            switch (instruction.opcode) {
+                case Instruction.CONSTANT:
+                    stack[top++] = instruction.constant;
+                    break;
+                case Instruction.VARIABLE:
+                    stack[top++] = values[instruction.slot];
+                    break;
+                default:
+                    top = instruction.operator.apply(stack, top);
+            }
+        }
+
+        return stack[0];
+    }
+
+    Instruction[] getInstructions() {
+        return instructions;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    static final class Instruction {
+        static final int CONSTANT = 0;
+        static final int VARIABLE = 1;
+        static final int OPERATOR = 2;
+
+        final int opcode;
+        final double constant;
+        final int slot;
+        final ExpressionEvaluator.Operator operator;
+
+        private Instruction(int opcode, double constant, int slot, ExpressionEvaluator.Operator operator) {
+            this.opcode = opcode;
+            this.constant = constant;
+            this.slot = slot;
+            this.operator = operator;
+        }
+
+        static Instruction constant(double value) {
+            return new Instruction(CONSTANT, value, -1, null);
+        }
+
+        static Instruction variable(int slot) {
+            return new Instruction(VARIABLE, 0, slot, null);
+        }
+
+        static Instruction operator(ExpressionEvaluator.Operator operator) {
+            return new Instruction(OPERATOR, 0, -1, operator);
+        }
+    }
+}
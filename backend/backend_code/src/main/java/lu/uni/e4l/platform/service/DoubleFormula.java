@@ -0,0 +1,9 @@
+package lu.uni.e4l.platform.service;
+
+/**
+ * Formula evaluated over variable values indexed by slot (see {@link CompiledExpression#getVariableNames()}).
+ */
+public interface DoubleFormula {
+
+    double eval(double[] vars);
+}
@@ -0,0 +1,91 @@
+package lu.uni.e4l.platform.service;
+
+import lombok.extern.slf4j.Slf4j;
+import lu.uni.e4l.platform.model.Answer;
+import lu.uni.e4l.platform.model.PossibleAnswer;
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.model.Variable;
+import lu.uni.e4l.platform.model.VariableValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Answers of a session as primitives, decoded by {@link AnswerCodec}: the possible answer id of each answer and the
+ * variable id/value pairs of answer {@code i} at indexes {@code variableStart(i)} to {@code variableStart(i + 1)}.
+ */
+@Slf4j
+public final class EncodedAnswers {
+
+    private final long[] possibleAnswerIds;
+    private final int[] variableStarts;
+    private final long[] variableIds;
+    private final double[] values;
+
+    EncodedAnswers(long[] possibleAnswerIds, int[] variableStarts, long[] variableIds, double[] values) {
+        this.possibleAnswerIds = possibleAnswerIds;
+        this.variableStarts = variableStarts;
+        this.variableIds = variableIds;
+        this.values = values;
+    }
+
+    public int size() {
+        return possibleAnswerIds.length;
+    }
+
+    public long getPossibleAnswerId(int answer) {
+        return possibleAnswerIds[answer];
+    }
+
+    public int variableStart(int answer) {
+        return variableStarts[answer];
+    }
+
+    public long getVariableId(int index) {
+        return variableIds[index];
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * Answer entities of the session with the possible answers and variables of the catalog. They are not managed:
+     * answers stored only in encoded form have no rows in the relational tables. Answers and variable values that
+     * are no longer in the questionnaire are left out, so that the other sessions can still be listed.
+     */
+    public List<Answer> toAnswers(Session session, QuestionnaireCatalog catalog) {
+        List<Answer> answers = new ArrayList<>(size());
+
+        for (int i = 0; i < size(); i++) {
+            PossibleAnswer possibleAnswer = catalog.getPossibleAnswer(possibleAnswerIds[i]);
+            if (possibleAnswer == null) {
+                log.warn("Session id={} refers to possible answer id={}, which is not in the questionnaire",
+                        session.getId(), possibleAnswerIds[i]);
+                continue;
+            }
+
+            Answer answer = new Answer();
+            answer.setSession(session);
+            answer.setPossibleAnswer(possibleAnswer);
+
+            for (int j = variableStarts[i]; j < variableStarts[i + 1]; j++) {
+                Variable variable = catalog.getVariable(variableIds[j]);
+                if (variable == null) {
+                    log.warn("Session id={} refers to variable id={}, which is not in the questionnaire",
+                            session.getId(), variableIds[j]);
+                    continue;
+                }
+
+                VariableValue variableValue = new VariableValue();
+                variableValue.setVariable(variable);
+                variableValue.setValue(values[j]);
+                answer.getVariableValues().add(variableValue);
+            }
+
+            answers.add(answer);
+        }
+
+        return answers;
+    }
+}
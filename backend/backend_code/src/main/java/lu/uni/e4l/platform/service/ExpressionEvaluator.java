@@ -4,7 +4,9 @@ import lombok.AllArgsConstructor;
 import lu.uni.e4l.platform.model.VariableValue;
 
 import java.util.*;
-import java.util.function.Function;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public class ExpressionEvaluator {
@@ -12,17 +14,17 @@ public class ExpressionEvaluator {
     private static Map<String, Operator> operators = new HashMap<>();
 
     static {
-        operators.put("sin", new Operator("sin", 6, 1, (x) -> Math.sin(x.get(0))));
-        operators.put("abs", new Operator("abs", 6, 1, (x) -> Math.abs(x.get(0))));
-        operators.put("floor", new Operator("floor", 6, 1, (x) -> Math.floor(x.get(0))));
-        operators.put("ceil", new Operator("ceil", 6, 1, (x) -> Math.ceil(x.get(0))));
-        operators.put("round", new Operator("round", 6, 1, (x) -> (double) Math.round(x.get(0))));
-        operators.put("/", new Operator("/", 5, 2, (x) -> x.get(0) / x.get(1)));
-        operators.put("*", new Operator("*", 5, 2, (x) -> x.get(0) * x.get(1)));
-        operators.put("+", new Operator("+", 4, 2, (x) -> x.get(0) + x.get(1)));
-        operators.put("-", new Operator("-", 4, 2, (x) -> x.get(0) - x.get(1)));
-        operators.put("(", new Operator("(", 0, 0, null));
-        operators.put(")", new Operator(")", 0, 0, null));
+        operators.put("sin", Operator.unary("sin", 6, Math::sin));
+        operators.put("abs", Operator.unary("abs", 6, Math::abs));
+        operators.put("floor", Operator.unary("floor", 6, Math::floor));
+        operators.put("ceil", Operator.unary("ceil", 6, Math::ceil));
+        operators.put("round", Operator.unary("round", 6, (x) -> (double) Math.round(x)));
+        operators.put("/", Operator.binary("/", 5, (x, y) -> x / y));
+        operators.put("*", Operator.binary("*", 5, (x, y) -> x * y));
+        operators.put("+", Operator.binary("+", 4, (x, y) -> x + y));
+        operators.put("-", Operator.binary("-", 4, (x, y) -> x - y));
+        operators.put("(", new Operator("(", 0, 0, null, null));
+        operators.put(")", new Operator(")", 0, 0, null, null));
     }
 
     public static List<String> tokenize(String expr) {
@@ -55,7 +57,15 @@ public class ExpressionEvaluator {
         return s.matches("^-?\\d+(\\.\\d+)?$");
     }
 
+    private static boolean isVariableName(String s) {
+        return s.matches("^[A-Za-z_][A-Za-z0-9_]*$");
+    }
+
     public static Queue<String> toReverePolishNotation(List<String> tokens) {
+        return toReverePolishNotation(tokens, ExpressionEvaluator::isNumber);
+    }
+
+    private static Queue<String> toReverePolishNotation(List<String> tokens, Predicate<String> isOperand) {
 
         if (!checkParenthesis(tokens))
             throw new InvalidExpressionException("expression has invalid parenthesis");
@@ -86,7 +96,7 @@ public class ExpressionEvaluator {
                 continue;
             }
 
-            if (isNumber(token)) {
+            if (isOperand.test(token)) {
                 rpn.add(token);
                 continue;
             }
@@ -102,30 +112,26 @@ public class ExpressionEvaluator {
     }
 
     public static Double evaluate(Queue<String> rpn) {
-        Stack<Double> numbers = new Stack<>();
+        double[] numbers = new double[rpn.size()];
+        int top = 0;
 
         for (String token : rpn) {
             if (isNumber(token))
-                numbers.push(Double.parseDouble(token));
+                numbers[top++] = Double.parseDouble(token);
             else {
                 Operator operator = operators.get(token);
 
-                if (numbers.size() < operator.argumentsNumber)
+                if (top < operator.argumentsNumber)
                     throw new InvalidExpressionException("invalid number of arguments for the operator (not enough)");
 
-                List<Double> args = new ArrayList<>();
-                for (int i = 0; i < operator.argumentsNumber; i++) {
-                    args.add(numbers.pop());
-                }
-                Collections.reverse(args);
-                numbers.push(operator.function.apply(args));
+                top = operator.apply(numbers, top);
             }
         }
 
-        if (numbers.size() != 1)
+        if (top != 1)
             throw new InvalidExpressionException("invalid number of arguments for the operator (some not used)");
 
-        return numbers.pop();
+        return numbers[0];
     }
 
     private static boolean checkParenthesis(List<String> tokens) {
@@ -155,12 +161,136 @@ public class ExpressionEvaluator {
         return evaluate(toReverePolishNotation(replaceVariablesWithValues(tokenize(expr), variables)));
     }
 
+    /**
+     * Parses the expression once into a {@link CompiledExpression}: numeric literals are resolved and every
+     * variable is bound to a slot index, so the result can be evaluated many times without re-tokenizing.
+     *
+     * @throws InvalidExpressionException if the expression is malformed
+     */
+    public static CompiledExpression compile(String expr) {
+        Queue<String> rpn = toReverePolishNotation(tokenize(expr), t -> isNumber(t) || isVariableName(t));
+
+        List<String> variableNames = new ArrayList<>();
+        List<CompiledExpression.Instruction> instructions = new ArrayList<>(rpn.size());
+        int depth = 0;
+        int maxDepth = 0;
+
+        for (String token : rpn) {
+            if (isNumber(token)) {
+                instructions.add(CompiledExpression.Instruction.constant(Double.parseDouble(token)));
+                depth++;
+            } else if (operators.containsKey(token)) {
+                Operator operator = operators.get(token);
+
+                if (depth < operator.argumentsNumber)
+                    throw new InvalidExpressionException("invalid number of arguments for the operator (not enough)");
+
+                instructions.add(CompiledExpression.Instruction.operator(operator));
+                depth = depth - operator.argumentsNumber + 1;
+            } else {
+                int slot = variableNames.indexOf(token);
+                if (slot < 0) {
+                    slot = variableNames.size();
+                    variableNames.add(token);
+                }
+                instructions.add(CompiledExpression.Instruction.variable(slot));
+                depth++;
+            }
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        if (depth != 1)
+            throw new InvalidExpressionException("invalid number of arguments for the operator (some not used)");
+
+        return new CompiledExpression(expr, variableNames.toArray(new String[0]),
+                instructions.toArray(new CompiledExpression.Instruction[0]), maxDepth);
+    }
+
     @AllArgsConstructor
-    private static class Operator {
-        private String sign;
-        private int precedence;
-        private int argumentsNumber;
-        private Function<List<Double>, Double> function;
+    static class Operator {
+        final String sign;
+        final int precedence;
+        final int argumentsNumber;
+        final DoubleUnaryOperator unaryFunction;
+        final DoubleBinaryOperator binaryFunction;
+
+        static Operator unary(String sign, int precedence, DoubleUnaryOperator function) {
+            return new Operator(sign, precedence, 1, function, null);
+        }
+
+        static Operator binary(String sign, int precedence, DoubleBinaryOperator function) {
+            return new Operator(sign, precedence, 2, null, function);
+        }
+
+        /**
+         * Applies the operator to the top of the operand stack in place.
+         *
+         * @return the new stack size
+         */
+        int apply(double[] stack, int top) {
+            if (argumentsNumber == 1) {
+                stack[top - 1] = unaryFunction.applyAsDouble(stack[top - 1]);
+                return top;
+            }
+            stack[top - 2] = binaryFunction.applyAsDouble(stack[top - 2], stack[top - 1]);
+            return top - 1;
+        }
+
+        /**
+         * Column-wise variant of {@link #apply(double[], int)}: every stack element is a column of {@code rows}
+         * values and the result is written into the first argument column. The common operators have dedicated
+         * loops so that the JIT can vectorize them.
+         *
+         * @return the new stack size
+         */
+        int applyColumns(double[][] stack, int top, int rows) {
+            if (argumentsNumber == 1) {
+                double[] x = stack[top - 1];
+                switch (sign) {
+                    case "abs":
+                        for (int i = 0; i < rows; i++)
+                            x[i] = Math.abs(x[i]);
+                        break;
+                    case "floor":
+                        for (int i = 0; i < rows; i++)
+                            x[i] = Math.floor(x[i]);
+                        break;
+                    case "ceil":
+                        for (int i = 0; i < rows; i++)
+                            x[i] = Math.ceil(x[i]);
+                        break;
+                    default:
+                        for (int i = 0; i < rows; i++)
+                            x[i] = unaryFunction.applyAsDouble(x[i]);
+                }
+                return top;
+            }
+
+            double[] x = stack[top - 2];
+            double[] y = stack[top - 1];
+            switch (sign) {
+                case "+":
+                    for (int i = 0; i < rows; i++)
+                        x[i] = x[i] + y[i];
+                    break;
+                case "-":
+                    for (int i = 0; i < rows; i++)
+                        x[i] = x[i] - y[i];
+                    break;
+                case "*":
+                    for (int i = 0; i < rows; i++)
+                        x[i] = x[i] * y[i];
+                    break;
+                case "/":
+                    for (int i = 0; i < rows; i++)
+                        x[i] = x[i] / y[i];
+                    break;
+                default:
+                    for (int i = 0; i < rows; i++)
+                        x[i] = binaryFunction.applyAsDouble(x[i], y[i]);
+            }
+            return top - 1;
+        }
     }
 
     protected static class InvalidExpressionException extends RuntimeException {
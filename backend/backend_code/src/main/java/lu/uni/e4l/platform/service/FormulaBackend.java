@@ -0,0 +1,16 @@
+package lu.uni.e4l.platform.service;
+
+/**
+ * How compiled formulas are executed.
+ */
+public enum FormulaBackend {
+    /**
+     * The instruction list is interpreted on a primitive operand stack.
+     */
+    INTERPRETER,
+    /**
+     * Each formula is generated as a hidden class implementing {@link DoubleFormula}, so the JIT can inline the
+     * arithmetic. Falls back to the interpreter for a formula whose class cannot be generated.
+     */
+    BYTECODE
+}
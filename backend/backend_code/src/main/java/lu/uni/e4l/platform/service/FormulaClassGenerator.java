@@ -0,0 +1,95 @@
+package lu.uni.e4l.platform.service;
+
+import org.springframework.asm.ClassWriter;
+import org.springframework.asm.MethodVisitor;
+import org.springframework.asm.Opcodes;
+import org.springframework.asm.Type;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Generates a hidden class implementing {@link DoubleFormula} whose {@code eval} method is the straight-line
+ * bytecode of a {@link CompiledExpression}.
+ */
+class FormulaClassGenerator {
+
+    private static final String CLASS_NAME = "lu/uni/e4l/platform/service/GeneratedFormula";
+    private static final String MATH = "java/lang/Math";
+
+    static DoubleFormula generate(CompiledExpression expression) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(toBytecode(expression), true);
+            return (DoubleFormula) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot generate class for formula '" + expression.getSource() + "'", e);
+        }
+    }
+
+    private static byte[] toBytecode(CompiledExpression expression) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V11, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, CLASS_NAME, null,
+                "java/lang/Object", new String[]{Type.getInternalName(DoubleFormula.class)});
+
+        MethodVisitor constructor = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        constructor.visitInsn(Opcodes.RETURN);
+        constructor.visitMaxs(0, 0);
+        constructor.visitEnd();
+
+        MethodVisitor eval = cw.visitMethod(Opcodes.ACC_PUBLIC, "eval", "([D)D", null, null);
+        eval.visitCode();
+        for (CompiledExpression.Instruction instruction : expression.getInstructions()) {
+            switch (instruction.opcode) {
+                case CompiledExpression.Instruction.CONSTANT:
+                    eval.visitLdcInsn(instruction.constant);
+                    break;
+                case CompiledExpression.Instruction.VARIABLE:
+                    eval.visitVarInsn(Opcodes.ALOAD, 1);
+                    eval.visitLdcInsn(instruction.slot);
+                    eval.visitInsn(Opcodes.DALOAD);
+                    break;
+                default:
+                    visitOperator(eval, instruction.operator.sign);
+            }
+        }
+        eval.visitInsn(Opcodes.DRETURN);
+        eval.visitMaxs(0, 0);
+        eval.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void visitOperator(MethodVisitor mv, String sign) {
+        switch (sign) {
+            case "+":
+                mv.visitInsn(Opcodes.DADD);
+                break;
+            case "-":
+                mv.visitInsn(Opcodes.DSUB);
+                break;
+            case "*":
+                mv.visitInsn(Opcodes.DMUL);
+                break;
+            case "/":
+                mv.visitInsn(Opcodes.DDIV);
+                break;
+            case "round":
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, MATH, "round", "(D)J", false);
+                mv.visitInsn(Opcodes.L2D);
+                break;
+            case "sin":
+            case "abs":
+            case "floor":
+            case "ceil":
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, MATH, sign, "(D)D", false);
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported operator " + sign);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package lu.uni.e4l.platform.service;
+
+import lombok.extern.slf4j.Slf4j;
+import lu.uni.e4l.platform.model.PossibleAnswer;
+import lu.uni.e4l.platform.model.Question;
+import lu.uni.e4l.platform.model.Questionnaire;
+import lu.uni.e4l.platform.model.Variable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Compiled formulas of the possible answers, keyed by possible answer id.
+ * Filled when the questionnaire is loaded; formulas of unsaved possible answers are compiled on every call.
+ */
+@Slf4j
+public class FormulaRegistry {
+
+    /**
+     * Values used for formula variables that an answer does not define ('type' is an optional multiplier).
+     */
+    public static final Map<String, Double> DEFAULT_VARIABLE_VALUES = Collections.singletonMap("type", 1.0);
+
+    private static final Map<Long, CompiledExpression> expressions = new ConcurrentHashMap<>();
+
+    private static volatile FormulaBackend backend = FormulaBackend.INTERPRETER;
+
+    private static volatile int version = 1;
+
+    public static CompiledExpression get(PossibleAnswer possibleAnswer) {
+        if (possibleAnswer.getId() == 0)
+            return ExpressionEvaluator.compile(possibleAnswer.getFormula());
+
+        CompiledExpression expression = expressions.get(possibleAnswer.getId());
+
+        if (expression == null || !expression.getSource().equals(possibleAnswer.getFormula())) {
+            if (expression != null)
+                ScoreCache.invalidateAll();
+
+            expression = withBackend(ExpressionEvaluator.compile(possibleAnswer.getFormula()), backend);
+            expressions.put(possibleAnswer.getId(), expression);
+        }
+
+        return expression;
+    }
+
+    /**
+     * Number of the {@link lu.uni.e4l.platform.model.FormulaVersion} of the registered formulas.
+     */
+    public static int getVersion() {
+        return version;
+    }
+
+    public static void setVersion(int newVersion) {
+        version = newVersion;
+    }
+
+    /**
+     * Compiles a formula for a possible answer with the registry backend, without registering it.
+     *
+     * @throws IllegalStateException if the formula is malformed or uses a variable the possible answer does not declare
+     */
+    public static CompiledExpression compile(PossibleAnswer possibleAnswer, String formula) {
+        PossibleAnswer candidate = new PossibleAnswer(possibleAnswer.getName(), formula);
+        candidate.setVariables(possibleAnswer.getVariables());
+        return withBackend(compile(possibleAnswer.getQuestion(), candidate), backend);
+    }
+
+    public static FormulaBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Switches the backend of all registered formulas, so that both backends can be compared on live traffic.
+     */
+    public static void setBackend(FormulaBackend newBackend) {
+        backend = newBackend;
+        expressions.replaceAll((id, expression) -> withBackend(expression, newBackend));
+    }
+
+    /**
+     * Compiles the formulas of all possible answers of the questionnaire and replaces the registry content.
+     * Memoized scores are dropped.
+     *
+     * @throws IllegalStateException if a formula is malformed or uses a variable its possible answer does not declare
+     */
+    public static void register(Questionnaire questionnaire) {
+        Map<Long, CompiledExpression> compiled = new HashMap<>();
+
+        for (Question question : questionnaire.getQuestions()) {
+            for (PossibleAnswer possibleAnswer : question.getPossibleAnswers()) {
+                compiled.put(possibleAnswer.getId(), withBackend(compile(question, possibleAnswer), backend));
+            }
+        }
+
+        expressions.clear();
+        expressions.putAll(compiled);
+        ScoreCache.invalidateAll();
+    }
+
+    private static CompiledExpression withBackend(CompiledExpression expression, FormulaBackend backend) {
+        try {
+            return expression.withBackend(backend);
+        } catch (IllegalStateException e) {
+            log.warn("Formula '{}' is interpreted: {}", expression.getSource(), e.getMessage());
+            return expression.withBackend(FormulaBackend.INTERPRETER);
+        }
+    }
+
+    private static CompiledExpression compile(Question question, PossibleAnswer possibleAnswer) {
+        CompiledExpression expression;
+
+        try {
+            expression = ExpressionEvaluator.compile(possibleAnswer.getFormula());
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("Invalid formula '" + possibleAnswer.getFormula() + "' of answer '" +
+                    possibleAnswer.getName() + "' (question '" + questionName(question) + "'): " + e.getMessage(), e);
+        }
+
+        Set<String> declaredVariables = possibleAnswer.getVariables() == null ? Collections.emptySet() :
+                possibleAnswer.getVariables().stream()
+                        .map(Variable::getName)
+                        .collect(Collectors.toSet());
+
+        for (String variableName : expression.getVariableNames()) {
+            if (!declaredVariables.contains(variableName) && !DEFAULT_VARIABLE_VALUES.containsKey(variableName))
+                throw new IllegalStateException("Formula '" + possibleAnswer.getFormula() + "' of answer '" +
+                        possibleAnswer.getName() + "' (question '" + questionName(question) +
+                        "') uses undeclared variable '" + variableName + "'");
+        }
+
+        return expression;
+    }
+
+    private static String questionName(Question question) {
+        return question != null ? question.getName() : null;
+    }
+}
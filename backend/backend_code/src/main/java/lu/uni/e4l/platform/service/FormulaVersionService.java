@@ -0,0 +1,309 @@
+package lu.uni.e4l.platform.service;
+
+import lombok.extern.slf4j.Slf4j;
+import lu.uni.e4l.platform.exception.BadRequestException;
+import lu.uni.e4l.platform.exception.NotFoundException;
+import lu.uni.e4l.platform.model.*;
+import lu.uni.e4l.platform.model.dto.RescoringProgress;
+import lu.uni.e4l.platform.repository.FormulaVersionRepository;
+import lu.uni.e4l.platform.repository.PossibleAnswerRepository;
+import lu.uni.e4l.platform.repository.SessionRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Versions of the formulas. A new version is activated by a background job that rescores all sessions with it, by
+ * increasing id and in batches, storing the scores next to the current ones. The progress is saved with every batch,
+ * so an interrupted job resumes where it stopped (on startup). Once all sessions are rescored, the new scores
+ * replace the current ones and the formulas of the possible answers in one transaction.
+ */
+@Slf4j
+@Service
+public class FormulaVersionService {
+
+    private final FormulaVersionRepository formulaVersionRepository;
+    private final SessionRepository sessionRepository;
+    private final PossibleAnswerRepository possibleAnswerRepository;
+    private final QuestionnaireService questionnaireService;
+    private final SessionScoreMigrationService sessionScoreMigrationService;
+    private final PopulationAggregateService populationAggregateService;
+    private final ScoreRollupService scoreRollupService;
+    private final QuestionScoreService questionScoreService;
+    private final SeminarService seminarService;
+    private final ResultBreakdownCache resultBreakdownCache;
+    private final TransactionTemplate transactionTemplate;
+    private final int batchSize;
+
+    // one job at a time
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1), runnable -> {
+        Thread thread = new Thread(runnable, "formula-rescoring");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile RescoringProgress progress;
+
+    public FormulaVersionService(FormulaVersionRepository formulaVersionRepository,
+                                 SessionRepository sessionRepository,
+                                 PossibleAnswerRepository possibleAnswerRepository,
+                                 QuestionnaireService questionnaireService,
+                                 SessionScoreMigrationService sessionScoreMigrationService,
+                                 PopulationAggregateService populationAggregateService,
+                                 ScoreRollupService scoreRollupService,
+                                 QuestionScoreService questionScoreService,
+                                 SeminarService seminarService,
+                                 ResultBreakdownCache resultBreakdownCache,
+                                 TransactionTemplate transactionTemplate,
+                                 @Value("${e4l.rescoring.batch-size:500}") int batchSize) {
+        this.formulaVersionRepository = formulaVersionRepository;
+        this.sessionRepository = sessionRepository;
+        this.possibleAnswerRepository = possibleAnswerRepository;
+        this.questionnaireService = questionnaireService;
+        this.sessionScoreMigrationService = sessionScoreMigrationService;
+        this.populationAggregateService = populationAggregateService;
+        this.scoreRollupService = scoreRollupService;
+        this.questionScoreService = questionScoreService;
+        this.seminarService = seminarService;
+        this.resultBreakdownCache = resultBreakdownCache;
+        this.transactionTemplate = transactionTemplate;
+        this.batchSize = batchSize;
+    }
+
+    static FormulaVersion newVersion(int number, FormulaVersionStatus status, Map<Long, String> formulas) {
+        FormulaVersion version = new FormulaVersion();
+        version.setNumber(number);
+        version.setStatus(status);
+        version.setFormulas(new HashMap<>(formulas));
+        version.setCreatedDateTime(ZonedDateTime.now());
+        if (status == FormulaVersionStatus.ACTIVE)
+            version.setActivatedDateTime(version.getCreatedDateTime());
+        return version;
+    }
+
+    public List<FormulaVersion> getVersions() {
+        return formulaVersionRepository.findAllByOrderByNumberAsc();
+    }
+
+    /**
+     * Creates a pending version with the formulas of the active version, replaced by the given ones.
+     *
+     * @param formulas formula by possible answer id
+     */
+    public FormulaVersion createVersion(Map<Long, String> formulas) {
+        if (formulas == null || formulas.isEmpty())
+            throw new BadRequestException("Missing formulas");
+
+        return transactionTemplate.execute(status -> {
+            Map<Long, String> versionFormulas = new HashMap<>(getActiveVersion().getFormulas());
+
+            formulas.forEach((possibleAnswerId, formula) -> {
+                PossibleAnswer possibleAnswer = possibleAnswerRepository.findById(possibleAnswerId)
+                        .orElseThrow(() -> new BadRequestException("Possible answer id=" + possibleAnswerId + " was not found"));
+                try {
+                    FormulaRegistry.compile(possibleAnswer, formula);
+                } catch (IllegalStateException e) {
+                    throw new BadRequestException(e.getMessage());
+                }
+                versionFormulas.put(possibleAnswerId, formula);
+            });
+
+            int number = formulaVersionRepository.findFirstByOrderByNumberDesc().getNumber() + 1;
+            return formulaVersionRepository.save(newVersion(number, FormulaVersionStatus.PENDING, versionFormulas));
+        });
+    }
+
+    /**
+     * Starts rescoring all sessions with a pending version, in the background. The version is activated when done.
+     */
+    public synchronized RescoringProgress startRescoring(int number) {
+        transactionTemplate.executeWithoutResult(status -> {
+            FormulaVersion version = formulaVersionRepository.findByNumber(number);
+            if (version == null)
+                throw new NotFoundException("Formula version " + number + " was not found");
+            if (version.getStatus() != FormulaVersionStatus.PENDING && version.getStatus() != FormulaVersionStatus.RESCORING)
+                throw new BadRequestException("Formula version " + number + " is " + version.getStatus());
+            if (executor.getActiveCount() > 0 || !executor.getQueue().isEmpty())
+                throw new BadRequestException("Sessions are already being rescored");
+
+            version.setStatus(FormulaVersionStatus.RESCORING);
+        });
+
+        submit(number);
+        return progress;
+    }
+
+    public RescoringProgress getProgress() {
+        return progress;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void resumeRescoring() {
+        for (FormulaVersion version : formulaVersionRepository.findByStatus(FormulaVersionStatus.RESCORING)) {
+            log.info("Resuming the rescoring of formula version {} after session id={}", version.getNumber(),
+                    version.getLastRescoredSessionId());
+            submit(version.getNumber());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void submit(int number) {
+        RescoringProgress startedProgress = new RescoringProgress();
+        startedProgress.setFormulaVersion(number);
+        startedProgress.setRunning(true);
+        startedProgress.setStartedDateTime(ZonedDateTime.now());
+        progress = startedProgress;
+
+        try {
+            executor.execute(() -> rescore(number));
+        } catch (RejectedExecutionException e) {
+            throw new BadRequestException("Sessions are already being rescored");
+        }
+    }
+
+    private void rescore(int number) {
+        long startedNanos = System.nanoTime();
+
+        try {
+            Map<Long, CompiledExpression> expressions = new HashMap<>();
+            long[] counts = transactionTemplate.execute(status -> {
+                FormulaVersion version = formulaVersionRepository.findByNumber(number);
+                version.getFormulas().forEach((possibleAnswerId, formula) -> possibleAnswerRepository.findById(possibleAnswerId)
+                        .ifPresent(possibleAnswer -> expressions.put(possibleAnswerId, FormulaRegistry.compile(possibleAnswer, formula))));
+
+                return new long[]{version.getRescoredSessionCount(),
+                        sessionRepository.countByIdGreaterThan(version.getLastRescoredSessionId())};
+            });
+            long initiallyRescored = counts[0];
+            long totalSessionCount = counts[0] + counts[1];
+            int rescored;
+
+            RescoringProgress resumedProgress = copy(progress);
+            resumedProgress.setRescoredSessionCount(initiallyRescored);
+            resumedProgress.setTotalSessionCount(totalSessionCount);
+            progress = resumedProgress;
+
+            do {
+                rescored = transactionTemplate.execute(status -> {
+                    FormulaVersion version = formulaVersionRepository.findByNumber(number);
+                    List<Session> sessions = sessionRepository.findByIdGreaterThanOrderByIdAsc(
+                            version.getLastRescoredSessionId(), PageRequest.of(0, batchSize));
+
+                    for (Session session : sessions) {
+                        SessionScorer.scorePending(session, expressions, number);
+                    }
+                    sessionRepository.saveAll(sessions);
+
+                    if (!sessions.isEmpty()) {
+                        version.setLastRescoredSessionId(sessions.get(sessions.size() - 1).getId());
+                        version.setRescoredSessionCount(version.getRescoredSessionCount() + sessions.size());
+                    }
+                    return sessions.size();
+                });
+
+                RescoringProgress batchProgress = copy(progress);
+                batchProgress.setRescoredSessionCount(batchProgress.getRescoredSessionCount() + rescored);
+                // sessions saved during the job are rescored too
+                batchProgress.setTotalSessionCount(Math.max(totalSessionCount, batchProgress.getRescoredSessionCount()));
+                batchProgress.setSessionsPerSecond((batchProgress.getRescoredSessionCount() - initiallyRescored) * 1e9 /
+                        (System.nanoTime() - startedNanos));
+                progress = batchProgress;
+            } while (rescored == batchSize && !Thread.currentThread().isInterrupted());
+
+            if (Thread.currentThread().isInterrupted()) {
+                log.info("Rescoring with formula version {} interrupted, it resumes on the next start", number);
+
+                RescoringProgress interruptedProgress = copy(progress);
+                interruptedProgress.setRunning(false);
+                progress = interruptedProgress;
+                return;
+            }
+
+            activate(number);
+
+            RescoringProgress finishedProgress = copy(progress);
+            finishedProgress.setRunning(false);
+            finishedProgress.setFinishedDateTime(ZonedDateTime.now());
+            progress = finishedProgress;
+            log.info("Rescored {} sessions with formula version {} in {} s, version activated",
+                    finishedProgress.getRescoredSessionCount(), number, (System.nanoTime() - startedNanos) / 1_000_000_000);
+        } catch (RuntimeException e) {
+            log.error("Rescoring with formula version {} failed, it resumes on the next start", number, e);
+
+            RescoringProgress failedProgress = copy(progress);
+            failedProgress.setRunning(false);
+            failedProgress.setError(e.getMessage());
+            progress = failedProgress;
+        }
+    }
+
+    /**
+     * Replaces the scores and formulas by those of the version, then rebuilds everything derived from the scores.
+     */
+    private void activate(int number) {
+        transactionTemplate.executeWithoutResult(status -> {
+            FormulaVersion version = formulaVersionRepository.findByNumber(number);
+
+            sessionRepository.activatePendingAnswerScores(number);
+            sessionRepository.activatePendingTotalScores(number);
+
+            version.getFormulas().forEach((possibleAnswerId, formula) -> possibleAnswerRepository.findById(possibleAnswerId)
+                    .ifPresent(possibleAnswer -> possibleAnswer.setFormula(formula)));
+
+            for (FormulaVersion activeVersion : formulaVersionRepository.findByStatus(FormulaVersionStatus.ACTIVE)) {
+                activeVersion.setStatus(FormulaVersionStatus.RETIRED);
+            }
+            version.setStatus(FormulaVersionStatus.ACTIVE);
+            version.setActivatedDateTime(ZonedDateTime.now());
+
+            // sessions saved after the last batch were scored with the previous version
+            sessionRepository.clearScoresNotOfVersion(number);
+        });
+
+        questionnaireService.reload();
+        FormulaRegistry.setVersion(number);
+
+        // again for sessions scored with the previous formulas while they were replaced
+        transactionTemplate.executeWithoutResult(status -> sessionRepository.clearScoresNotOfVersion(number));
+        sessionScoreMigrationService.migrateSessionScores();
+
+        resultBreakdownCache.invalidateAll();
+        populationAggregateService.rebuildFromScores();
+        scoreRollupService.rebuild();
+        questionScoreService.rebuild();
+        seminarService.rebuildResultSnapshots();
+    }
+
+    private FormulaVersion getActiveVersion() {
+        return formulaVersionRepository.findByStatus(FormulaVersionStatus.ACTIVE).get(0);
+    }
+
+    private static RescoringProgress copy(RescoringProgress progress) {
+        RescoringProgress copy = new RescoringProgress();
+        copy.setFormulaVersion(progress.getFormulaVersion());
+        copy.setRunning(progress.isRunning());
+        copy.setRescoredSessionCount(progress.getRescoredSessionCount());
+        copy.setTotalSessionCount(progress.getTotalSessionCount());
+        copy.setSessionsPerSecond(progress.getSessionsPerSecond());
+        copy.setStartedDateTime(progress.getStartedDateTime());
+        copy.setFinishedDateTime(progress.getFinishedDateTime());
+        copy.setError(progress.getError());
+        return copy;
+    }
+}
@@ -0,0 +1,46 @@
+package lu.uni.e4l.platform.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+
+/**
+ * Moves the id sequences of {@link lu.uni.e4l.platform.model.PooledIdGenerator} past the ids already in their table,
+ * which were taken from the shared {@code hibernate_sequence}. Runs at startup, after the schema update created the
+ * sequence tables and before requests are served; once a sequence is past the ids it is left unchanged.
+ */
+@Slf4j
+@Service
+@DependsOn("entityManagerFactory")
+public class IdSequenceMigrationService {
+
+    // entity table -> sequence table
+    private static final String[][] SEQUENCES = {
+            {"session", "session_seq"},
+            {"answer", "answer_seq"},
+            {"variable_value", "variable_value_seq"}
+    };
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public IdSequenceMigrationService(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @PostConstruct
+    public void migrateIdSequences() {
+        for (String[] sequence : SEQUENCES) {
+            Long maxId = jdbcTemplate.queryForObject("select max(id) from " + sequence[0], Long.class);
+            if (maxId == null)
+                continue;
+
+            int updated = jdbcTemplate.update("update " + sequence[1] + " set next_val = ? where next_val <= ?",
+                    maxId + 1, maxId);
+            if (updated > 0)
+                log.info("Moved the id sequence {} to {}", sequence[1], maxId + 1);
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package lu.uni.e4l.platform.service;
+
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import lu.uni.e4l.platform.model.PopulationAggregate;
+import lu.uni.e4l.platform.model.Seminar;
+import lu.uni.e4l.platform.model.SeminarScoreDigest;
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.repository.PopulationAggregateRepository;
+import lu.uni.e4l.platform.repository.SeminarRepository;
+import lu.uni.e4l.platform.repository.SeminarScoreDigestRepository;
+import lu.uni.e4l.platform.repository.SessionRepository;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.nio.ByteBuffer;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running count, sum and clusters of the total scores of all sessions, so that the population statistics of
+ * a result page are read in constant time. Updated on every saved or deleted session, persisted periodically
+ * and rebuilt from the database on startup. A rebuild reads the database next to the current aggregate, which
+ * keeps serving reads until it is replaced.
+ * <p>
+ * Percentile ranks are answered by t-digests (a few KB each) of the total scores of all sessions and of the
+ * sessions of each seminar. Seminar digests are loaded or built the first time they are needed.
+ */
+@Slf4j
+@Service
+public class PopulationAggregateService {
+
+    /**
+     * Number of clusters: [20, 40), [40, 60), ..., [280, 300) and [300, ∞). Scores below 20 are not clustered.
+     */
+    public static final int CLUSTERS = 15;
+
+    private static final double DIGEST_COMPRESSION = 100;
+
+    private static final int BATCH_SIZE = 1000;
+
+    // replaced with the digest, while holding digestLock
+    private volatile Totals totals = new Totals();
+    private final AtomicLong version = new AtomicLong();
+    private volatile long persistedVersion = -1;
+    private volatile long lastModified = System.currentTimeMillis();
+
+    // t-digests are not thread-safe: seminar digests are used while holding their own lock, the population digest
+    // while holding digestLock, which also guards its replacement
+    private final Object digestLock = new Object();
+    private TDigest digest = newDigest();
+    // scores added while the aggregate is rebuilt from the database, null when it is not being rebuilt
+    private List<AddedScore> addedDuringRebuild;
+    private final Map<Long, TDigest> seminarDigests = new ConcurrentHashMap<>();
+    private final Set<Long> modifiedSeminarDigests = ConcurrentHashMap.newKeySet();
+
+    private final SessionRepository sessionRepository;
+    private final PopulationAggregateRepository populationAggregateRepository;
+    private final SeminarRepository seminarRepository;
+    private final SeminarScoreDigestRepository seminarScoreDigestRepository;
+    private final SessionScoreMigrationService sessionScoreMigrationService;
+
+    // depends on QuestionnaireService so that formulas are registered before sessions without a score are scored
+    public PopulationAggregateService(SessionRepository sessionRepository,
+                                      PopulationAggregateRepository populationAggregateRepository,
+                                      SeminarRepository seminarRepository,
+                                      SeminarScoreDigestRepository seminarScoreDigestRepository,
+                                      SessionScoreMigrationService sessionScoreMigrationService,
+                                      QuestionnaireService questionnaireService) {
+        this.sessionRepository = sessionRepository;
+        this.populationAggregateRepository = populationAggregateRepository;
+        this.seminarRepository = seminarRepository;
+        this.seminarScoreDigestRepository = seminarScoreDigestRepository;
+        this.sessionScoreMigrationService = sessionScoreMigrationService;
+    }
+
+    /**
+     * @return the cluster of a total score, or -1 if the score is below the first cluster
+     */
+    public static int cluster(double score) {
+        score = SessionScorer.roundScore(score);
+
+        if (score < 20)
+            return -1;
+
+        for (int i = 0; i < CLUSTERS - 1; i++) {
+            if (score < 40 + 20 * i)
+                return i;
+        }
+
+        return CLUSTERS - 1;
+    }
+
+    /**
+     * Adds a saved session to the population and to the digest of its seminar.
+     */
+    public void add(Session session) {
+        add(session.getId(), session.getTotalScore());
+
+        if (session.getSeminar() != null) {
+            seminarDigests.computeIfPresent(session.getSeminar().getId(), (id, seminarDigest) -> {
+                synchronized (seminarDigest) {
+                    seminarDigest.add(session.getTotalScore());
+                }
+                return seminarDigest;
+            });
+            modifiedSeminarDigests.add(session.getSeminar().getId());
+        }
+    }
+
+    public void add(double totalScore) {
+        add(null, totalScore);
+    }
+
+    private void add(Long sessionId, double totalScore) {
+        // added to the totals and the digest being replaced, or to the new ones
+        synchronized (digestLock) {
+            totals.add(totalScore);
+            digest.add(totalScore);
+            if (addedDuringRebuild != null)
+                addedDuringRebuild.add(new AddedScore(sessionId, totalScore));
+        }
+
+        modified();
+    }
+
+    /**
+     * Removes the deleted sessions of a seminar. Values cannot be removed from a t-digest, so the aggregate is
+     * rebuilt from the database, where the sessions of the seminar are already deleted.
+     */
+    public synchronized void remove(Seminar seminar) {
+        seminarDigests.remove(seminar.getId());
+        modifiedSeminarDigests.remove(seminar.getId());
+        seminarScoreDigestRepository.deleteBySeminarId(seminar.getId());
+
+        rebuildFromDatabase();
+    }
+
+    void remove(double totalScore) {
+        totals.remove(totalScore);
+        modified();
+    }
+
+    public long getSessionCount() {
+        return totals.count.sum();
+    }
+
+    /**
+     * Average total score rounded to an integer, 0 when there are no sessions.
+     */
+    public long getAverageScore() {
+        Totals current = totals;
+        long sessionCount = current.count.sum();
+        return sessionCount == 0 ? 0 : Math.round(current.sum.sum() / sessionCount);
+    }
+
+    public List<Integer> getClusters() {
+        List<Integer> result = new ArrayList<>(CLUSTERS);
+
+        for (LongAdder cluster : totals.clusters) {
+            result.add((int) cluster.sum());
+        }
+
+        return result;
+    }
+
+    /**
+     * Percentage of all sessions with a total score lower than or equal to the given score.
+     */
+    public double getPercentile(double totalScore) {
+        synchronized (digestLock) {
+            return percentile(digest, totalScore);
+        }
+    }
+
+    /**
+     * Percentage of the sessions of the seminar with a total score lower than or equal to the given score.
+     */
+    public double getSeminarPercentile(long seminarId, double totalScore) {
+        TDigest seminarDigest = seminarDigests.computeIfAbsent(seminarId, this::loadSeminarDigest);
+        synchronized (seminarDigest) {
+            return percentile(seminarDigest, totalScore);
+        }
+    }
+
+    /**
+     * Changes every time a session is added or removed.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Time of the last change of the aggregate (or of the startup), in milliseconds since the epoch.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Rebuilds the aggregate from the stored total scores. The persisted snapshot is used if it still covers exactly
+     * the scored sessions in the database, otherwise all stored total scores are read. Sessions without a score are
+     * left out until they are scored ({@link #migrateUnscoredSessions()}).
+     */
+    @PostConstruct
+    public synchronized void rebuild() {
+        PopulationAggregate snapshot = populationAggregateRepository.findFirstByOrderByIdAsc();
+        long sessionCount = sessionRepository.countByTotalScoreIsNotNull();
+
+        // the seminar digests are loaded again from their snapshots or sessions
+        seminarDigests.clear();
+        modifiedSeminarDigests.clear();
+
+        if (snapshot != null && snapshot.getSessionCount() == sessionCount && snapshot.getClusters().size() == CLUSTERS
+                && snapshot.getDigest() != null) {
+            Totals snapshotTotals = new Totals();
+            snapshotTotals.count.add(snapshot.getSessionCount());
+            snapshotTotals.sum.add(snapshot.getScoreSum());
+            for (int i = 0; i < CLUSTERS; i++) {
+                snapshotTotals.clusters[i].add(snapshot.getClusters().get(i));
+            }
+            TDigest snapshotDigest = MergingDigest.fromBytes(ByteBuffer.wrap(snapshot.getDigest()));
+            synchronized (digestLock) {
+                totals = snapshotTotals;
+                digest = snapshotDigest;
+            }
+            modified();
+            log.info("Population aggregate of {} sessions loaded from snapshot", sessionCount);
+        } else {
+            rebuildFromDatabase();
+            log.info("Population aggregate rebuilt from {} sessions", getSessionCount());
+        }
+    }
+
+    /**
+     * Builds the totals and the digest of the stored scores next to the current ones, which they then replace.
+     * Sessions added during the scan are added to them too, unless the scan already read them.
+     */
+    private void rebuildFromDatabase() {
+        synchronized (digestLock) {
+            addedDuringRebuild = new ArrayList<>();
+        }
+
+        Totals rebuiltTotals = new Totals();
+        TDigest rebuiltDigest = newDigest();
+        // in ascending order, as read
+        long[] scannedIds = new long[BATCH_SIZE];
+        int scanned = 0;
+
+        try {
+            long lastId = 0;
+            List<Object[]> rows;
+            do {
+                rows = sessionRepository.findScoreRowsAfter(lastId, PageRequest.of(0, BATCH_SIZE));
+                for (Object[] row : rows) {
+                    lastId = (Long) row[0];
+                    Double totalScore = (Double) row[4];
+                    if (totalScore == null)
+                        continue;
+
+                    if (scanned == scannedIds.length)
+                        scannedIds = Arrays.copyOf(scannedIds, scanned * 2);
+                    scannedIds[scanned++] = lastId;
+                    rebuiltTotals.add(totalScore);
+                    rebuiltDigest.add(totalScore);
+                }
+            } while (rows.size() == BATCH_SIZE);
+        } catch (RuntimeException e) {
+            synchronized (digestLock) {
+                addedDuringRebuild = null;
+            }
+            throw e;
+        }
+
+        synchronized (digestLock) {
+            for (AddedScore added : addedDuringRebuild) {
+                if (added.getSessionId() != null
+                        && Arrays.binarySearch(scannedIds, 0, scanned, added.getSessionId()) >= 0)
+                    continue;
+                rebuiltTotals.add(added.getTotalScore());
+                rebuiltDigest.add(added.getTotalScore());
+            }
+            addedDuringRebuild = null;
+            totals = rebuiltTotals;
+            digest = rebuiltDigest;
+        }
+
+        modified();
+    }
+
+    /**
+     * Scores the sessions saved before scores were stored in the background once the application is ready, then
+     * rebuilds the aggregate with them. Nothing is started when all sessions have a score.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateUnscoredSessions() {
+        long unscored = sessionRepository.countByTotalScoreIsNull();
+        if (unscored == 0)
+            return;
+
+        log.info("Scoring {} sessions without a score in the background", unscored);
+        Thread thread = new Thread(() -> {
+            try {
+                if (sessionScoreMigrationService.migrateSessionScores() > 0)
+                    rebuild();
+            } catch (RuntimeException e) {
+                log.error("Sessions without a score could not be scored, see /migrateSessionScores", e);
+            }
+        }, "session-score-migration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Rebuilds the aggregate and the seminar digests from the stored scores only, discarding the persisted
+     * snapshots, e.g. after the scores of existing sessions changed.
+     */
+    public synchronized void rebuildFromScores() {
+        seminarScoreDigestRepository.deleteAll();
+        populationAggregateRepository.deleteAll();
+        persistedVersion = -1;
+        rebuild();
+    }
+
+    @Scheduled(fixedRate = 60000) // Every minute
+    public synchronized void persist() {
+        persistSeminarDigests();
+
+        long currentVersion = version.get();
+        if (currentVersion == persistedVersion)
+            return;
+
+        PopulationAggregate snapshot = populationAggregateRepository.findFirstByOrderByIdAsc();
+        if (snapshot == null)
+            snapshot = new PopulationAggregate();
+
+        synchronized (digestLock) {
+            Totals current = totals;
+            snapshot.setSessionCount(current.count.sum());
+            snapshot.setScoreSum(current.sum.sum());
+            List<Long> clusterCounts = new ArrayList<>(CLUSTERS);
+            for (LongAdder cluster : current.clusters) {
+                clusterCounts.add(cluster.sum());
+            }
+            snapshot.setClusters(clusterCounts);
+            snapshot.setDigest(toBytes(digest));
+        }
+        snapshot.setDateTime(ZonedDateTime.now());
+
+        populationAggregateRepository.save(snapshot);
+        persistedVersion = currentVersion;
+    }
+
+    private void modified() {
+        version.incrementAndGet();
+        lastModified = System.currentTimeMillis();
+    }
+
+    private void persistSeminarDigests() {
+        for (Long seminarId : new ArrayList<>(modifiedSeminarDigests)) {
+            modifiedSeminarDigests.remove(seminarId);
+
+            TDigest seminarDigest = seminarDigests.get(seminarId);
+            if (seminarDigest == null)
+                continue;
+
+            SeminarScoreDigest seminarScoreDigest = seminarScoreDigestRepository.findBySeminarId(seminarId);
+            if (seminarScoreDigest == null) {
+                seminarScoreDigest = new SeminarScoreDigest();
+                seminarScoreDigest.setSeminarId(seminarId);
+            }
+
+            synchronized (seminarDigest) {
+                seminarScoreDigest.setSessionCount(seminarDigest.size());
+            }
+            seminarScoreDigest.setDigest(toBytes(seminarDigest));
+            seminarScoreDigestRepository.save(seminarScoreDigest);
+        }
+    }
+
+    /**
+     * Persisted digest of the seminar if it still covers all its sessions, otherwise a digest built from them.
+     */
+    private TDigest loadSeminarDigest(long seminarId) {
+        List<Session> sessions = seminarRepository.findById(seminarId)
+                .map(Seminar::getSessions)
+                .orElse(Collections.emptyList());
+        SeminarScoreDigest seminarScoreDigest = seminarScoreDigestRepository.findBySeminarId(seminarId);
+
+        if (seminarScoreDigest != null && seminarScoreDigest.getSessionCount() == sessions.size())
+            return MergingDigest.fromBytes(ByteBuffer.wrap(seminarScoreDigest.getDigest()));
+
+        TDigest seminarDigest = newDigest();
+        for (Session session : sessions) {
+            if (session.getTotalScore() != null)
+                seminarDigest.add(session.getTotalScore());
+        }
+        modifiedSeminarDigests.add(seminarId);
+        return seminarDigest;
+    }
+
+    private static double percentile(TDigest digest, double value) {
+        return digest.size() == 0 ? 0 : digest.cdf(value) * 100;
+    }
+
+    private static TDigest newDigest() {
+        return new MergingDigest(DIGEST_COMPRESSION);
+    }
+
+    private static byte[] toBytes(TDigest digest) {
+        synchronized (digest) {
+            ByteBuffer buffer = ByteBuffer.allocate(digest.byteSize());
+            digest.asBytes(buffer);
+            return buffer.array();
+        }
+    }
+
+    /**
+     * Count, sum and clusters of total scores.
+     */
+    private static class Totals {
+
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+        private final LongAdder[] clusters = new LongAdder[CLUSTERS];
+
+        private Totals() {
+            for (int i = 0; i < CLUSTERS; i++) {
+                clusters[i] = new LongAdder();
+            }
+        }
+
+        private void add(double totalScore) {
+            sum.add(totalScore);
+            int cluster = cluster(totalScore);
+            if (cluster >= 0)
+                clusters[cluster].increment();
+            count.increment();
+        }
+
+        private void remove(double totalScore) {
+            sum.add(-totalScore);
+            int cluster = cluster(totalScore);
+            if (cluster >= 0)
+                clusters[cluster].decrement();
+            count.decrement();
+        }
+    }
+
+    @Value
+    private static class AddedScore {
+        // null if the score was added without its session
+        Long sessionId;
+        double totalScore;
+    }
+}
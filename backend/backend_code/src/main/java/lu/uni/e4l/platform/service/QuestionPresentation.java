@@ -0,0 +1,120 @@
+package lu.uni.e4l.platform.service;
+
+import lu.uni.e4l.platform.model.PossibleAnswer;
+import lu.uni.e4l.platform.model.Question;
+import lu.uni.e4l.platform.model.Questionnaire;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How a question is shown in a {@link lu.uni.e4l.platform.model.dto.ResultBreakdown}: display name, chart colour
+ * and the text fragments of its situation and note. Computed once per question when the questionnaire is loaded.
+ */
+public final class QuestionPresentation {
+
+    private static final String DEFAULT_COLOR = "#343A40";
+
+    private static final Map<String, String> COLORS = new HashMap<>();
+
+    static {
+        COLORS.put("where_do_you_live", "#007BFF");
+        COLORS.put("what_is_your_diet", "#28A745");
+        COLORS.put("do_you_have_pets", "#DC3545");
+        COLORS.put("how_do_you_get_to_work", "#FFC107");
+        COLORS.put("electric_and_heating_energy_consumption_where_do_you_work", "#17A2B8");
+        COLORS.put("holiday_travel_during_last_year", "#6C757D");
+    }
+
+    private static final Map<Long, QuestionPresentation> presentations = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final String displayName;
+    private final String situationName;
+    private final String noteName;
+    private final String color;
+    private final Map<Long, String> answerSituationNames;
+
+    private QuestionPresentation(Question question) {
+        this.name = question.getName();
+
+        if (name.equalsIgnoreCase("electric_and_heating_energy_consumption_where_do_you_work"))
+            this.displayName = name.replace("electric_and_heating_energy_consumption_where_do_you_work", "where_do_you_work");
+        else
+            this.displayName = name.replace("other_energy_consumptions", "embodied_energy");
+
+        this.situationName = displayName.replace("_", " ");
+        this.noteName = name.contains("_") ? name.replace("_", " ") : null;
+        this.color = COLORS.getOrDefault(name.toLowerCase(Locale.ROOT), DEFAULT_COLOR);
+
+        Map<Long, String> answerNames = new HashMap<>();
+        if (question.getPossibleAnswers() != null) {
+            for (PossibleAnswer possibleAnswer : question.getPossibleAnswers()) {
+                answerNames.put(possibleAnswer.getId(), situationName(possibleAnswer.getName()));
+            }
+        }
+        this.answerSituationNames = answerNames;
+    }
+
+    public static QuestionPresentation get(Question question) {
+        if (question.getId() == 0)
+            return new QuestionPresentation(question);
+
+        QuestionPresentation presentation = presentations.get(question.getId());
+
+        if (presentation == null || !presentation.name.equals(question.getName())) {
+            presentation = new QuestionPresentation(question);
+            presentations.put(question.getId(), presentation);
+        }
+
+        return presentation;
+    }
+
+    public static void register(Questionnaire questionnaire) {
+        Map<Long, QuestionPresentation> computed = new HashMap<>();
+
+        for (Question question : questionnaire.getQuestions()) {
+            computed.put(question.getId(), new QuestionPresentation(question));
+        }
+
+        presentations.clear();
+        presentations.putAll(computed);
+    }
+
+    /**
+     * Question name shown next to the answers, e.g. "where_do_you_work".
+     */
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * Display name with spaces instead of underscores.
+     */
+    public String getSituationName() {
+        return situationName;
+    }
+
+    /**
+     * Question name with spaces instead of underscores, null if the name has no underscore (no note is added).
+     */
+    public String getNoteName() {
+        return noteName;
+    }
+
+    public String getColor() {
+        return color;
+    }
+
+    /**
+     * Name of the possible answer with spaces instead of underscores.
+     */
+    public String getAnswerSituationName(PossibleAnswer possibleAnswer) {
+        String answerName = possibleAnswer.getId() == 0 ? null : answerSituationNames.get(possibleAnswer.getId());
+        return answerName != null ? answerName : situationName(possibleAnswer.getName());
+    }
+
+    private static String situationName(String name) {
+        return String.valueOf(name).replace("_", " ");
+    }
+}
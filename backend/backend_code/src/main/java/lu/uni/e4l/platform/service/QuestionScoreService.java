@@ -0,0 +1,352 @@
+package lu.uni.e4l.platform.service;
+
+import com.tdunning.math.stats.MergingDigest;
+import com.tdunning.math.stats.TDigest;
+import lombok.extern.slf4j.Slf4j;
+import lu.uni.e4l.platform.exception.NotFoundException;
+import lu.uni.e4l.platform.model.Question;
+import lu.uni.e4l.platform.model.Seminar;
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.model.SessionQuestionScore;
+import lu.uni.e4l.platform.model.dto.QuestionComparison;
+import lu.uni.e4l.platform.model.dto.ResultBreakdown;
+import lu.uni.e4l.platform.repository.SessionQuestionScoreRepository;
+import lu.uni.e4l.platform.repository.SessionRepository;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Results of each question of the saved sessions ({@link SessionQuestionScore}, one row per session and question)
+ * and the count, sum and t-digest of the results of each question over all sessions and over the sessions of each
+ * seminar, so that a session is compared with the population question by question without scoring other sessions.
+ * <p>
+ * The results are those of the result breakdown ({@link ResultBreakdown#questionResults(Session)}). Rows are
+ * written on every saved session and deleted with their seminar; {@link #rebuild()} recomputes them from the
+ * sessions, e.g. after the formulas changed, and backfills them in the background on the first start.
+ */
+@Slf4j
+@Service
+// the sessions stored only in encoded form are decoded with the catalog registered by QuestionnaireService
+@DependsOn("questionnaireService")
+public class QuestionScoreService {
+
+    private static final int BATCH_SIZE = 10000;
+
+    private static final double DIGEST_COMPRESSION = 100;
+
+    private volatile Map<Long, QuestionStatistics> population = new ConcurrentHashMap<>();
+    private final Map<Long, Map<Long, QuestionStatistics>> seminars = new ConcurrentHashMap<>();
+
+    // guards the swap of the statistics by load() with the additions of saved sessions, not the stored rows
+    private final Object statisticsLock = new Object();
+    // rows stored while the statistics are loaded, null otherwise
+    private List<SessionQuestionScore> addedDuringLoad;
+
+    private final SessionQuestionScoreRepository sessionQuestionScoreRepository;
+    private final SessionRepository sessionRepository;
+    private final SessionLoader sessionLoader;
+
+    public QuestionScoreService(SessionQuestionScoreRepository sessionQuestionScoreRepository,
+                                SessionRepository sessionRepository,
+                                SessionLoader sessionLoader) {
+        this.sessionQuestionScoreRepository = sessionQuestionScoreRepository;
+        this.sessionRepository = sessionRepository;
+        this.sessionLoader = sessionLoader;
+    }
+
+    /**
+     * Loads the statistics from the stored results. Results stored meanwhile after the last row read are added to
+     * the loaded statistics.
+     */
+    @PostConstruct
+    public synchronized void load() {
+        synchronized (statisticsLock) {
+            addedDuringLoad = new ArrayList<>();
+        }
+
+        Map<Long, QuestionStatistics> loaded = new ConcurrentHashMap<>();
+        long lastId = 0;
+        long rowCount = 0;
+        List<Object[]> rows;
+
+        try {
+            do {
+                rows = sessionQuestionScoreRepository.findResultRowsAfter(lastId, PageRequest.of(0, BATCH_SIZE));
+
+                for (Object[] row : rows) {
+                    lastId = (Long) row[0];
+                    loaded.computeIfAbsent((Long) row[1], questionId -> new QuestionStatistics())
+                            .add((Double) row[2]);
+                }
+                rowCount += rows.size();
+            } while (rows.size() == BATCH_SIZE);
+        } catch (RuntimeException e) {
+            synchronized (statisticsLock) {
+                addedDuringLoad = null;
+            }
+            throw e;
+        }
+
+        synchronized (statisticsLock) {
+            for (SessionQuestionScore score : addedDuringLoad) {
+                if (score.getId() > lastId)
+                    loaded.computeIfAbsent(score.getQuestionId(), questionId -> new QuestionStatistics())
+                            .add(score.getResult());
+            }
+            addedDuringLoad = null;
+            population = loaded;
+            seminars.clear();
+        }
+        log.info("Question statistics loaded from {} session question scores", rowCount);
+    }
+
+    /**
+     * Backfills the results of the sessions saved before they were stored in the background once the application
+     * is ready. Nothing is started when results are stored or there is no session.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfill() {
+        if (sessionQuestionScoreRepository.count() > 0 || sessionRepository.count() == 0)
+            return;
+
+        log.info("Storing the question scores of the saved sessions in the background");
+        Thread thread = new Thread(() -> {
+            try {
+                rebuild();
+            } catch (RuntimeException e) {
+                log.error("Question scores could not be stored, see /migrateQuestionScores", e);
+            }
+        }, "question-score-backfill");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stores the results of a saved session and adds them to the statistics. Sessions are stored concurrently, the
+     * statistics are only locked while they are updated.
+     */
+    public void add(Session session) {
+        List<SessionQuestionScore> scores = toScores(session);
+
+        try {
+            sessionQuestionScoreRepository.saveAll(scores);
+        } catch (DataIntegrityViolationException e) {
+            // already stored by a rebuild that read the session, and counted when it reloaded the statistics
+            log.debug("Question scores of session id={} are already stored", session.getId());
+            return;
+        }
+
+        synchronized (statisticsLock) {
+            if (addedDuringLoad != null)
+                addedDuringLoad.addAll(scores);
+
+            for (SessionQuestionScore score : scores) {
+                population.computeIfAbsent(score.getQuestionId(), questionId -> new QuestionStatistics())
+                        .add(score.getResult());
+
+                if (score.getSeminarId() != null) {
+                    seminars.computeIfPresent(score.getSeminarId(), (seminarId, questions) -> {
+                        questions.computeIfAbsent(score.getQuestionId(), questionId -> new QuestionStatistics())
+                                .add(score.getResult());
+                        return questions;
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the results of the deleted sessions of a seminar. Values cannot be removed from a t-digest, so the
+     * statistics are reloaded.
+     */
+    public synchronized void remove(Seminar seminar) {
+        sessionQuestionScoreRepository.deleteBySeminarId(seminar.getId());
+        load();
+    }
+
+    /**
+     * Replaces the results of all sessions by a recomputation from their answers and reloads the statistics.
+     * Sessions saved meanwhile, whose results are already stored, are skipped.
+     *
+     * @return the number of stored results
+     */
+    public synchronized long rebuild() {
+        sessionQuestionScoreRepository.deleteAllInBatch();
+
+        long lastId = 0;
+        long rowCount = 0;
+        List<Long> ids;
+
+        do {
+            ids = sessionRepository.findIdsAfter(lastId, PageRequest.of(0, SessionRepository.FETCH_SIZE));
+            if (ids.isEmpty())
+                break;
+
+            Set<Long> storedSessionIds = new HashSet<>(sessionQuestionScoreRepository.findSessionIdsIn(ids));
+            List<SessionQuestionScore> scores = new ArrayList<>();
+            for (Session session : sessionLoader.load(ids)) {
+                if (!storedSessionIds.contains(session.getId()))
+                    scores.addAll(toScores(session));
+            }
+
+            try {
+                sessionQuestionScoreRepository.saveAll(scores);
+                rowCount += scores.size();
+            } catch (DataIntegrityViolationException e) {
+                // a session of the page was saved since its results were looked up: each session on its own
+                rowCount += saveEachSession(scores);
+            }
+
+            lastId = ids.get(ids.size() - 1);
+        } while (ids.size() == SessionRepository.FETCH_SIZE);
+
+        log.info("Rebuilt {} session question scores", rowCount);
+        load();
+        return rowCount;
+    }
+
+    /**
+     * Stores the results session by session, skipping the sessions whose results are already stored.
+     *
+     * @return the number of stored results
+     */
+    private long saveEachSession(List<SessionQuestionScore> scores) {
+        Map<Long, List<SessionQuestionScore>> sessionIdToScores = new LinkedHashMap<>();
+        for (SessionQuestionScore score : scores) {
+            sessionIdToScores.computeIfAbsent(score.getSessionId(), sessionId -> new ArrayList<>()).add(score);
+        }
+
+        long rowCount = 0;
+        for (List<SessionQuestionScore> sessionScores : sessionIdToScores.values()) {
+            try {
+                sessionQuestionScoreRepository.saveAll(sessionScores);
+                rowCount += sessionScores.size();
+            } catch (DataIntegrityViolationException e) {
+                log.debug("Question scores of session id={} are already stored", sessionScores.get(0).getSessionId());
+            }
+        }
+        return rowCount;
+    }
+
+    /**
+     * Results of the session for each question it answered, in the order of the questionnaire, next to the mean
+     * and percentile rank of the result among all sessions and among the sessions of its seminar.
+     */
+    public List<QuestionComparison> getComparison(long sessionId) {
+        List<SessionQuestionScore> scores = sessionQuestionScoreRepository.findBySessionId(sessionId);
+
+        if (scores.isEmpty()) {
+            // saved by write-behind ingestion, or while the results were rebuilt
+            List<Session> sessions = sessionLoader.load(Collections.singletonList(sessionId));
+            if (sessions.isEmpty())
+                throw new NotFoundException("Session not found");
+            scores = toScores(sessions.get(0));
+        }
+
+        Map<Long, SessionQuestionScore> questionIdToScore = new HashMap<>();
+        for (SessionQuestionScore score : scores) {
+            questionIdToScore.put(score.getQuestionId(), score);
+        }
+
+        Map<Long, QuestionStatistics> currentPopulation = population;
+        List<QuestionComparison> comparisons = new ArrayList<>(scores.size());
+
+        for (Question question : QuestionnaireCatalog.current().getQuestions()) {
+            SessionQuestionScore score = questionIdToScore.get(question.getId());
+            if (score == null)
+                continue;
+
+            QuestionComparison comparison = new QuestionComparison();
+            comparison.setQuestionId(question.getId());
+            comparison.setQuestion(question.getName());
+            comparison.setResult(score.getResult());
+
+            QuestionStatistics questionStatistics = currentPopulation.get(question.getId());
+            if (questionStatistics != null) {
+                comparison.setSessionCount(questionStatistics.count.sum());
+                comparison.setPopulationMean(questionStatistics.mean());
+                comparison.setPopulationPercentile(questionStatistics.percentile(score.getResult()));
+            }
+
+            if (score.getSeminarId() != null) {
+                QuestionStatistics seminarStatistics = seminars
+                        .computeIfAbsent(score.getSeminarId(), this::loadSeminar)
+                        .get(question.getId());
+                if (seminarStatistics != null) {
+                    comparison.setSeminarMean(seminarStatistics.mean());
+                    comparison.setSeminarPercentile(seminarStatistics.percentile(score.getResult()));
+                }
+            }
+
+            comparisons.add(comparison);
+        }
+
+        return comparisons;
+    }
+
+    private Map<Long, QuestionStatistics> loadSeminar(long seminarId) {
+        Map<Long, QuestionStatistics> questions = new ConcurrentHashMap<>();
+
+        for (Object[] row : sessionQuestionScoreRepository.findSeminarResultRows(seminarId)) {
+            questions.computeIfAbsent((Long) row[0], questionId -> new QuestionStatistics()).add((Double) row[1]);
+        }
+
+        return questions;
+    }
+
+    private static List<SessionQuestionScore> toScores(Session session) {
+        List<SessionQuestionScore> scores = new ArrayList<>();
+
+        ResultBreakdown.questionResults(session).forEach((questionId, result) -> {
+            SessionQuestionScore score = new SessionQuestionScore();
+            score.setSessionId(session.getId());
+            score.setQuestionId(questionId);
+            score.setSeminarId(session.getSeminar() != null ? session.getSeminar().getId() : null);
+            score.setResult(result);
+            scores.add(score);
+        });
+
+        return scores;
+    }
+
+    private static final class QuestionStatistics {
+
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        // not thread-safe, used while holding its own lock
+        private final TDigest digest = new MergingDigest(DIGEST_COMPRESSION);
+
+        void add(double result) {
+            sum.add(result);
+            synchronized (digest) {
+                digest.add(result);
+            }
+            count.increment();
+        }
+
+        double mean() {
+            long resultCount = count.sum();
+            return resultCount == 0 ? 0 : sum.sum() / resultCount;
+        }
+
+        /**
+         * Percentage of the results lower than or equal to the given result.
+         */
+        double percentile(double result) {
+            synchronized (digest) {
+                return digest.size() == 0 ? 0 : digest.cdf(result) * 100;
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package lu.uni.e4l.platform.service;
+
+import lu.uni.e4l.platform.model.PossibleAnswer;
+import lu.uni.e4l.platform.model.Question;
+import lu.uni.e4l.platform.model.Questionnaire;
+import lu.uni.e4l.platform.model.Variable;
+import lu.uni.e4l.platform.model.scale.DiscreteScale;
+import lu.uni.e4l.platform.model.scale.Scale;
+import org.hibernate.Hibernate;
+
+import java.util.*;
+
+/**
+ * Immutable snapshot of a questionnaire: its questions, possible answers and variables (with their scales) by id,
+ * so that submitted sessions are validated without reading the database. Built inside a transaction, after which
+ * its entities are detached and shared by all requests: they must not be modified nor returned to clients as they
+ * are (the i18n interceptor translates response objects in place).
+ */
+public final class QuestionnaireCatalog {
+
+    private static volatile QuestionnaireCatalog current;
+
+    private final Questionnaire questionnaire;
+    private final List<Question> questions;
+    private final LongMap<PossibleAnswer> possibleAnswers;
+    private final LongMap<Variable> variables;
+
+    private QuestionnaireCatalog(Questionnaire questionnaire) {
+        Map<Long, PossibleAnswer> possibleAnswersById = new HashMap<>();
+        Map<Long, Variable> variablesById = new HashMap<>();
+
+        for (Question question : questionnaire.getQuestions()) {
+            for (PossibleAnswer possibleAnswer : question.getPossibleAnswers()) {
+                possibleAnswersById.put(possibleAnswer.getId(), possibleAnswer);
+
+                for (Variable variable : possibleAnswer.getVariables()) {
+                    // scales are read when validating values
+                    variable.setScale((Scale) Hibernate.unproxy(variable.getScale()));
+                    if (variable.getScale() instanceof DiscreteScale)
+                        Hibernate.initialize(((DiscreteScale) variable.getScale()).getAllowedOptions());
+                    variablesById.put(variable.getId(), variable);
+                }
+            }
+        }
+
+        this.questionnaire = questionnaire;
+        this.questions = Collections.unmodifiableList(new ArrayList<>(questionnaire.getQuestions()));
+        this.possibleAnswers = new LongMap<>(possibleAnswersById);
+        this.variables = new LongMap<>(variablesById);
+    }
+
+    /**
+     * Loads every part of the questionnaire used by the catalog, so it must be called inside a transaction.
+     */
+    public static QuestionnaireCatalog of(Questionnaire questionnaire) {
+        return new QuestionnaireCatalog(questionnaire);
+    }
+
+    /**
+     * Catalog of the default questionnaire, registered by {@link QuestionnaireService} whenever it is (re)loaded.
+     */
+    public static QuestionnaireCatalog current() {
+        return current;
+    }
+
+    static void register(QuestionnaireCatalog catalog) {
+        current = catalog;
+    }
+
+    public Questionnaire getQuestionnaire() {
+        return questionnaire;
+    }
+
+    public List<Question> getQuestions() {
+        return questions;
+    }
+
+    /**
+     * @return the possible answer, or null if the questionnaire has no possible answer with this id
+     */
+    public PossibleAnswer getPossibleAnswer(long id) {
+        return possibleAnswers.get(id);
+    }
+
+    /**
+     * @return the variable, or null if the questionnaire has no variable with this id
+     */
+    public Variable getVariable(long id) {
+        return variables.get(id);
+    }
+
+    /**
+     * Read-only map with primitive keys: sorted keys searched by bisection, values at the same index.
+     */
+    private static final class LongMap<T> {
+        private final long[] keys;
+        private final Object[] values;
+
+        LongMap(Map<Long, T> map) {
+            keys = map.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+            values = new Object[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                values[i] = map.get(keys[i]);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        T get(long key) {
+            int index = Arrays.binarySearch(keys, key);
+            return index >= 0 ? (T) values[index] : null;
+        }
+    }
+}
@@ -4,45 +4,138 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import lombok.extern.slf4j.Slf4j;
 import lu.uni.e4l.platform.exception.NotFoundException;
+import lu.uni.e4l.platform.model.FormulaVersion;
+import lu.uni.e4l.platform.model.FormulaVersionStatus;
 import lu.uni.e4l.platform.model.PossibleAnswer;
 import lu.uni.e4l.platform.model.Question;
 import lu.uni.e4l.platform.model.Questionnaire;
 import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.repository.FormulaVersionRepository;
 import lu.uni.e4l.platform.repository.QuestionnaireRepository;
 import lu.uni.e4l.platform.repository.SessionRepository;
 import lu.uni.e4l.platform.service.crypto.SignedObjectSerializer;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.PostConstruct;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+@Slf4j
 @Service
 public class QuestionnaireService {
 
-    private static final String DEFAULT_QUESTIONNAIRE = "energy4life";
+    static final String DEFAULT_QUESTIONNAIRE = "energy4life";
 
     @Value("${resources.static.url}")
     private String staticResourcesUrl;
 
+    @Value("${e4l.formula.backend:INTERPRETER}")
+    private FormulaBackend formulaBackend;
+
     private final QuestionnaireRepository questionnaireRepository;
+    private final FormulaVersionRepository formulaVersionRepository;
+    private final TransactionTemplate transactionTemplate;
 
-    public QuestionnaireService(QuestionnaireRepository questionnaireRepository) {
+    public QuestionnaireService(QuestionnaireRepository questionnaireRepository,
+                                FormulaVersionRepository formulaVersionRepository,
+                                TransactionTemplate transactionTemplate) {
         this.questionnaireRepository = questionnaireRepository;
+        this.formulaVersionRepository = formulaVersionRepository;
+        this.transactionTemplate = transactionTemplate;
     }
 
     public Questionnaire getDefaultQuestionnaire() {
         return questionnaireRepository.findByName(DEFAULT_QUESTIONNAIRE);
     }
 
+    /**
+     * In-memory catalog of the default questionnaire, replaced whenever the questionnaire is reloaded.
+     */
+    public QuestionnaireCatalog getCatalog() {
+        return QuestionnaireCatalog.current();
+    }
+
+    /**
+     * Reloads the default questionnaire from the database after its formulas changed.
+     */
+    public void reload() {
+        transactionTemplate.executeWithoutResult(status ->
+                register(questionnaireRepository.findByName(DEFAULT_QUESTIONNAIRE)));
+    }
+
     @PostConstruct
     private void loadPoll() {
-        try {
-            if (questionnaireRepository.findByName(DEFAULT_QUESTIONNAIRE) != null)
-                return;
+        // formulas are compiled (and validated) at startup, a malformed formula prevents the application from starting
+        FormulaRegistry.setBackend(formulaBackend);
+        transactionTemplate.executeWithoutResult(status -> {
+            Questionnaire questionnaire = questionnaireRepository.findByName(DEFAULT_QUESTIONNAIRE);
+
+            if (questionnaire == null)
+                questionnaire = questionnaireRepository.save(new Questionnaire(DEFAULT_QUESTIONNAIRE, readPoll()));
+
+            register(questionnaire);
+            loadFormulaVersions(questionnaire);
+        });
+    }
+
+    private void register(Questionnaire questionnaire) {
+        FormulaRegistry.register(questionnaire);
+        QuestionPresentation.register(questionnaire);
+        QuestionnaireCatalog.register(QuestionnaireCatalog.of(questionnaire));
+    }
+
+    /**
+     * Registers the number of the active formula version (created from the questionnaire on first start). If the
+     * formulas of poll.yml differ from those of the questionnaire, they are added as a pending version, which is
+     * activated by rescoring the sessions with it ({@link FormulaVersionService}).
+     */
+    private void loadFormulaVersions(Questionnaire questionnaire) {
+        Map<Long, String> formulas = new HashMap<>();
+        Map<String, PossibleAnswer> possibleAnswers = new HashMap<>();
 
+        for (Question question : questionnaire.getQuestions()) {
+            for (PossibleAnswer possibleAnswer : question.getPossibleAnswers()) {
+                formulas.put(possibleAnswer.getId(), possibleAnswer.getFormula());
+                possibleAnswers.put(question.getName() + "/" + possibleAnswer.getName(), possibleAnswer);
+            }
+        }
+
+        List<FormulaVersion> activeVersions = formulaVersionRepository.findByStatus(FormulaVersionStatus.ACTIVE);
+        FormulaVersion activeVersion = activeVersions.isEmpty()
+                ? formulaVersionRepository.save(FormulaVersionService.newVersion(1, FormulaVersionStatus.ACTIVE, formulas))
+                : activeVersions.get(0);
+        FormulaRegistry.setVersion(activeVersion.getNumber());
+
+        Map<Long, String> pollFormulas = new HashMap<>(formulas);
+        for (Question question : readPoll()) {
+            for (PossibleAnswer pollAnswer : question.getPossibleAnswers()) {
+                PossibleAnswer possibleAnswer = possibleAnswers.get(question.getName() + "/" + pollAnswer.getName());
+                if (possibleAnswer != null && !possibleAnswer.getFormula().equals(pollAnswer.getFormula())) {
+                    // malformed formulas prevent the application from starting, as for the first version
+                    FormulaRegistry.compile(possibleAnswer, pollAnswer.getFormula());
+                    pollFormulas.put(possibleAnswer.getId(), pollAnswer.getFormula());
+                }
+            }
+        }
+
+        FormulaVersion latestVersion = formulaVersionRepository.findFirstByOrderByNumberDesc();
+        if (pollFormulas.equals(formulas) || pollFormulas.equals(latestVersion.getFormulas()))
+            return;
+
+        FormulaVersion pollVersion = formulaVersionRepository.save(
+                FormulaVersionService.newVersion(latestVersion.getNumber() + 1, FormulaVersionStatus.PENDING, pollFormulas));
+        log.info("Formulas of poll.yml differ from the active version {}, added them as pending version {}",
+                activeVersion.getNumber(), pollVersion.getNumber());
+    }
+
+    private List<Question> readPoll() {
+        try {
             ObjectMapper objectMapper = new ObjectMapper(new YAMLFactory());
             objectMapper.registerModule(new JavaTimeModule());
             List<Question> questions = objectMapper.readValue(
@@ -64,7 +157,7 @@ public class QuestionnaireService {
                 }
             }
 
-            questionnaireRepository.save(new Questionnaire(DEFAULT_QUESTIONNAIRE, questions));
+            return questions;
 
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -0,0 +1,62 @@
+package lu.uni.e4l.platform.service;
+
+import lombok.extern.slf4j.Slf4j;
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.repository.SessionRepository;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Number of sessions of kids, of adults and without a kid flag, counted by the database on startup, incremented
+ * on every saved session and reconciled with the database periodically (e.g. after seminars are deleted).
+ */
+@Slf4j
+@Service
+public class ResponseCountService {
+
+    private final AtomicLong kidCount = new AtomicLong();
+    private final AtomicLong adultCount = new AtomicLong();
+    private final AtomicLong unknownCount = new AtomicLong();
+
+    private final SessionRepository sessionRepository;
+
+    public ResponseCountService(SessionRepository sessionRepository) {
+        this.sessionRepository = sessionRepository;
+    }
+
+    public void add(Session session) {
+        counter(session.getIskid()).incrementAndGet();
+    }
+
+    /**
+     * Number of sessions with the given kid flag (null counts the sessions without one).
+     */
+    public long getCount(Boolean kid) {
+        return counter(kid).get();
+    }
+
+    @PostConstruct
+    @Scheduled(fixedRate = 300000) // Every 5 minutes
+    public void reconcile() {
+        long kids = sessionRepository.countByIskid(true);
+        long adults = sessionRepository.countByIskid(false);
+        long unknown = sessionRepository.countByIskidIsNull();
+
+        long previousKids = kidCount.getAndSet(kids);
+        long previousAdults = adultCount.getAndSet(adults);
+        long previousUnknown = unknownCount.getAndSet(unknown);
+
+        if (previousKids != kids || previousAdults != adults || previousUnknown != unknown)
+            log.info("Response counts reconciled: kids {} -> {}, adults {} -> {}, unknown {} -> {}",
+                    previousKids, kids, previousAdults, adults, previousUnknown, unknown);
+    }
+
+    private AtomicLong counter(Boolean kid) {
+        if (kid == null)
+            return unknownCount;
+        return kid ? kidCount : adultCount;
+    }
+}
@@ -0,0 +1,103 @@
+package lu.uni.e4l.platform.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import lu.uni.e4l.platform.model.dto.ResultBreakdown;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+/**
+ * Breakdowns of saved sessions, which only change when a formula version is activated, keyed by session id. Only the
+ * part of the breakdown that depends on the session is cached; the population statistics are added to a copy on every
+ * request. Bounded by an estimate of the memory used by the breakdowns and by a time to live.
+ */
+@Service
+public class ResultBreakdownCache {
+
+    private final Cache<Long, ResultBreakdown> breakdowns;
+
+    public ResultBreakdownCache(@Value("${e4l.breakdown-cache.maximum-size-mb:64}") long maximumSizeMb,
+                                @Value("${e4l.breakdown-cache.ttl-minutes:60}") long ttlMinutes) {
+        this.breakdowns = Caffeine.newBuilder()
+                .maximumWeight(maximumSizeMb * 1024 * 1024)
+                .weigher((Long sessionId, ResultBreakdown breakdown) -> estimateSize(breakdown))
+                .expireAfterWrite(Duration.ofMinutes(ttlMinutes))
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns a copy of the cached breakdown of the session, which the caller can modify. On a miss the
+     * breakdown is computed by {@code loader} and cached.
+     */
+    public ResultBreakdown get(long sessionId, LongFunction<ResultBreakdown> loader) {
+        return breakdowns.get(sessionId, loader::apply).copy();
+    }
+
+    public void invalidate(Collection<Long> sessionIds) {
+        breakdowns.invalidateAll(sessionIds);
+    }
+
+    public void invalidateAll() {
+        breakdowns.invalidateAll();
+    }
+
+    public Map<String, Number> getStatistics() {
+        CacheStats stats = breakdowns.stats();
+
+        Map<String, Number> statistics = new LinkedHashMap<>();
+        statistics.put("size", breakdowns.estimatedSize());
+        statistics.put("estimatedBytes", breakdowns.policy().eviction()
+                .map(eviction -> eviction.weightedSize().orElse(0))
+                .orElse(0L));
+        statistics.put("hits", stats.hitCount());
+        statistics.put("misses", stats.missCount());
+        statistics.put("hitRate", stats.hitRate());
+        statistics.put("evictions", stats.evictionCount());
+        return statistics;
+    }
+
+    /**
+     * Rough size in bytes of a breakdown: object headers and references plus two bytes per character.
+     */
+    static int estimateSize(ResultBreakdown breakdown) {
+        int size = 256 + size(breakdown.getSessionId());
+
+        size += size(breakdown.getAns()) + size(breakdown.getSituations()) + size(breakdown.getNote())
+                + size(breakdown.getColors()) + 24 * breakdown.getScores().size();
+
+        for (ResultBreakdown.QuestionEntry entry : breakdown.getBreakdown()) {
+            size += 64 + size(entry.getQuestion()) + size(entry.getDetailsFile());
+
+            for (ResultBreakdown.QuestionEntry.AnswerEntry answer : entry.getAnswers()) {
+                size += 48 + size(answer.getAnswer());
+                // variable values share the variables of the questionnaire
+                size += answer.getVariables() == null ? 0 : 48 * answer.getVariables().size();
+            }
+        }
+
+        return size;
+    }
+
+    private static int size(List<String> strings) {
+        int size = 16 + 8 * strings.size();
+
+        for (String string : strings) {
+            size += size(string);
+        }
+
+        return size;
+    }
+
+    private static int size(String string) {
+        return string == null ? 0 : 40 + 2 * string.length();
+    }
+}
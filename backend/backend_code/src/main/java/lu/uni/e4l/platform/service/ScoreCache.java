@@ -0,0 +1,79 @@
+package lu.uni.e4l.platform.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Bounded memo of answer scores keyed by possible answer id and the exact values bound to its formula variables.
+ * Most answers come from a small value space (fixed formulas, discrete scales), so the same few scores are
+ * computed over and over. Cleared whenever the formulas are (re)registered in {@link FormulaRegistry}.
+ */
+public class ScoreCache {
+
+    public static final long MAXIMUM_SIZE = 10_000;
+
+    private static final Cache<Key, Double> scores = Caffeine.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .recordStats()
+            .build();
+
+    /**
+     * Returns the memoized score, computing it with {@code scorer} on a miss. Unsaved possible answers
+     * (id 0) are never memoized.
+     */
+    public static double get(long possibleAnswerId, double[] values, ToDoubleFunction<double[]> scorer) {
+        if (possibleAnswerId == 0)
+            return scorer.applyAsDouble(values);
+
+        return scores.get(new Key(possibleAnswerId, values), key -> scorer.applyAsDouble(key.values));
+    }
+
+    public static void invalidateAll() {
+        scores.invalidateAll();
+    }
+
+    public static Map<String, Long> getStatistics() {
+        CacheStats stats = scores.stats();
+
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("size", scores.estimatedSize());
+        statistics.put("hits", stats.hitCount());
+        statistics.put("misses", stats.missCount());
+        statistics.put("evictions", stats.evictionCount());
+        return statistics;
+    }
+
+    private static final class Key {
+        private final long possibleAnswerId;
+        private final double[] values;
+        private final int hash;
+
+        private Key(long possibleAnswerId, double[] values) {
+            this.possibleAnswerId = possibleAnswerId;
+            this.values = values;
+            this.hash = 31 * Long.hashCode(possibleAnswerId) + Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+
+            Key key = (Key) o;
+            return possibleAnswerId == key.possibleAnswerId && Arrays.equals(values, key.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
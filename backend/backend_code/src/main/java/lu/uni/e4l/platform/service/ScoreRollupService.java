@@ -0,0 +1,314 @@
+package lu.uni.e4l.platform.service;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import lu.uni.e4l.platform.exception.BadRequestException;
+import lu.uni.e4l.platform.model.RollupGranularity;
+import lu.uni.e4l.platform.model.ScoreRollup;
+import lu.uni.e4l.platform.model.Seminar;
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.model.dto.ScoreTrend;
+import lu.uni.e4l.platform.repository.ScoreRollupRepository;
+import lu.uni.e4l.platform.repository.SessionRepository;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Count, sum, sum of squares and histogram of the total scores of the sessions saved during each week and month,
+ * by kid flag and seminar, so that trends are read without scoring sessions. Saved sessions are added to rollups
+ * in memory, which are added to the stored ones every minute and on shutdown; {@link #rebuild()} backfills them
+ * from the stored scores and {@link #check()} compares them with a full recomputation.
+ */
+@Slf4j
+@Service
+public class ScoreRollupService {
+
+    /**
+     * Sessions below the first cluster, then one entry per cluster of {@link PopulationAggregateService}.
+     */
+    public static final int HISTOGRAM_SIZE = PopulationAggregateService.CLUSTERS + 1;
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final double SUM_TOLERANCE = 1e-6;
+
+    // sessions saved since the last flush, by rollup; a rollup is only changed while holding the lock of its key
+    // (compute), so that a flush removing it never misses a session
+    private final Map<RollupKey, ScoreRollup> pendingRollups = new ConcurrentHashMap<>();
+
+    private final ScoreRollupRepository scoreRollupRepository;
+    private final SessionRepository sessionRepository;
+    private final SessionScoreMigrationService sessionScoreMigrationService;
+    private final TransactionTemplate transactionTemplate;
+
+    public ScoreRollupService(ScoreRollupRepository scoreRollupRepository,
+                              SessionRepository sessionRepository,
+                              SessionScoreMigrationService sessionScoreMigrationService,
+                              TransactionTemplate transactionTemplate) {
+        this.scoreRollupRepository = scoreRollupRepository;
+        this.sessionRepository = sessionRepository;
+        this.sessionScoreMigrationService = sessionScoreMigrationService;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    /**
+     * Adds a saved session to the rollups of its week and month, in memory until the next {@link #flush()}.
+     */
+    public void add(Session session) {
+        if (session.getDateTime() == null || session.getTotalScore() == null)
+            return;
+
+        long seminarId = session.getSeminar() != null ? session.getSeminar().getId() : 0;
+        boolean kid = Boolean.TRUE.equals(session.getIskid());
+
+        for (RollupGranularity granularity : RollupGranularity.values()) {
+            RollupKey key = RollupKey.of(granularity, session.getDateTime(), kid, seminarId);
+            pendingRollups.compute(key, (rollupKey, rollup) -> {
+                if (rollup == null)
+                    rollup = newRollup(rollupKey);
+                add(rollup, session.getTotalScore());
+                return rollup;
+            });
+        }
+    }
+
+    /**
+     * Adds the sessions saved since the last flush to the stored rollups, one transaction per rollup. A rollup
+     * that cannot be stored is kept for the next flush.
+     */
+    @Scheduled(fixedRate = 60000) // Every minute
+    @PreDestroy
+    public synchronized void flush() {
+        for (RollupKey key : new ArrayList<>(pendingRollups.keySet())) {
+            ScoreRollup pendingRollup = pendingRollups.remove(key);
+            if (pendingRollup == null)
+                continue;
+
+            try {
+                transactionTemplate.executeWithoutResult(status -> {
+                    ScoreRollup rollup = scoreRollupRepository.findByGranularityAndBucketStartAndKidAndSeminarId(
+                            key.getGranularity(), key.getBucketStart(), key.isKid(), key.getSeminarId());
+
+                    if (rollup == null)
+                        rollup = newRollup(key);
+
+                    merge(rollup, pendingRollup);
+                    scoreRollupRepository.save(rollup);
+                });
+            } catch (RuntimeException e) {
+                pendingRollups.compute(key, (rollupKey, rollup) -> {
+                    if (rollup == null)
+                        return pendingRollup;
+                    merge(rollup, pendingRollup);
+                    return rollup;
+                });
+                log.warn("Score rollups could not be stored, retrying with the next flush", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the deleted sessions of a seminar, which are all in the rollups of the seminar.
+     */
+    public synchronized void remove(Seminar seminar) {
+        pendingRollups.keySet().removeIf(key -> key.getSeminarId() == seminar.getId());
+        scoreRollupRepository.deleteBySeminarId(seminar.getId());
+    }
+
+    /**
+     * Statistics of the buckets between two dates, merging the rollups of the kid flags and seminars that are not
+     * filtered.
+     *
+     * @param from      any day of the first bucket
+     * @param to        any day of the last bucket
+     * @param kid       only sessions of kids (true) or adults (false), or all sessions if null
+     * @param seminarId only sessions of this seminar (0 for sessions without a seminar), or all sessions if null
+     */
+    public List<ScoreTrend> getTrend(RollupGranularity granularity, LocalDate from, LocalDate to, Boolean kid,
+                                     Long seminarId) {
+        if (from.isAfter(to))
+            throw new BadRequestException("'from' should not be after 'to'");
+
+        flush();
+
+        Map<LocalDate, ScoreRollup> buckets = new LinkedHashMap<>();
+
+        // the histograms are loaded lazily, within the transaction
+        transactionTemplate.executeWithoutResult(status -> {
+            for (ScoreRollup rollup : scoreRollupRepository.findBuckets(granularity, granularity.bucketStart(from), to,
+                    kid, seminarId)) {
+                ScoreRollup bucket = buckets.computeIfAbsent(rollup.getBucketStart(), bucketStart ->
+                        newRollup(new RollupKey(granularity, bucketStart, false, 0)));
+                merge(bucket, rollup);
+            }
+        });
+
+        List<ScoreTrend> trend = new ArrayList<>(buckets.size());
+
+        for (ScoreRollup bucket : buckets.values()) {
+            double average = bucket.getScoreSum() / bucket.getSessionCount();
+            double variance = bucket.getScoreSquareSum() / bucket.getSessionCount() - average * average;
+
+            ScoreTrend scoreTrend = new ScoreTrend();
+            scoreTrend.setBucketStart(bucket.getBucketStart());
+            scoreTrend.setSessionCount(bucket.getSessionCount());
+            scoreTrend.setAverageScore(average);
+            scoreTrend.setStandardDeviation(Math.sqrt(Math.max(variance, 0)));
+            scoreTrend.setHistogram(bucket.getHistogram());
+            trend.add(scoreTrend);
+        }
+
+        return trend;
+    }
+
+    /**
+     * Replaces all rollups by a recomputation from the stored scores of the sessions.
+     *
+     * @return the number of rollups
+     */
+    public synchronized int rebuild() {
+        sessionScoreMigrationService.migrateSessionScores();
+
+        // the recomputation includes the sessions not flushed yet
+        pendingRollups.clear();
+
+        Collection<ScoreRollup> rollups = recompute().values();
+
+        transactionTemplate.executeWithoutResult(status -> {
+            scoreRollupRepository.deleteAll();
+            scoreRollupRepository.saveAll(rollups);
+        });
+
+        log.info("Rebuilt {} score rollups", rollups.size());
+        return rollups.size();
+    }
+
+    /**
+     * Compares the rollups with a recomputation from the stored scores of the sessions.
+     *
+     * @return a description of each rollup that differs, empty if they are consistent
+     */
+    public synchronized List<String> check() {
+        flush();
+
+        Map<RollupKey, ScoreRollup> expected = recompute();
+        Map<RollupKey, ScoreRollup> actual = new HashMap<>();
+
+        for (ScoreRollup rollup : scoreRollupRepository.findAll()) {
+            actual.put(RollupKey.of(rollup), rollup);
+        }
+
+        Set<RollupKey> keys = new LinkedHashSet<>(expected.keySet());
+        keys.addAll(actual.keySet());
+
+        List<String> differences = new ArrayList<>();
+
+        for (RollupKey key : keys) {
+            ScoreRollup expectedRollup = expected.getOrDefault(key, newRollup(key));
+            ScoreRollup actualRollup = actual.getOrDefault(key, newRollup(key));
+
+            if (expectedRollup.getSessionCount() != actualRollup.getSessionCount()
+                    || !expectedRollup.getHistogram().equals(actualRollup.getHistogram())
+                    || !sumEquals(expectedRollup.getScoreSum(), actualRollup.getScoreSum())
+                    || !sumEquals(expectedRollup.getScoreSquareSum(), actualRollup.getScoreSquareSum()))
+                differences.add(key + ": expected " + describe(expectedRollup) + ", found " + describe(actualRollup));
+        }
+
+        log.info("Checked {} score rollups, {} differ", keys.size(), differences.size());
+        return differences;
+    }
+
+    private Map<RollupKey, ScoreRollup> recompute() {
+        Map<RollupKey, ScoreRollup> rollups = new HashMap<>();
+        long lastId = 0;
+        List<Object[]> rows;
+
+        do {
+            rows = sessionRepository.findScoreRowsAfter(lastId, PageRequest.of(0, BATCH_SIZE));
+
+            for (Object[] row : rows) {
+                ZonedDateTime dateTime = (ZonedDateTime) row[1];
+                Double totalScore = (Double) row[4];
+                lastId = (Long) row[0];
+
+                if (dateTime == null || totalScore == null)
+                    continue;
+
+                boolean kid = Boolean.TRUE.equals(row[2]);
+                long seminarId = row[3] != null ? (Long) row[3] : 0;
+
+                for (RollupGranularity granularity : RollupGranularity.values()) {
+                    RollupKey key = RollupKey.of(granularity, dateTime, kid, seminarId);
+                    add(rollups.computeIfAbsent(key, ScoreRollupService::newRollup), totalScore);
+                }
+            }
+        } while (rows.size() == BATCH_SIZE);
+
+        return rollups;
+    }
+
+    static void add(ScoreRollup rollup, double totalScore) {
+        rollup.setSessionCount(rollup.getSessionCount() + 1);
+        rollup.setScoreSum(rollup.getScoreSum() + totalScore);
+        rollup.setScoreSquareSum(rollup.getScoreSquareSum() + totalScore * totalScore);
+
+        int index = PopulationAggregateService.cluster(totalScore) + 1;
+        rollup.getHistogram().set(index, rollup.getHistogram().get(index) + 1);
+    }
+
+    static void merge(ScoreRollup target, ScoreRollup rollup) {
+        target.setSessionCount(target.getSessionCount() + rollup.getSessionCount());
+        target.setScoreSum(target.getScoreSum() + rollup.getScoreSum());
+        target.setScoreSquareSum(target.getScoreSquareSum() + rollup.getScoreSquareSum());
+
+        for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+            target.getHistogram().set(i, target.getHistogram().get(i) + rollup.getHistogram().get(i));
+        }
+    }
+
+    private static ScoreRollup newRollup(RollupKey key) {
+        ScoreRollup rollup = new ScoreRollup();
+        rollup.setGranularity(key.getGranularity());
+        rollup.setBucketStart(key.getBucketStart());
+        rollup.setKid(key.isKid());
+        rollup.setSeminarId(key.getSeminarId());
+        rollup.setHistogram(new ArrayList<>(Collections.nCopies(HISTOGRAM_SIZE, 0L)));
+        return rollup;
+    }
+
+    private static boolean sumEquals(double expected, double actual) {
+        return Math.abs(expected - actual) <= SUM_TOLERANCE * Math.max(1, Math.abs(expected));
+    }
+
+    private static String describe(ScoreRollup rollup) {
+        return "count=" + rollup.getSessionCount() + " sum=" + rollup.getScoreSum() +
+                " squareSum=" + rollup.getScoreSquareSum() + " histogram=" + rollup.getHistogram();
+    }
+
+    @Value
+    private static class RollupKey {
+        RollupGranularity granularity;
+        LocalDate bucketStart;
+        boolean kid;
+        long seminarId;
+
+        static RollupKey of(RollupGranularity granularity, ZonedDateTime dateTime, boolean kid, long seminarId) {
+            LocalDate date = dateTime.withZoneSameInstant(ZoneOffset.UTC).toLocalDate();
+            return new RollupKey(granularity, granularity.bucketStart(date), kid, seminarId);
+        }
+
+        static RollupKey of(ScoreRollup rollup) {
+            return new RollupKey(rollup.getGranularity(), rollup.getBucketStart(), rollup.isKid(), rollup.getSeminarId());
+        }
+    }
+}
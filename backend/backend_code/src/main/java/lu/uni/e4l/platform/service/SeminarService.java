@@ -1,28 +1,71 @@
 package lu.uni.e4l.platform.service;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
 import lu.uni.e4l.platform.exception.BadRequestException;
 import lu.uni.e4l.platform.exception.NotFoundException;
 import lu.uni.e4l.platform.model.*;
+import lu.uni.e4l.platform.model.dto.ResultBreakdownSeminar;
 import lu.uni.e4l.platform.repository.PossibleAnswerRepository;
 import lu.uni.e4l.platform.repository.SessionRepository;
 import lu.uni.e4l.platform.repository.VariableRepository;
 import lu.uni.e4l.platform.repository.SeminarRepository;
+import lu.uni.e4l.platform.repository.SeminarResultSnapshotRepository;
 import lu.uni.e4l.platform.service.crypto.SignedObjectSerializer;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
+@Slf4j
 @Service
 public class SeminarService {
+
+    // id and status of the seminars by access code, read when sessions are submitted to a seminar
+    private final Map<String, SeminarEntry> seminarDirectory = new ConcurrentHashMap<>();
+
     private final SeminarRepository seminarRepository;
+    private final SessionRepository sessionRepository;
+    private final SessionLoader sessionLoader;
+    private final SeminarResultSnapshotRepository seminarResultSnapshotRepository;
+    private final PopulationAggregateService populationAggregateService;
+    private final ScoreRollupService scoreRollupService;
+    private final ResponseCountService responseCountService;
+    private final QuestionScoreService questionScoreService;
+    private final ResultBreakdownCache resultBreakdownCache;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate transactionTemplate;
 
-    public SeminarService(SeminarRepository seminarRepository) {
+    public SeminarService(SeminarRepository seminarRepository,
+                          SessionRepository sessionRepository,
+                          SessionLoader sessionLoader,
+                          SeminarResultSnapshotRepository seminarResultSnapshotRepository,
+                          PopulationAggregateService populationAggregateService,
+                          ScoreRollupService scoreRollupService,
+                          ResponseCountService responseCountService,
+                          QuestionScoreService questionScoreService,
+                          ResultBreakdownCache resultBreakdownCache,
+                          ObjectMapper objectMapper,
+                          TransactionTemplate transactionTemplate) {
         this.seminarRepository = seminarRepository;
+        this.sessionRepository = sessionRepository;
+        this.sessionLoader = sessionLoader;
+        this.seminarResultSnapshotRepository = seminarResultSnapshotRepository;
+        this.populationAggregateService = populationAggregateService;
+        this.scoreRollupService = scoreRollupService;
+        this.responseCountService = responseCountService;
+        this.questionScoreService = questionScoreService;
+        this.resultBreakdownCache = resultBreakdownCache;
+        this.objectMapper = objectMapper;
+        this.transactionTemplate = transactionTemplate;
     }
 
     public Map<String, SeminarStatus> getSeminars() {
@@ -61,10 +104,30 @@ public class SeminarService {
     }
 
     public Seminar getSeminarByAccessCode(String accessCode) {
-        return StreamSupport.stream(seminarRepository.findAll().spliterator(), true)
-                .sorted(Comparator.comparing(Seminar::getEventDateTime).reversed())
-                .filter(seminar -> seminar.getAccessCode().equals(accessCode))
-                .findFirst().orElse(null);
+        return seminarRepository.findByAccessCode(accessCode);
+    }
+
+    /**
+     * Seminar with this access code with only its id, access code and status, from the seminar directory, or null
+     * if there is no such seminar. Its sessions are not loaded: the seminar is not managed, a reference must be
+     * attached instead to save it with a session.
+     */
+    public Seminar getSeminarSummaryByAccessCode(String accessCode) {
+        // the entry is computed while holding the lock of its key, so an invalidation waits for a lookup in progress
+        // and never leaves it with the previous status
+        SeminarEntry entry = seminarDirectory.computeIfAbsent(accessCode, code -> {
+            Seminar seminar = seminarRepository.findByAccessCode(code);
+            return seminar == null ? null : new SeminarEntry(seminar.getId(), seminar.getStatus());
+        });
+
+        if (entry == null)
+            return null;
+
+        Seminar seminar = new Seminar();
+        seminar.setId(entry.getId());
+        seminar.setAccessCode(accessCode);
+        seminar.setStatus(entry.getStatus());
+        return seminar;
     }
 
     public Seminar getSeminar(String signedSeminarId) {
@@ -92,6 +155,9 @@ public class SeminarService {
         if (canUpdate) {
             seminar.setStatus(newSeminar.getStatus());
             seminar = seminarRepository.save(seminar);
+            seminarDirectory.remove(seminar.getAccessCode());
+            if (previousStatus.equals(SeminarStatus.OPEN) && seminar.getStatus().equals(SeminarStatus.CLOSED))
+                saveResultSnapshot(seminar.getId());
             return Seminar.fromSeminarView(getSeminarView(seminar.getId()));
         } else {
             throw new InvalidSeminarException(
@@ -99,6 +165,78 @@ public class SeminarService {
         }
     }
 
+    /**
+     * Results of a closed seminar, read from its snapshot (created if missing). The population statistics are
+     * the current ones, not those of the closing time.
+     */
+    public ResultBreakdownSeminar getSeminarResult(Seminar seminar) {
+        SeminarResultSnapshot snapshot = seminarResultSnapshotRepository.findBySeminarId(seminar.getId());
+        ResultBreakdownSeminar result;
+
+        if (snapshot == null) {
+            try {
+                result = saveResultSnapshot(seminar.getId());
+            } catch (DataIntegrityViolationException e) {
+                // created by a concurrent request, e.g. a classroom opening the results at the same time
+                return getSeminarResult(seminar);
+            }
+        } else {
+            try {
+                result = objectMapper.readValue(snapshot.getResult(), ResultBreakdownSeminar.class);
+            } catch (JsonProcessingException e) {
+                log.warn("Invalid result snapshot of seminar id={}, recomputing it", seminar.getId(), e);
+                result = saveResultSnapshot(seminar.getId());
+            }
+        }
+
+        result.setAverageScore(populationAggregateService.getAverageScore());
+        result.setClusters(populationAggregateService.getClusters());
+        return result;
+    }
+
+    /**
+     * Recomputes the result snapshots of all closed seminars, e.g. those closed before snapshots existed, one
+     * transaction per seminar.
+     *
+     * @return the number of snapshots saved
+     */
+    public int rebuildResultSnapshots() {
+        List<Long> seminarIds = seminarRepository.findIdsByStatus(SeminarStatus.CLOSED);
+
+        for (Long seminarId : seminarIds) {
+            saveResultSnapshot(seminarId);
+        }
+
+        return seminarIds.size();
+    }
+
+    /**
+     * Saves the results of a seminar computed from its sessions, loaded with their answers within a transaction so
+     * that it also runs outside of a request, e.g. when the sessions are rescored.
+     */
+    private ResultBreakdownSeminar saveResultSnapshot(long seminarId) {
+        return transactionTemplate.execute(status -> {
+            List<Session> sessions = sessionLoader.load(sessionRepository.findIdsBySeminarId(seminarId));
+            ResultBreakdownSeminar result = ResultBreakdownSeminar.newFromSessions(sessions, populationAggregateService);
+
+            SeminarResultSnapshot snapshot = seminarResultSnapshotRepository.findBySeminarId(seminarId);
+            if (snapshot == null) {
+                snapshot = new SeminarResultSnapshot();
+                snapshot.setSeminarId(seminarId);
+            }
+
+            try {
+                snapshot.setResult(objectMapper.writeValueAsString(result));
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException("Cannot serialize the results of seminar id=" + seminarId, e);
+            }
+            snapshot.setDateTime(ZonedDateTime.now());
+            seminarResultSnapshotRepository.save(snapshot);
+
+            return result;
+        });
+    }
+
     public Seminar createSeminar(Seminar seminar) {
 
         if (seminar == null) {
@@ -117,16 +255,35 @@ public class SeminarService {
             return seminarRepository.save(seminar);
         } catch (DataIntegrityViolationException e) {
             throw new BadRequestException("Seminar with this access code already exists");
+        } finally {
+            seminarDirectory.remove(seminar.getAccessCode());
         }
     }
 
     public void deleteSeminar(Long seminarId) {
-        if (StreamSupport.stream(seminarRepository.findAll().spliterator(), true)
-                .anyMatch(s -> s.getId() == seminarId)) {
+        Optional<Seminar> seminar = seminarRepository.findById(seminarId);
+
+        if (seminar.isPresent()) {
             seminarRepository.deleteById(seminarId);
+            seminarDirectory.remove(seminar.get().getAccessCode());
+            // sessions of the seminar are deleted with it
+            populationAggregateService.remove(seminar.get());
+            scoreRollupService.remove(seminar.get());
+            responseCountService.reconcile();
+            questionScoreService.remove(seminar.get());
+            seminarResultSnapshotRepository.deleteBySeminarId(seminarId);
+            resultBreakdownCache.invalidate(seminar.get().getSessions().stream()
+                    .map(Session::getId)
+                    .collect(Collectors.toList()));
         }
     }
 
+    @Value
+    private static class SeminarEntry {
+        long id;
+        SeminarStatus status;
+    }
+
     @ResponseStatus(value = HttpStatus.BAD_REQUEST)
     private static class InvalidSeminarException extends BadRequestException {
         public InvalidSeminarException(String msg) {
@@ -0,0 +1,372 @@
+package lu.uni.e4l.platform.service;
+
+import lombok.extern.slf4j.Slf4j;
+import lu.uni.e4l.platform.exception.ServiceUnavailableException;
+import lu.uni.e4l.platform.model.Answer;
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.model.VariableValue;
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManagerFactory;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Write-behind storage of submitted sessions. A session is validated and scored by the caller, gets its id here and
+ * is queued; writer threads insert the queued sessions with JDBC batches, several sessions per transaction. When the
+ * queue is full the submission is refused with a {@link ServiceUnavailableException} instead of waiting.
+ * <p>
+ * A submitted session is acknowledged, so it is only given up when the database rejects it (a constraint violation).
+ * Sessions that could not be written because of a database failure are written again later, with an increasing
+ * delay, and count as queued until then.
+ * <p>
+ * Until it is written, a queued session is returned by {@link #getPendingSession(long)}, so that its result can be
+ * shown right after the submission.
+ */
+@Slf4j
+@Service
+public class SessionIngestionService {
+
+    private static final String INSERT_SESSION = "insert into session " +
+            "(id, date_time, iskid, questionnaire_id, seminar_fk, user_id, total_score, formula_version, " +
+            "encoded_answers, relational_answers) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_ANSWER = "insert into answer (id, fk_session, fk_possible_answer, score) " +
+            "values (?, ?, ?, ?)";
+    private static final String INSERT_VARIABLE_VALUE = "insert into variable_value (id, value, variable_id) " +
+            "values (?, ?, ?)";
+    private static final String INSERT_ANSWER_VARIABLE_VALUE = "insert into answer_variable_values " +
+            "(answer_id, variable_values_id) values (?, ?)";
+    private static final String INCREMENT_SEMINAR_COUNTER = "update seminar " +
+            "set seminar_counter = seminar_counter + ? where id = ?";
+
+    private static final long INITIAL_RETRY_DELAY_MILLIS = 500;
+    private static final long MAX_RETRY_DELAY_MILLIS = 60000;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final boolean enabled;
+    private final int queueCapacity;
+    private final int batchSize;
+    private final int retryAfterSeconds;
+    private final SessionFactoryImplementor sessionFactory;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final BlockingQueue<PendingSession> queue;
+    // sessions to write again once their delay has elapsed, taken by the writers before the queue
+    private final DelayQueue<PendingSession> retries = new DelayQueue<>();
+    // queued, being written or to write again
+    private final Map<Long, Session> pendingSessions = new ConcurrentHashMap<>();
+    private final ExecutorService writers;
+    private volatile boolean stopped;
+
+    public SessionIngestionService(@Value("${e4l.ingestion.write-behind:false}") boolean enabled,
+                                   @Value("${e4l.ingestion.queue-capacity:10000}") int queueCapacity,
+                                   @Value("${e4l.ingestion.batch-size:100}") int batchSize,
+                                   @Value("${e4l.ingestion.writers:2}") int writerCount,
+                                   @Value("${e4l.ingestion.retry-after-seconds:5}") int retryAfterSeconds,
+                                   EntityManagerFactory entityManagerFactory,
+                                   JdbcTemplate jdbcTemplate,
+                                   TransactionTemplate transactionTemplate) {
+        this.enabled = enabled;
+        this.queueCapacity = queueCapacity;
+        this.batchSize = batchSize;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.sessionFactory = entityManagerFactory.unwrap(SessionFactoryImplementor.class);
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        if (enabled) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.writers = Executors.newFixedThreadPool(writerCount, runnable -> {
+                Thread thread = new Thread(runnable, "session-writer-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (int i = 0; i < writerCount; i++) {
+                writers.execute(this::write);
+            }
+        } else {
+            this.writers = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Gives the validated and scored session its id and queues it. The returned future completes once the session
+     * is written.
+     *
+     * @throws ServiceUnavailableException if the queue is full, including the sessions to write again
+     */
+    public CompletableFuture<Session> submit(Session session) {
+        if (stopped)
+            throw new ServiceUnavailableException("Shutting down", retryAfterSeconds);
+        if (pendingSessions.size() >= queueCapacity)
+            throw new ServiceUnavailableException("Too many sessions submitted, please retry later", retryAfterSeconds);
+
+        try (StatelessSession statelessSession = sessionFactory.openStatelessSession()) {
+            session.setId(generateId(statelessSession, session));
+        }
+
+        PendingSession pendingSession = new PendingSession(session);
+        pendingSessions.put(session.getId(), session);
+        if (!queue.offer(pendingSession)) {
+            pendingSessions.remove(session.getId());
+            throw new ServiceUnavailableException("Too many sessions submitted, please retry later", retryAfterSeconds);
+        }
+
+        return pendingSession.written;
+    }
+
+    /**
+     * The session with this id if it is submitted but not yet written, null otherwise.
+     */
+    public Session getPendingSession(long id) {
+        return pendingSessions.get(id);
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * Writes what is still queued or to write again before the application stops: a submission may already have
+     * been acknowledged. Sessions to write again are still retried with their delay, for at most
+     * {@value #SHUTDOWN_TIMEOUT_SECONDS} seconds.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        stopped = true;
+        if (writers == null)
+            return;
+
+        // writers finish the batch they are writing and stop polling
+        writers.shutdown();
+        writers.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_TIMEOUT_SECONDS);
+        List<PendingSession> batch = new ArrayList<>(batchSize);
+
+        while (!queue.isEmpty() || !retries.isEmpty()) {
+            retries.drainTo(batch, batchSize);
+            queue.drainTo(batch, batchSize - batch.size());
+
+            if (batch.isEmpty()) {
+                PendingSession retry = retries.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (retry == null)
+                    break;
+                batch.add(retry);
+            }
+
+            writeBatch(batch);
+            batch.clear();
+        }
+
+        if (!pendingSessions.isEmpty())
+            log.error("Submitted sessions ids={} could not be saved before shutdown", pendingSessions.keySet());
+    }
+
+    private void write() {
+        List<PendingSession> batch = new ArrayList<>(batchSize);
+
+        while (!stopped) {
+            try {
+                retries.drainTo(batch, batchSize);
+                if (batch.isEmpty()) {
+                    PendingSession first = queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null)
+                        continue;
+                    batch.add(first);
+                }
+
+                queue.drainTo(batch, batchSize - batch.size());
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes the sessions in one transaction. If the database fails, they are written again later. If it rejects
+     * them, each session is written on its own so that one invalid session doesn't lose the others.
+     */
+    private void writeBatch(List<PendingSession> batch) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> insert(batch));
+        } catch (RuntimeException e) {
+            if (isRetryable(e)) {
+                retry(batch, e);
+                return;
+            }
+
+            if (batch.size() > 1) {
+                for (PendingSession pendingSession : batch) {
+                    writeBatch(Collections.singletonList(pendingSession));
+                }
+                return;
+            }
+
+            PendingSession pendingSession = batch.get(0);
+            log.error("Submitted session id={} was rejected by the database", pendingSession.session.getId(), e);
+            pendingSessions.remove(pendingSession.session.getId());
+            pendingSession.written.completeExceptionally(e);
+            return;
+        }
+
+        for (PendingSession pendingSession : batch) {
+            // the batch is committed, so the session is read from the database once it is no longer pending, and
+            // a submitter waiting for the write does not find it pending anymore
+            pendingSessions.remove(pendingSession.session.getId());
+            pendingSession.written.complete(pendingSession.session);
+        }
+    }
+
+    private void retry(List<PendingSession> batch, RuntimeException e) {
+        long delayMillis = 0;
+
+        for (PendingSession pendingSession : batch) {
+            delayMillis = Math.max(delayMillis, pendingSession.scheduleRetry());
+            retries.add(pendingSession);
+        }
+
+        log.warn("{} submitted sessions could not be saved, retrying in {} ms: {}", batch.size(), delayMillis,
+                e.getMessage());
+    }
+
+    /**
+     * Whether writing the sessions again may succeed: database failures (connection, lock, timeout) are retried,
+     * constraint violations and errors of the sessions themselves are not.
+     */
+    static boolean isRetryable(RuntimeException e) {
+        if (e instanceof DataIntegrityViolationException)
+            return false;
+
+        return e instanceof DataAccessException || e instanceof TransactionException;
+    }
+
+    private void insert(List<PendingSession> batch) {
+        List<Object[]> sessionRows = new ArrayList<>(batch.size());
+        List<Object[]> answerRows = new ArrayList<>();
+        List<Object[]> variableValueRows = new ArrayList<>();
+        List<Object[]> answerVariableValueRows = new ArrayList<>();
+        Map<Long, Integer> seminarSessionCounts = new HashMap<>();
+
+        try (StatelessSession statelessSession = sessionFactory.openStatelessSession()) {
+            for (PendingSession pendingSession : batch) {
+                Session session = pendingSession.session;
+
+                sessionRows.add(new Object[]{
+                        session.getId(),
+                        Timestamp.from(session.getDateTime().toInstant()),
+                        session.getIskid(),
+                        session.getQuestionnaire() == null ? null : session.getQuestionnaire().getId(),
+                        session.getSeminar() == null ? null : session.getSeminar().getId(),
+                        session.getUser() == null ? null : session.getUser().getId(),
+                        session.getTotalScore(),
+                        session.getFormulaVersion(),
+                        session.getEncodedAnswers(),
+                        session.getRelationalAnswers()});
+
+                if (session.getSeminar() != null)
+                    seminarSessionCounts.merge(session.getSeminar().getId(), 1, Integer::sum);
+
+                if (!session.hasRelationalAnswers())
+                    continue;
+
+                for (Answer answer : session.getAnswers()) {
+                    answer.setId(generateId(statelessSession, answer));
+                    answerRows.add(new Object[]{
+                            answer.getId(), session.getId(), answer.getPossibleAnswer().getId(), answer.getScore()});
+
+                    for (VariableValue variableValue : answer.getVariableValues()) {
+                        variableValue.setId(generateId(statelessSession, variableValue));
+                        variableValueRows.add(new Object[]{
+                                variableValue.getId(), variableValue.getValue(), variableValue.getVariable().getId()});
+                        answerVariableValueRows.add(new Object[]{answer.getId(), variableValue.getId()});
+                    }
+                }
+            }
+        }
+
+        jdbcTemplate.batchUpdate(INSERT_SESSION, sessionRows);
+        jdbcTemplate.batchUpdate(INSERT_ANSWER, answerRows);
+        jdbcTemplate.batchUpdate(INSERT_VARIABLE_VALUE, variableValueRows);
+        jdbcTemplate.batchUpdate(INSERT_ANSWER_VARIABLE_VALUE, answerVariableValueRows);
+        jdbcTemplate.batchUpdate(INCREMENT_SEMINAR_COUNTER, seminarSessionCounts.entrySet().stream()
+                .map(e -> new Object[]{e.getValue(), e.getKey()})
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Id from the generator Hibernate uses for the entity, so that ids never collide with the ones of entities saved
+     * through JPA.
+     */
+    private long generateId(StatelessSession statelessSession, Object entity) {
+        IdentifierGenerator generator = sessionFactory.getMetamodel()
+                .entityPersister(entity.getClass())
+                .getIdentifierGenerator();
+        Object id = generator.generate((SharedSessionContractImplementor) statelessSession, entity);
+        if (!(id instanceof Number))
+            throw new IllegalStateException("Write-behind ingestion needs ids generated before insertion, not " +
+                    generator.getClass().getSimpleName());
+        return ((Number) id).longValue();
+    }
+
+    private static class PendingSession implements Delayed {
+        private final Session session;
+        private final CompletableFuture<Session> written = new CompletableFuture<>();
+        private int attempts;
+        private long retryNanos;
+
+        private PendingSession(Session session) {
+            this.session = session;
+        }
+
+        /**
+         * Counts a failed attempt and delays the next one, twice as long after each failure.
+         *
+         * @return the delay in milliseconds
+         */
+        private long scheduleRetry() {
+            attempts++;
+            long delayMillis = Math.min(MAX_RETRY_DELAY_MILLIS,
+                    INITIAL_RETRY_DELAY_MILLIS << Math.min(attempts - 1, 16));
+            retryNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            return delayMillis;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(retryNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
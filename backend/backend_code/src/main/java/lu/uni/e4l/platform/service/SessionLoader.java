@@ -0,0 +1,38 @@
+package lu.uni.e4l.platform.service;
+
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.repository.SessionRepository;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+
+/**
+ * Sessions with the answers their results are computed from: the answer rows read by
+ * {@link SessionRepository#findForScoring(List)}, or the answers decoded with the questionnaire catalog for sessions
+ * stored only in encoded form.
+ */
+@Service
+public class SessionLoader {
+
+    private final SessionRepository sessionRepository;
+    private final QuestionnaireService questionnaireService;
+
+    public SessionLoader(SessionRepository sessionRepository, QuestionnaireService questionnaireService) {
+        this.sessionRepository = sessionRepository;
+        this.questionnaireService = questionnaireService;
+    }
+
+    /**
+     * @return the sessions with these ids, in the order of {@code ids}
+     */
+    public List<Session> load(List<Long> ids) {
+        List<Session> sessions = sessionRepository.findForScoring(ids);
+        QuestionnaireCatalog catalog = questionnaireService.getCatalog();
+
+        for (Session session : sessions) {
+            AnswerCodec.decodeAnswers(session, catalog);
+        }
+
+        return sessions;
+    }
+}
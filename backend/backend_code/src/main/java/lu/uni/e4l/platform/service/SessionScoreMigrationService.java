@@ -0,0 +1,86 @@
+package lu.uni.e4l.platform.service;
+
+import java.util.List;
+
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import lombok.extern.slf4j.Slf4j;
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.repository.SessionRepository;
+
+/**
+ * Stores the answer and total scores of sessions saved before scores were computed at save time, and the encoded
+ * answers of sessions saved before they were encoded.
+ */
+@Slf4j
+@Service
+public class SessionScoreMigrationService {
+
+    private static final int BATCH_SIZE = 500;
+
+    private final SessionRepository sessionRepository;
+    private final TransactionTemplate transactionTemplate;
+
+    public SessionScoreMigrationService(SessionRepository sessionRepository, TransactionTemplate transactionTemplate) {
+        this.sessionRepository = sessionRepository;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    /**
+     * @return the number of sessions scored
+     */
+    public long migrateSessionScores() {
+        long migrated = 0;
+        int batchSize;
+
+        // each batch is its own transaction: scored sessions no longer match the query, so the first page is
+        // always the next one
+        do {
+            batchSize = transactionTemplate.execute(status -> {
+                List<Session> sessions = sessionRepository.findByTotalScoreIsNullOrderByIdAsc(PageRequest.of(0, BATCH_SIZE));
+
+                for (Session session : sessions) {
+                    AnswerCodec.decodeAnswers(session, QuestionnaireCatalog.current());
+                    SessionScorer.score(session);
+                }
+
+                sessionRepository.saveAll(sessions);
+                return sessions.size();
+            });
+
+            migrated += batchSize;
+        } while (batchSize == BATCH_SIZE);
+
+        log.info("Stored the scores of {} sessions", migrated);
+        return migrated;
+    }
+
+    /**
+     * @return the number of sessions whose answers were encoded
+     */
+    public long migrateEncodedAnswers() {
+        long migrated = 0;
+        int batchSize;
+
+        do {
+            batchSize = transactionTemplate.execute(status -> {
+                List<Session> sessions = sessionRepository.findByEncodedAnswersIsNullOrderByIdAsc(PageRequest.of(0, BATCH_SIZE));
+
+                for (Session session : sessions) {
+                    session.setEncodedAnswers(AnswerCodec.encode(session.getAnswers()));
+                    session.setRelationalAnswers(true);
+                }
+
+                sessionRepository.saveAll(sessions);
+                return sessions.size();
+            });
+
+            migrated += batchSize;
+        } while (batchSize == BATCH_SIZE);
+
+        log.info("Encoded the answers of {} sessions", migrated);
+        return migrated;
+    }
+}
@@ -0,0 +1,181 @@
+package lu.uni.e4l.platform.service;
+
+import lu.uni.e4l.platform.model.Answer;
+import lu.uni.e4l.platform.model.PossibleAnswer;
+import lu.uni.e4l.platform.model.Session;
+
+import java.util.*;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.DoubleStream;
+
+/**
+ * Scores of answers and sessions, as reported by {@link lu.uni.e4l.platform.model.dto.ResultBreakdown}.
+ */
+public class SessionScorer {
+
+    /**
+     * Score of a single answer: its formula result rounded down to two decimals, memoized in {@link ScoreCache}.
+     */
+    public static double scoreAnswer(Answer answer) {
+        CompiledExpression expression = FormulaRegistry.get(answer.getPossibleAnswer());
+        // 'type' variable defaults to 1 when the answer does not define it
+        double[] variables = expression.bind(answer.getVariableValues(), FormulaRegistry.DEFAULT_VARIABLE_VALUES);
+        return ScoreCache.get(answer.getPossibleAnswer().getId(), variables,
+                values -> roundScore(expression.evaluate(values)));
+    }
+
+    /**
+     * Score of an answer as stored when its session was saved, computed if the answer was not saved yet.
+     */
+    public static double storedScore(Answer answer) {
+        return answer.getScore() != null ? answer.getScore() : scoreAnswer(answer);
+    }
+
+    /**
+     * Computes and stores the score of every answer and the total score of the session with the registered formulas.
+     */
+    public static void score(Session session) {
+        for (Answer answer : session.getAnswers()) {
+            answer.setScore(scoreAnswer(answer));
+        }
+
+        session.setTotalScore(totalScore(session, Answer::getScore));
+        session.setFormulaVersion(FormulaRegistry.getVersion());
+    }
+
+    /**
+     * Computes and stores the pending scores of a session with the formulas of another version, keyed by possible
+     * answer id. These scores are not memoized, {@link ScoreCache} only holds scores of the registered formulas.
+     */
+    public static void scorePending(Session session, Map<Long, CompiledExpression> expressions, int formulaVersion) {
+        session.setPendingFormulaVersion(formulaVersion);
+
+        if (!session.hasRelationalAnswers()) {
+            // no answer rows to store the scores in
+            session.setPendingTotalScore(pendingTotalScore(AnswerCodec.decode(session.getEncodedAnswers()),
+                    QuestionnaireCatalog.current(), expressions));
+            return;
+        }
+
+        for (Answer answer : session.getAnswers()) {
+            CompiledExpression expression = expressions.get(answer.getPossibleAnswer().getId());
+            if (expression == null)
+                expression = FormulaRegistry.get(answer.getPossibleAnswer());
+
+            double[] variables = expression.bind(answer.getVariableValues(), FormulaRegistry.DEFAULT_VARIABLE_VALUES);
+            answer.setPendingScore(roundScore(expression.evaluate(variables)));
+        }
+
+        session.setPendingTotalScore(totalScore(session, Answer::getPendingScore));
+    }
+
+    /**
+     * Total score of encoded answers with the registered formulas, equal to the one of the same answers as entities,
+     * without creating them.
+     */
+    public static double totalScore(EncodedAnswers answers, QuestionnaireCatalog catalog) {
+        return totalScore(answers, catalog, i -> {
+            PossibleAnswer possibleAnswer = possibleAnswer(answers, i, catalog);
+            CompiledExpression expression = FormulaRegistry.get(possibleAnswer);
+            double[] variables = expression.bind(answers, i, catalog, FormulaRegistry.DEFAULT_VARIABLE_VALUES);
+            return ScoreCache.get(possibleAnswer.getId(), variables, values -> roundScore(expression.evaluate(values)));
+        });
+    }
+
+    /**
+     * Total score of encoded answers with the formulas of another version, as {@link #scorePending} computes it.
+     */
+    public static double pendingTotalScore(EncodedAnswers answers, QuestionnaireCatalog catalog,
+                                           Map<Long, CompiledExpression> expressions) {
+        return totalScore(answers, catalog, i -> {
+            PossibleAnswer possibleAnswer = possibleAnswer(answers, i, catalog);
+            CompiledExpression expression = expressions.get(possibleAnswer.getId());
+            if (expression == null)
+                expression = FormulaRegistry.get(possibleAnswer);
+
+            return roundScore(expression.evaluate(
+                    expression.bind(answers, i, catalog, FormulaRegistry.DEFAULT_VARIABLE_VALUES)));
+        });
+    }
+
+    /**
+     * Total scores of many sessions. Stored totals are used as they are. For the other sessions each formula is
+     * evaluated once over the columns of all answers that use it, the per-question and per-session sums are then
+     * done in the same order as {@link lu.uni.e4l.platform.model.dto.ResultBreakdown#fromSession(Session)},
+     * so the totals are bit-identical.
+     */
+    public static double[] totalScores(List<Session> sessions) {
+        Map<CompiledExpression, List<Answer>> answersByExpression = new IdentityHashMap<>();
+        Map<Answer, Double> answerScores = new IdentityHashMap<>();
+
+        for (Session session : sessions) {
+            if (session.getTotalScore() != null)
+                continue;
+
+            for (Answer answer : session.getAnswers()) {
+                answersByExpression.computeIfAbsent(FormulaRegistry.get(answer.getPossibleAnswer()), e -> new ArrayList<>())
+                        .add(answer);
+            }
+        }
+
+        answersByExpression.forEach((expression, answers) -> {
+            double[][] columns = new double[expression.getVariableCount()][answers.size()];
+            for (int row = 0; row < answers.size(); row++) {
+                expression.bind(answers.get(row).getVariableValues(), FormulaRegistry.DEFAULT_VARIABLE_VALUES, columns, row);
+            }
+
+            double[] results = expression.evaluateColumns(columns, answers.size());
+            for (int row = 0; row < answers.size(); row++) {
+                answerScores.put(answers.get(row), roundScore(results[row]));
+            }
+        });
+
+        double[] totals = new double[sessions.size()];
+
+        for (int i = 0; i < sessions.size(); i++) {
+            Session session = sessions.get(i);
+            totals[i] = session.getTotalScore() != null ? session.getTotalScore() :
+                    totalScore(session, answerScores::get);
+        }
+
+        return totals;
+    }
+
+    private static double totalScore(Session session, ToDoubleFunction<Answer> answerScore) {
+        Map<Long, DoubleStream.Builder> questionScores = new LinkedHashMap<>();
+
+        for (Answer answer : session.getAnswers()) {
+            questionScores.computeIfAbsent(answer.getPossibleAnswer().getQuestion().getId(), id -> DoubleStream.builder())
+                    .add(answerScore.applyAsDouble(answer));
+        }
+
+        return questionScores.values().stream()
+                .mapToDouble(scores -> scores.build().sum())
+                .sum();
+    }
+
+    private static double totalScore(EncodedAnswers answers, QuestionnaireCatalog catalog, IntToDoubleFunction answerScore) {
+        Map<Long, DoubleStream.Builder> questionScores = new LinkedHashMap<>();
+
+        for (int i = 0; i < answers.size(); i++) {
+            questionScores.computeIfAbsent(possibleAnswer(answers, i, catalog).getQuestion().getId(), id -> DoubleStream.builder())
+                    .add(answerScore.applyAsDouble(i));
+        }
+
+        return questionScores.values().stream()
+                .mapToDouble(scores -> scores.build().sum())
+                .sum();
+    }
+
+    private static PossibleAnswer possibleAnswer(EncodedAnswers answers, int answer, QuestionnaireCatalog catalog) {
+        PossibleAnswer possibleAnswer = catalog.getPossibleAnswer(answers.getPossibleAnswerId(answer));
+        if (possibleAnswer == null)
+            throw new IllegalStateException("Unknown possible answer id=" + answers.getPossibleAnswerId(answer));
+        return possibleAnswer;
+    }
+
+    public static double roundScore(double value) {
+        return Math.floor(value * 100) / 100;
+    }
+}
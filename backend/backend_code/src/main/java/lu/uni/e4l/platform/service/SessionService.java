@@ -3,60 +3,97 @@ package lu.uni.e4l.platform.service;
 import lu.uni.e4l.platform.exception.BadRequestException;
 import lu.uni.e4l.platform.exception.NotFoundException;
 import lu.uni.e4l.platform.model.*;
-import lu.uni.e4l.platform.repository.PossibleAnswerRepository;
 import lu.uni.e4l.platform.repository.SeminarRepository;
 import lu.uni.e4l.platform.repository.SessionRepository;
 import lu.uni.e4l.platform.repository.VariableRepository;
 import lu.uni.e4l.platform.service.crypto.SignedObjectSerializer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.ResponseStatus;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
 @Service
 public class SessionService {
-        
+
+    public static final int MAX_PAGE_SIZE = 500;
+
+    // whether the answers of new sessions are also stored as rows of the answer tables, besides their encoded form
+    @Value("${e4l.session-storage.relational-answers:true}")
+    private boolean relationalAnswers;
+
     private final VariableRepository variableRepository;
     private final SessionRepository sessionRepository;
-    private final PossibleAnswerRepository possibleAnswerRepository;
+    private final SessionLoader sessionLoader;
     private final SeminarRepository seminarRepository;
     private final QuestionnaireService questionnaireService;
     private final UserManagementService userManagementService;
     private final SeminarService seminarService;
+    private final PopulationAggregateService populationAggregateService;
+    private final ScoreRollupService scoreRollupService;
+    private final ResponseCountService responseCountService;
+    private final QuestionScoreService questionScoreService;
+    private final SessionIngestionService sessionIngestionService;
+    private final TransactionTemplate transactionTemplate;
+    private final TransactionTemplate readOnlyTransactionTemplate;
 
     public SessionService(VariableRepository variableRepository,
                           SessionRepository sessionRepository,
-                          PossibleAnswerRepository possibleAnswerRepository,
+                          SessionLoader sessionLoader,
                           SeminarRepository seminarRepository,
                           QuestionnaireService questionnaireService,
                           UserManagementService userManagementService,
-                          SeminarService seminarService) {
+                          SeminarService seminarService,
+                          PopulationAggregateService populationAggregateService,
+                          ScoreRollupService scoreRollupService,
+                          ResponseCountService responseCountService,
+                          QuestionScoreService questionScoreService,
+                          SessionIngestionService sessionIngestionService,
+                          TransactionTemplate transactionTemplate) {
         this.variableRepository = variableRepository;
         this.sessionRepository = sessionRepository;
-        this.possibleAnswerRepository = possibleAnswerRepository;
+        this.sessionLoader = sessionLoader;
         this.seminarRepository = seminarRepository;
         this.questionnaireService = questionnaireService;
         this.userManagementService = userManagementService;
         this.seminarService = seminarService;
+        this.populationAggregateService = populationAggregateService;
+        this.scoreRollupService = scoreRollupService;
+        this.responseCountService = responseCountService;
+        this.questionScoreService = questionScoreService;
+        this.sessionIngestionService = sessionIngestionService;
+
+        this.transactionTemplate = transactionTemplate;
+        this.readOnlyTransactionTemplate = new TransactionTemplate(transactionTemplate.getTransactionManager());
+        this.readOnlyTransactionTemplate.setReadOnly(true);
     }
 
     public List<Session> getSessions() {
-        return StreamSupport.stream(sessionRepository.findAll().spliterator(), true)
-                .sorted(Comparator.comparing(Session::getDateTime).reversed())
-                .collect(Collectors.toList());
+        return sessionLoader.load(sessionRepository.findAllIds());
+    }
+
+    public List<Session> getUserSessions(long userId) {
+        return sessionLoader.load(sessionRepository.findIdsByUserId(userId));
     }
 
     public List<Session> getSessions(List<Long> sessionIdList) {
-        List<Long> sessionIdSet = sessionIdList.stream().collect(Collectors.toList());
+        if (sessionIdList.isEmpty())
+            return new ArrayList<>();
 
-        return StreamSupport.stream(sessionRepository.findAll().spliterator(), true)
-                .filter(session -> sessionIdSet.contains(session.getId()))
-                .sorted(Comparator.comparing(Session::getDateTime).reversed())
-                .collect(Collectors.toList());
+        return sessionLoader.load(sessionRepository.findIdsByIdIn(new HashSet<>(sessionIdList)));
     }
 
     // public List<Session> getSessions(List<String> signedSessionIdList) {
@@ -70,73 +107,186 @@ public class SessionService {
     //             .collect(Collectors.toList());
     // }
 
+    /**
+     * Page of sessions, newest first, starting after the session of {@code cursor} (from the first session if null).
+     *
+     * @param userId only the sessions of this user, or all sessions if null
+     * @param cursor {@link #cursorOf(Session)} of the last session of the previous page
+     */
+    public List<Session> getSessionPage(Long userId, String cursor, int size) {
+        if (size < 1 || size > MAX_PAGE_SIZE)
+            throw new BadRequestException("Page size should be in [1.." + MAX_PAGE_SIZE + "]");
+
+        Pageable pageable = PageRequest.of(0, size);
+
+        if (cursor == null) {
+            return sessionLoader.load(userId == null
+                    ? sessionRepository.findFirstPageIds(pageable)
+                    : sessionRepository.findFirstPageIdsByUser(userId, pageable));
+        }
+
+        String[] position = decodeCursor(cursor);
+        ZonedDateTime dateTime;
+        long id;
+        try {
+            dateTime = Instant.parse(position[0]).atZone(ZoneOffset.UTC);
+            id = Long.parseLong(position[1]);
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw new BadRequestException("Invalid cursor");
+        }
+
+        return sessionLoader.load(userId == null
+                ? sessionRepository.findPageIdsAfter(dateTime, id, pageable)
+                : sessionRepository.findPageIdsAfterByUser(userId, dateTime, id, pageable));
+    }
+
+    /**
+     * Opaque position of a session in the pages of {@link #getSessionPage(Long, String, int)}.
+     */
+    public static String cursorOf(Session session) {
+        String position = session.getDateTime().toInstant() + "," + session.getId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String[] decodeCursor(String cursor) {
+        String[] position;
+        try {
+            position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(",");
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid cursor");
+        }
+
+        if (position.length != 2)
+            throw new BadRequestException("Invalid cursor");
+        return position;
+    }
+
+    /**
+     * Passes all sessions, newest first, to {@code consumer} page by page. Each page is read in its own read-only
+     * transaction and detached afterwards, so memory use doesn't grow with the number of sessions. Changes made by
+     * the consumer to the sessions are not saved.
+     *
+     * @param userId only the sessions of this user, or all sessions if null
+     */
+    public void forEachSession(Long userId, int pageSize, Consumer<Session> consumer) {
+        String cursor = null;
+
+        do {
+            String previousCursor = cursor;
+            cursor = readOnlyTransactionTemplate.execute(status -> {
+                List<Session> sessions = getSessionPage(userId, previousCursor, pageSize);
+                sessions.forEach(consumer);
+
+                return sessions.size() < pageSize ? null : cursorOf(sessions.get(sessions.size() - 1));
+            });
+        } while (cursor != null);
+    }
+
     public Session getSession(long id) {
-        return sessionRepository.findById(id).orElse(null);
+        List<Session> sessions = sessionLoader.load(Collections.singletonList(id));
+        return sessions.isEmpty() ? sessionIngestionService.getPendingSession(id) : sessions.get(0);
     }
 
     public Session getSession(String signedSessionId) {
-        return sessionRepository.findById(SignedObjectSerializer.deserialize(signedSessionId, Long.class))
-                .orElseThrow(() -> new NotFoundException("Session not found"));
+        List<Session> sessions = sessionLoader.load(
+                Collections.singletonList(SignedObjectSerializer.deserialize(signedSessionId, Long.class)));
+        if (sessions.isEmpty())
+            throw new NotFoundException("Session not found");
+        return sessions.get(0);
     }
 
+    /**
+     * Validates the answers of an unsaved session against the questionnaire catalog and fills in its entities.
+     * The session refers to the shared entities of the catalog, it must not be returned to clients as it is.
+     */
     public Session updateSession(Session session){
         if (session == null)
             throw new InvalidQuestionnaireException("Session not found");
         if (session.getAnswers() == null)
             throw new InvalidQuestionnaireException("Session should contain 'answers' array");
-        Questionnaire defaultQuestionnaire = questionnaireService.getDefaultQuestionnaire();
+        QuestionnaireCatalog catalog = questionnaireService.getCatalog();
         User anonymousUser = userManagementService.getCurrentUser();
 
         session.setDateTime(ZonedDateTime.now());
-        session.setQuestionnaire(defaultQuestionnaire);
+        session.setQuestionnaire(catalog.getQuestionnaire());
         session.setUser(anonymousUser);
-        Map<Long, List<Answer>> questionIdToAnswers = new HashMap<>();
+        validateAnswers(session, catalog);
 
-        for (Answer answer : session.getAnswers()) {
-
-            answer.setPossibleAnswer(possibleAnswerRepository.findById(answer.getPossibleAnswer().getId())
-                    .orElseThrow(() -> new InvalidQuestionnaireException("Possible answer id=" +
-                            answer.getPossibleAnswer().getId() + " was not found")));
-
-            Set<Long> allowedVariableIds = answer.getPossibleAnswer().getVariables().stream()
-                    .map(Variable::getId)
-                    .collect(Collectors.toSet());
+        return session;
+    }
 
-            answer.setSession(session);
+    public String saveSession(Session session) {
+        return saveSession(session, "", false);
+    }
+    public String saveSession(Session session, String seminarAccessCode) {
+        return saveSession(session, seminarAccessCode, false);
+    }
 
-            questionIdToAnswers.putIfAbsent(answer.getPossibleAnswer().getQuestion().getId(), new ArrayList<>());
-            questionIdToAnswers.get(answer.getPossibleAnswer().getQuestion().getId()).add(answer);
+    /**
+     * Validates, scores and saves the session and returns its signed id. With write-behind ingestion the session is
+     * only queued, unless {@code durable}, in which case this returns once it is written.
+     */
+    public String saveSession(Session session, String seminarAccessCode, boolean durable) {
+        prepareSession(session, seminarAccessCode);
+
+        session.setEncodedAnswers(AnswerCodec.encode(session.getAnswers()));
+        if (relationalAnswers)
+            session.setRelationalAnswers(true);
+        else
+            session.storeAnswersEncodedOnly();
+
+        if (sessionIngestionService.isEnabled()) {
+            CompletableFuture<Void> saved = sessionIngestionService.submit(session).thenAccept(this::sessionSaved);
+            if (durable) {
+                try {
+                    saved.join();
+                } catch (CompletionException e) {
+                    throw new IllegalStateException("Session could not be saved", e.getCause());
+                }
+            }
+            return SignedObjectSerializer.serializeWithSignature(session.getId());
+        }
 
-            if (answer.getVariableValues() == null)
-                answer.setVariableValues(new ArrayList<>());
+        Session savedSession = transactionTemplate.execute(status -> {
+            // variable values cascade to their variable, which can't be the detached one of the catalog: a
+            // reference is attached instead, without reading the variable
+            if (session.hasRelationalAnswers()) {
+                for (Answer answer : session.getAnswers()) {
+                    for (VariableValue variableValue : answer.getVariableValues()) {
+                        variableValue.setVariable(variableRepository.getOne(variableValue.getVariable().getId()));
+                    }
+                }
+            }
 
-            for (VariableValue variableValue : answer.getVariableValues()) {
-                if (!allowedVariableIds.remove(variableValue.getVariable().getId()))
-                    throw new InvalidQuestionnaireException("Possible answer id=" + answer.getPossibleAnswer().getId() +
-                            " doesn't have a variable id=" + variableValue.getVariable().getId() + " or this variable is set twice");
+            if (session.getSeminar() != null) {
+                // the seminar of the directory is not managed: a reference is attached instead, without reading it
+                session.setSeminar(seminarRepository.getOne(session.getSeminar().getId()));
+            }
 
-                variableValue.setVariable(variableRepository.findById(variableValue.getVariable().getId()).get());
+            Session saved = sessionRepository.save(session);
 
-                if (!variableValue.getVariable().getScale().isValidInput(variableValue.getValue()))
-                    throw new InvalidQuestionnaireException("Variable value (" + variableValue.getValue() +
-                            ") is invalid (variable id = " + variableValue.getVariable().getId() + ")");
+            if (saved.getSeminar() != null) {
+                // concurrent submissions of a classroom must not overwrite each other's count; the update flushes the
+                // inserts of the session first, so that the seminar row is only locked until the commit right after
+                seminarRepository.incrementSeminarCounter(saved.getSeminar().getId());
             }
 
-            if (!allowedVariableIds.isEmpty())
-                throw new InvalidQuestionnaireException("Possible answer id=" + answer.getPossibleAnswer().getId() +
-                        " has variables without a value (var ids=" + allowedVariableIds + ")");
-        }
+            return saved;
+        });
 
-        return session;
-    }
+        sessionSaved(savedSession);
 
-    public String saveSession(Session session) {
-        return saveSessionGlobal(session, "");
+        return SignedObjectSerializer.serializeWithSignature(savedSession.getId());
     }
-    public String saveSession(Session session, String seminarAccessCode) {
-        return saveSessionGlobal(session, seminarAccessCode);
+
+    private void sessionSaved(Session session) {
+        populationAggregateService.add(session);
+        scoreRollupService.add(session);
+        responseCountService.add(session);
+        questionScoreService.add(session);
     }
-    private String saveSessionGlobal(Session session, String seminarAccessCode) {
+
+    private void prepareSession(Session session, String seminarAccessCode) {
 
         if (session == null)
             throw new InvalidQuestionnaireException("Session not found");
@@ -152,20 +302,57 @@ public class SessionService {
                     throw new InvalidQuestionnaireException("Each answer should have 'possibleAnswer' object");
                 });
 
-        Questionnaire defaultQuestionnaire = questionnaireService.getDefaultQuestionnaire();
+        QuestionnaireCatalog catalog = questionnaireService.getCatalog();
         User anonymousUser = userManagementService.getCurrentUser();
 
         session.setDateTime(ZonedDateTime.now());
-        session.setQuestionnaire(defaultQuestionnaire);
+        session.setQuestionnaire(catalog.getQuestionnaire());
         session.setUser(anonymousUser);
 
+        Map<Long, List<Answer>> questionIdToAnswers = validateAnswers(session, catalog);
+
+        //check that possible answer has only one answer
+        questionIdToAnswers.values().stream()
+                .filter(answers -> answers.size() != answers.stream()
+                        .mapToLong(a -> a.getPossibleAnswer().getId()).distinct().count())
+                .findAny()
+                .ifPresent(a -> {
+                    throw new InvalidQuestionnaireException("More than one answer correspond to one possible answer");
+                });
+
+        //check number of answers limitations
+        catalog.getQuestions().forEach((q) -> {
+            int answersNumber = questionIdToAnswers.containsKey(q.getId()) ? questionIdToAnswers.get(q.getId()).size() : 0;
+            if (q.getMinAnswersNumber() > answersNumber || answersNumber > q.getMaxAnswersNumber())
+                throw new InvalidQuestionnaireException("Question id=" + q.getId() + " has invalid number of answers: " +
+                        answersNumber + " ∉ [" + q.getMinAnswersNumber() + ".." + q.getMaxAnswersNumber() + "]");
+        });
+
+        if(!seminarAccessCode.isEmpty()) {
+            Seminar seminar = seminarService.getSeminarSummaryByAccessCode(seminarAccessCode);
+            if (seminar.getStatus().equals(SeminarStatus.OPEN))
+                session.setSeminar(seminar);
+        }
+
+        SessionScorer.score(session);
+    }
+
+    /**
+     * Replaces the possible answers and variables of the answers by those of the catalog and checks the variable
+     * values.
+     *
+     * @return the answers by question id
+     */
+    private static Map<Long, List<Answer>> validateAnswers(Session session, QuestionnaireCatalog catalog) {
         Map<Long, List<Answer>> questionIdToAnswers = new HashMap<>();
 
         for (Answer answer : session.getAnswers()) {
 
-            answer.setPossibleAnswer(possibleAnswerRepository.findById(answer.getPossibleAnswer().getId())
-                    .orElseThrow(() -> new InvalidQuestionnaireException("Possible answer id=" +
-                            answer.getPossibleAnswer().getId() + " was not found")));
+            PossibleAnswer possibleAnswer = catalog.getPossibleAnswer(answer.getPossibleAnswer().getId());
+            if (possibleAnswer == null)
+                throw new InvalidQuestionnaireException("Possible answer id=" +
+                        answer.getPossibleAnswer().getId() + " was not found");
+            answer.setPossibleAnswer(possibleAnswer);
 
             Set<Long> allowedVariableIds = answer.getPossibleAnswer().getVariables().stream()
                     .map(Variable::getId)
@@ -184,7 +371,7 @@ public class SessionService {
                     throw new InvalidQuestionnaireException("Possible answer id=" + answer.getPossibleAnswer().getId() +
                             " doesn't have a variable id=" + variableValue.getVariable().getId() + " or this variable is set twice");
 
-                variableValue.setVariable(variableRepository.findById(variableValue.getVariable().getId()).get());
+                variableValue.setVariable(catalog.getVariable(variableValue.getVariable().getId()));
 
                 if (!variableValue.getVariable().getScale().isValidInput(variableValue.getValue()))
                     throw new InvalidQuestionnaireException("Variable value (" + variableValue.getValue() +
@@ -196,35 +383,7 @@ public class SessionService {
                         " has variables without a value (var ids=" + allowedVariableIds + ")");
         }
 
-        //check that possible answer has only one answer
-        questionIdToAnswers.values().stream()
-                .filter(answers -> answers.size() != answers.stream()
-                        .mapToLong(a -> a.getPossibleAnswer().getId()).distinct().count())
-                .findAny()
-                .ifPresent(a -> {
-                    throw new InvalidQuestionnaireException("More than one answer correspond to one possible answer");
-                });
-
-        //check number of answers limitations
-        session.getQuestionnaire().getQuestions().forEach((q) -> {
-            int answersNumber = questionIdToAnswers.containsKey(q.getId()) ? questionIdToAnswers.get(q.getId()).size() : 0;
-            if (q.getMinAnswersNumber() > answersNumber || answersNumber > q.getMaxAnswersNumber())
-                throw new InvalidQuestionnaireException("Question id=" + q.getId() + " has invalid number of answers: " +
-                        answersNumber + " ∉ [" + q.getMinAnswersNumber() + ".." + q.getMaxAnswersNumber() + "]");
-        });
-
-        if(!seminarAccessCode.isEmpty()) {
-            Seminar seminar = seminarService.getSeminarByAccessCode(seminarAccessCode);
-            if (seminar.getStatus().equals(SeminarStatus.OPEN)){
-                session.setSeminar(seminar);
-                seminar.setSeminarCounter(seminar.getSeminarCounter() + 1);
-            }
-            seminar = seminarRepository.save(seminar);
-        }
-
-        session = sessionRepository.save(session);
-
-        return SignedObjectSerializer.serializeWithSignature(sessionRepository.save(session).getId());
+        return questionIdToAnswers;
     }
 
     @ResponseStatus(value = HttpStatus.BAD_REQUEST)
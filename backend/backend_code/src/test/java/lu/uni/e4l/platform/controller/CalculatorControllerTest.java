@@ -0,0 +1,65 @@
+package lu.uni.e4l.platform.controller;
+
+import lu.uni.e4l.platform.model.dto.QuestionComparison;
+import lu.uni.e4l.platform.service.*;
+import lu.uni.e4l.platform.service.crypto.SignedObjectSerializer;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.util.Collections;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class CalculatorControllerTest {
+
+    private final QuestionScoreService questionScoreService = mock(QuestionScoreService.class);
+
+    private MockMvc mockMvc;
+
+    @Before
+    public void setUp() {
+        new SignedObjectSerializer().setNameStatic("test");
+
+        mockMvc = MockMvcBuilders.standaloneSetup(new CalculatorController(mock(CalculatorService.class),
+                mock(SessionService.class), mock(SeminarService.class), mock(SessionScoreMigrationService.class),
+                mock(PopulationAggregateService.class), questionScoreService, mock(ResultBreakdownCache.class)))
+                .build();
+    }
+
+    @Test
+    public void migrateQuestionScoresRebuildsTheStoredResults() throws Exception {
+        when(questionScoreService.rebuild()).thenReturn(12L);
+
+        mockMvc.perform(get("/migrateQuestionScores"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(
+                        "Migration of question scores completed successfully (12 question scores)"));
+    }
+
+    @Test
+    public void compareQuestionsOfTheSignedSession() throws Exception {
+        QuestionComparison comparison = new QuestionComparison();
+        comparison.setQuestionId(10);
+        comparison.setQuestion("transport");
+        comparison.setResult(20);
+        comparison.setSessionCount(2);
+        comparison.setPopulationMean(25);
+        comparison.setPopulationPercentile(50);
+        when(questionScoreService.getComparison(42)).thenReturn(Collections.singletonList(comparison));
+
+        mockMvc.perform(get("/calculate/session/{sessionId}/questions",
+                        SignedObjectSerializer.serializeWithSignature(42L)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].question").value("transport"))
+                .andExpect(jsonPath("$[0].result").value(20.0))
+                .andExpect(jsonPath("$[0].populationMean").value(25.0))
+                .andExpect(jsonPath("$[0].seminarMean").doesNotExist());
+    }
+}
@@ -0,0 +1,246 @@
+package lu.uni.e4l.platform.integration;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lu.uni.e4l.platform.model.*;
+import lu.uni.e4l.platform.model.dto.RescoringProgress;
+import lu.uni.e4l.platform.model.dto.ResultBreakdown;
+import lu.uni.e4l.platform.model.dto.ResultBreakdownSeminar;
+import lu.uni.e4l.platform.repository.*;
+import lu.uni.e4l.platform.service.*;
+import lu.uni.e4l.platform.service.crypto.SignedObjectSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.mail.MailSenderAutoConfiguration;
+import org.springframework.boot.autoconfigure.security.servlet.SecurityAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Resumes an interrupted rescoring with a changed formula and checks the scores once the version is activated, and
+ * the results of the closed seminar of the sessions.
+ */
+@SpringBootTest(classes = FormulaVersionRescoringTest.TestConfig.class)
+// every test rescores all the sessions of the database
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:rescoring;MODE=MySQL;DATABASE_TO_UPPER=FALSE",
+    "spring.datasource.driver-class-name=org.h2.Driver",
+    "spring.datasource.username=sa",
+    "spring.datasource.password=",
+    "spring.jpa.hibernate.ddl-auto=create-drop",
+    "spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+    "JWT_SECRET=dummy",
+    "spring.main.allow-bean-definition-overriding=true"
+})
+public class FormulaVersionRescoringTest {
+
+    private static final int SESSIONS = 6;
+
+    @Configuration
+    @EnableAutoConfiguration(exclude = {
+        SecurityAutoConfiguration.class,
+        MailSenderAutoConfiguration.class
+    })
+    @EnableJpaRepositories(basePackages = "lu.uni.e4l.platform.repository")
+    @EntityScan(basePackages = "lu.uni.e4l.platform")
+    static class TestConfig {}
+
+    @Autowired
+    private SessionRepository sessionRepository;
+
+    @Autowired
+    private QuestionnaireRepository questionnaireRepository;
+
+    @Autowired
+    private PossibleAnswerRepository possibleAnswerRepository;
+
+    @Autowired
+    private FormulaVersionRepository formulaVersionRepository;
+
+    @Autowired
+    private SeminarRepository seminarRepository;
+
+    @Autowired
+    private SeminarResultSnapshotRepository seminarResultSnapshotRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    private FormulaVersionService formulaVersionService;
+    private long possibleAnswerId;
+    private long seminarId;
+    private final List<Long> sessionIds = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        new SignedObjectSerializer().setNameStatic("test");
+
+        PopulationAggregateService populationAggregateService = mock(PopulationAggregateService.class);
+        ScoreRollupService scoreRollupService = mock(ScoreRollupService.class);
+        QuestionScoreService questionScoreService = mock(QuestionScoreService.class);
+        ResultBreakdownCache resultBreakdownCache = mock(ResultBreakdownCache.class);
+        SeminarService seminarService = new SeminarService(seminarRepository, sessionRepository,
+                new SessionLoader(sessionRepository, mock(QuestionnaireService.class)),
+                seminarResultSnapshotRepository, populationAggregateService, scoreRollupService,
+                mock(ResponseCountService.class), questionScoreService, resultBreakdownCache, objectMapper,
+                transactionTemplate);
+
+        // batches of 2 sessions
+        formulaVersionService = new FormulaVersionService(formulaVersionRepository, sessionRepository,
+                possibleAnswerRepository, mock(QuestionnaireService.class),
+                new SessionScoreMigrationService(sessionRepository, transactionTemplate),
+                populationAggregateService, scoreRollupService, questionScoreService, seminarService,
+                resultBreakdownCache, transactionTemplate, 2);
+
+        transactionTemplate.executeWithoutResult(status -> {
+            Seminar seminar = new Seminar();
+            seminar.setAccessCode("rescoring");
+            seminar.setStatus(SeminarStatus.CLOSED);
+            seminar = seminarRepository.save(seminar);
+            seminarId = seminar.getId();
+
+            Variable dist = new Variable();
+            dist.setName("dist");
+            PossibleAnswer byCar = new PossibleAnswer("by_car", "dist");
+            byCar.setVariables(new ArrayList<>(Collections.singletonList(dist)));
+            Question transport = new Question();
+            transport.setName("transport");
+            transport.setPossibleAnswers(asList(byCar));
+            byCar.setQuestion(transport);
+            Questionnaire questionnaire = questionnaireRepository.save(
+                    new Questionnaire("rescoring", new ArrayList<>(asList(transport))));
+            possibleAnswerId = byCar.getId();
+
+            for (int i = 1; i <= SESSIONS; i++) {
+                Session session = new Session();
+                session.setDateTime(ZonedDateTime.now());
+                session.setQuestionnaire(questionnaire);
+                session.setSeminar(seminar);
+
+                VariableValue value = new VariableValue();
+                value.setVariable(dist);
+                value.setValue(10.0 * i);
+                Answer answer = new Answer();
+                answer.setSession(session);
+                answer.setPossibleAnswer(byCar);
+                answer.getVariableValues().add(value);
+                answer.setScore(10.0 * i);
+                session.setAnswers(new ArrayList<>(asList(answer)));
+                session.setTotalScore(10.0 * i);
+                session.setFormulaVersion(1);
+
+                // sessions 1 and 2 were rescored before the job was interrupted; session 3 was saved with the
+                // previous formulas meanwhile, with an id below the checkpoint
+                if (i <= 2) {
+                    answer.setPendingScore(1000.0 + i);
+                    session.setPendingTotalScore(1000.0 + i);
+                    session.setPendingFormulaVersion(2);
+                }
+
+                sessionIds.add(sessionRepository.save(session).getId());
+            }
+
+            formulaVersionRepository.save(version(1, FormulaVersionStatus.ACTIVE, "dist"));
+            FormulaVersion rescoring = version(2, FormulaVersionStatus.RESCORING, "2 * dist");
+            rescoring.setLastRescoredSessionId(sessionIds.get(2));
+            rescoring.setRescoredSessionCount(2);
+            formulaVersionRepository.save(rescoring);
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        formulaVersionService.shutdown();
+        FormulaRegistry.setVersion(1);
+    }
+
+    @Test
+    void resumedRescoringActivatesTheChangedFormula() throws InterruptedException {
+        formulaVersionService.resumeRescoring();
+        RescoringProgress progress = awaitFinished();
+
+        assertNull(progress.getError());
+        // sessions 4 to 6 are rescored on resume, the others are not rescored again
+        assertEquals(5, progress.getRescoredSessionCount());
+
+        transactionTemplate.executeWithoutResult(status -> {
+            List<Session> sessions = new ArrayList<>();
+            sessionRepository.findAllById(sessionIds).forEach(sessions::add);
+            sessions.sort((a, b) -> Long.compare(a.getId(), b.getId()));
+
+            // scores stored before the interruption are swapped in
+            assertEquals(1001, sessions.get(0).getTotalScore(), 0d);
+            assertEquals(1002, sessions.get(1).getAnswers().get(0).getScore(), 0d);
+            // the session saved with the previous formulas is cleared and scored again with the new ones
+            assertEquals(60, sessions.get(2).getTotalScore(), 0d);
+            for (int i = 3; i < SESSIONS; i++) {
+                Session session = sessions.get(i);
+                assertEquals(20.0 * (i + 1), session.getTotalScore(), 0d);
+                assertEquals(20.0 * (i + 1), session.getAnswers().get(0).getScore(), 0d);
+            }
+            for (Session session : sessions) {
+                assertEquals(2, (int) session.getFormulaVersion());
+                assertNull(session.getPendingTotalScore());
+                assertNull(session.getPendingFormulaVersion());
+            }
+
+            assertEquals("2 * dist", possibleAnswerRepository.findById(possibleAnswerId).get().getFormula());
+            assertEquals(FormulaVersionStatus.RETIRED, formulaVersionRepository.findByNumber(1).getStatus());
+            assertEquals(FormulaVersionStatus.ACTIVE, formulaVersionRepository.findByNumber(2).getStatus());
+        });
+    }
+
+    @Test
+    void resultsOfClosedSeminarsAreRecomputedWithTheChangedFormula() throws Exception {
+        formulaVersionService.resumeRescoring();
+        assertNull(awaitFinished().getError());
+
+        // computed on the rescoring thread, outside of any request
+        SeminarResultSnapshot snapshot = seminarResultSnapshotRepository.findBySeminarId(seminarId);
+        ResultBreakdownSeminar result = objectMapper.readValue(snapshot.getResult(), ResultBreakdownSeminar.class);
+        assertEquals(asList(1001.0, 1002.0, 60.0, 80.0, 100.0, 120.0), result.getResultBreakdownList().stream()
+                .map(ResultBreakdown::getResult)
+                .collect(Collectors.toList()));
+    }
+
+    private RescoringProgress awaitFinished() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+
+        while (formulaVersionService.getProgress().isRunning()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Rescoring did not finish");
+            Thread.sleep(50);
+        }
+
+        return formulaVersionService.getProgress();
+    }
+
+    private FormulaVersion version(int number, FormulaVersionStatus status, String formula) {
+        FormulaVersion version = new FormulaVersion();
+        version.setNumber(number);
+        version.setStatus(status);
+        version.getFormulas().put(possibleAnswerId, formula);
+        version.setCreatedDateTime(ZonedDateTime.now());
+        return version;
+    }
+}
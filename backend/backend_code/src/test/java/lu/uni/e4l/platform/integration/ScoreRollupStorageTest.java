@@ -0,0 +1,122 @@
+package lu.uni.e4l.platform.integration;
+
+import lu.uni.e4l.platform.model.RollupGranularity;
+import lu.uni.e4l.platform.model.ScoreRollup;
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.model.dto.ScoreTrend;
+import lu.uni.e4l.platform.repository.ScoreRollupRepository;
+import lu.uni.e4l.platform.repository.SessionRepository;
+import lu.uni.e4l.platform.service.ScoreRollupService;
+import lu.uni.e4l.platform.service.SessionScoreMigrationService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.mail.MailSenderAutoConfiguration;
+import org.springframework.boot.autoconfigure.security.servlet.SecurityAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Score rollups stored in the database generated from the entities, with one row per granularity, bucket, kid flag
+ * and seminar.
+ */
+@SpringBootTest(classes = ScoreRollupStorageTest.TestConfig.class)
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:scorerollupstorage;MODE=MySQL;DATABASE_TO_UPPER=FALSE",
+    "spring.datasource.driver-class-name=org.h2.Driver",
+    "spring.datasource.username=sa",
+    "spring.datasource.password=",
+    "spring.jpa.hibernate.ddl-auto=create-drop",
+    "spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+    "JWT_SECRET=dummy",
+    "spring.main.allow-bean-definition-overriding=true"
+})
+public class ScoreRollupStorageTest {
+
+    @Configuration
+    @EnableAutoConfiguration(exclude = {
+        SecurityAutoConfiguration.class,
+        MailSenderAutoConfiguration.class
+    })
+    @EnableJpaRepositories(basePackages = "lu.uni.e4l.platform.repository")
+    @EntityScan(basePackages = "lu.uni.e4l.platform")
+    static class TestConfig {}
+
+    private static final ZonedDateTime WEDNESDAY = ZonedDateTime.of(2024, 3, 6, 12, 0, 0, 0, ZoneOffset.UTC);
+
+    @Autowired
+    private ScoreRollupRepository scoreRollupRepository;
+
+    @Autowired
+    private SessionRepository sessionRepository;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    private ScoreRollupService scoreRollupService;
+
+    @BeforeEach
+    void setUp() {
+        scoreRollupService = new ScoreRollupService(scoreRollupRepository, sessionRepository,
+                mock(SessionScoreMigrationService.class), transactionTemplate);
+
+        scoreRollupRepository.deleteAll();
+    }
+
+    @Test
+    void flushesAreAddedToTheStoredRollupOfTheBucket() {
+        scoreRollupService.add(session(25));
+        scoreRollupService.flush();
+        scoreRollupService.add(session(75));
+        scoreRollupService.flush();
+
+        // one rollup for the week and one for the month
+        assertEquals(2, scoreRollupRepository.count());
+
+        List<ScoreTrend> trend = scoreRollupService.getTrend(RollupGranularity.WEEK, WEDNESDAY.toLocalDate(),
+                WEDNESDAY.toLocalDate(), null, null);
+        assertEquals(1, trend.size());
+        assertEquals(LocalDate.of(2024, 3, 4), trend.get(0).getBucketStart());
+        assertEquals(2, trend.get(0).getSessionCount());
+        assertEquals(50, trend.get(0).getAverageScore(), 1e-9);
+    }
+
+    @Test
+    void secondRollupOfTheSameBucketIsRejected() {
+        scoreRollupRepository.save(rollup());
+
+        assertThrows(DataIntegrityViolationException.class, () -> scoreRollupRepository.save(rollup()));
+    }
+
+    private static Session session(double totalScore) {
+        Session session = new Session();
+        session.setDateTime(WEDNESDAY);
+        session.setTotalScore(totalScore);
+        return session;
+    }
+
+    private static ScoreRollup rollup() {
+        ScoreRollup rollup = new ScoreRollup();
+        rollup.setGranularity(RollupGranularity.WEEK);
+        rollup.setBucketStart(LocalDate.of(2024, 3, 4));
+        rollup.setHistogram(new ArrayList<>(Collections.nCopies(ScoreRollupService.HISTOGRAM_SIZE, 0L)));
+        return rollup;
+    }
+}
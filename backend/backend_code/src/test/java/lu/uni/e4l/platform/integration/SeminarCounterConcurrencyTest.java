@@ -0,0 +1,151 @@
+package lu.uni.e4l.platform.integration;
+
+import lu.uni.e4l.platform.model.*;
+import lu.uni.e4l.platform.repository.QuestionnaireRepository;
+import lu.uni.e4l.platform.repository.SeminarRepository;
+import lu.uni.e4l.platform.repository.SessionRepository;
+import lu.uni.e4l.platform.repository.VariableRepository;
+import lu.uni.e4l.platform.service.*;
+import lu.uni.e4l.platform.service.crypto.SignedObjectSerializer;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.mail.MailSenderAutoConfiguration;
+import org.springframework.boot.autoconfigure.security.servlet.SecurityAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest(classes = SeminarCounterConcurrencyTest.TestConfig.class)
+@TestPropertySource(properties = {
+    // submissions of a seminar wait for each other's lock on the seminar row
+    "spring.datasource.url=jdbc:h2:mem:seminarcounter;MODE=MySQL;DATABASE_TO_UPPER=FALSE;LOCK_TIMEOUT=30000",
+    "spring.datasource.driver-class-name=org.h2.Driver",
+    "spring.datasource.username=sa",
+    "spring.datasource.password=",
+    "spring.datasource.hikari.maximum-pool-size=50",
+    "spring.jpa.hibernate.ddl-auto=create-drop",
+    "spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+    "JWT_SECRET=dummy",
+    "spring.main.allow-bean-definition-overriding=true"
+})
+public class SeminarCounterConcurrencyTest {
+
+    private static final int SUBMISSIONS = 500;
+
+    @Configuration
+    @EnableAutoConfiguration(exclude = {
+        SecurityAutoConfiguration.class,
+        MailSenderAutoConfiguration.class
+    })
+    @EnableJpaRepositories(basePackages = "lu.uni.e4l.platform.repository")
+    @EntityScan(basePackages = "lu.uni.e4l.platform")
+    static class TestConfig {}
+
+    @Autowired
+    private SeminarRepository seminarRepository;
+
+    @Autowired
+    private SessionRepository sessionRepository;
+
+    @Autowired
+    private QuestionnaireRepository questionnaireRepository;
+
+    @Autowired
+    private VariableRepository variableRepository;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Test
+    void parallelSubmissionsAreAllCounted() throws Exception {
+        new SignedObjectSerializer().setNameStatic("test");
+
+        Seminar seminar = new Seminar();
+        seminar.setAccessCode("classroom");
+        seminar.setStatus(SeminarStatus.OPEN);
+        long seminarId = seminarRepository.save(seminar).getId();
+
+        PossibleAnswer vegan = new PossibleAnswer("vegan", "1");
+        vegan.setVariables(new ArrayList<>());
+        Question food = new Question();
+        food.setName("food");
+        food.setMinAnswersNumber(1);
+        food.setMaxAnswersNumber(1);
+        food.setPossibleAnswers(Collections.singletonList(vegan));
+        vegan.setQuestion(food);
+        QuestionnaireCatalog catalog = transactionTemplate.execute(status -> QuestionnaireCatalog.of(
+                questionnaireRepository.save(new Questionnaire("classroom", new ArrayList<>(Collections.singletonList(food))))));
+
+        SessionService sessionService = sessionService(catalog, seminarId);
+
+        // fewer submitters than connections: allocating ids takes a second connection, outside the transaction
+        ExecutorService executor = Executors.newFixedThreadPool(40);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> submissions = new ArrayList<>();
+
+        for (int i = 0; i < SUBMISSIONS; i++) {
+            submissions.add(executor.submit(() -> {
+                start.await();
+                return sessionService.saveSession(session(vegan.getId()), "classroom", false);
+            }));
+        }
+
+        start.countDown();
+        for (Future<String> submission : submissions) {
+            submission.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(SUBMISSIONS, seminarRepository.findById(seminarId).get().getSeminarCounter());
+        assertEquals(SUBMISSIONS, sessionRepository.count());
+    }
+
+    /**
+     * Session service with the repositories of the test database, resolving the seminar as the seminar directory
+     * does. The other services are not involved in the save.
+     */
+    private SessionService sessionService(QuestionnaireCatalog catalog, long seminarId) {
+        QuestionnaireService questionnaireService = mock(QuestionnaireService.class);
+        when(questionnaireService.getCatalog()).thenReturn(catalog);
+
+        Seminar summary = new Seminar();
+        summary.setId(seminarId);
+        summary.setAccessCode("classroom");
+        summary.setStatus(SeminarStatus.OPEN);
+        SeminarService seminarService = mock(SeminarService.class);
+        when(seminarService.getSeminarSummaryByAccessCode("classroom")).thenReturn(summary);
+
+        SessionService sessionService = new SessionService(variableRepository, sessionRepository,
+                new SessionLoader(sessionRepository, questionnaireService), seminarRepository, questionnaireService, mock(UserManagementService.class), seminarService,
+                mock(PopulationAggregateService.class), mock(ScoreRollupService.class),
+                mock(ResponseCountService.class), mock(QuestionScoreService.class),
+                mock(SessionIngestionService.class), transactionTemplate);
+        ReflectionTestUtils.setField(sessionService, "relationalAnswers", true);
+        return sessionService;
+    }
+
+    private static Session session(long possibleAnswerId) {
+        PossibleAnswer possibleAnswer = new PossibleAnswer();
+        possibleAnswer.setId(possibleAnswerId);
+        Answer answer = new Answer();
+        answer.setPossibleAnswer(possibleAnswer);
+
+        Session session = new Session();
+        session.setAnswers(new ArrayList<>(Collections.singletonList(answer)));
+        return session;
+    }
+}
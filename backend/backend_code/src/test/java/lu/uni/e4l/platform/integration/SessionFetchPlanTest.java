@@ -0,0 +1,205 @@
+package lu.uni.e4l.platform.integration;
+
+import lu.uni.e4l.platform.model.*;
+import lu.uni.e4l.platform.model.dto.ResultBreakdown;
+import lu.uni.e4l.platform.repository.QuestionnaireRepository;
+import lu.uni.e4l.platform.repository.SeminarRepository;
+import lu.uni.e4l.platform.repository.SessionRepository;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.mail.MailSenderAutoConfiguration;
+import org.springframework.boot.autoconfigure.security.servlet.SecurityAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManagerFactory;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest(classes = SessionFetchPlanTest.TestConfig.class)
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:fetchplan;MODE=MySQL;DATABASE_TO_UPPER=FALSE",
+    "spring.datasource.driver-class-name=org.h2.Driver",
+    "spring.datasource.username=sa",
+    "spring.datasource.password=",
+    "spring.jpa.hibernate.ddl-auto=create-drop",
+    "spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+    "spring.jpa.properties.hibernate.generate_statistics=true",
+    "JWT_SECRET=dummy",
+    "spring.main.allow-bean-definition-overriding=true"
+})
+public class SessionFetchPlanTest {
+
+    @Configuration
+    @EnableAutoConfiguration(exclude = {
+        SecurityAutoConfiguration.class,
+        MailSenderAutoConfiguration.class
+    })
+    @EnableJpaRepositories(basePackages = "lu.uni.e4l.platform.repository")
+    @EntityScan(basePackages = "lu.uni.e4l.platform")
+    static class TestConfig {}
+
+    @Autowired
+    private SessionRepository sessionRepository;
+
+    @Autowired
+    private QuestionnaireRepository questionnaireRepository;
+
+    @Autowired
+    private SeminarRepository seminarRepository;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Statistics statistics;
+
+    @BeforeEach
+    void setUp() {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+
+        if (sessionRepository.count() > 0)
+            return;
+
+        transactionTemplate.executeWithoutResult(status -> {
+            Questionnaire questionnaire = questionnaireRepository.save(new Questionnaire("fetch-plan", asList(
+                    question("transport", possibleAnswer("by_car", "dist", "n"), possibleAnswer("by_bus", "dist")),
+                    question("food", possibleAnswer("vegan", "n")))));
+
+            List<Seminar> seminars = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                Seminar seminar = new Seminar();
+                seminar.setAccessCode("fetch-plan-" + i);
+                seminar.setStatus(SeminarStatus.OPEN);
+                seminars.add(seminarRepository.save(seminar));
+            }
+
+            List<Session> sessions = new ArrayList<>();
+            for (int i = 0; i < 60; i++) {
+                Session session = new Session();
+                session.setDateTime(ZonedDateTime.now().minusMinutes(i));
+                session.setQuestionnaire(questionnaire);
+                // one session out of four without a seminar
+                if (i % 4 != 0)
+                    session.setSeminar(seminars.get(i % seminars.size()));
+                session.setAnswers(new ArrayList<>());
+
+                for (Question question : questionnaire.getQuestions()) {
+                    PossibleAnswer possibleAnswer = question.getPossibleAnswers().get(i % question.getPossibleAnswers().size());
+                    Answer answer = new Answer();
+                    answer.setSession(session);
+                    answer.setPossibleAnswer(possibleAnswer);
+                    answer.setScore(1.0);
+                    for (Variable variable : possibleAnswer.getVariables()) {
+                        VariableValue variableValue = new VariableValue();
+                        variableValue.setVariable(variable);
+                        variableValue.setValue((double) i);
+                        answer.getVariableValues().add(variableValue);
+                    }
+                    session.getAnswers().add(answer);
+                }
+
+                session.setTotalScore(2.0);
+                sessions.add(session);
+            }
+            sessionRepository.saveAll(sessions);
+        });
+    }
+
+    @Test
+    void pageIsLoadedWithTwoStatements() {
+        List<Long> ids = sessionRepository.findAllIds();
+
+        assertEquals(2, statementsToLoad(ids.subList(0, 10)));
+        assertEquals(2, statementsToLoad(ids));
+    }
+
+    @Test
+    void sessionsAreReturnedInTheOrderOfTheIds() {
+        List<Long> ids = new ArrayList<>(sessionRepository.findAllIds().subList(0, 5));
+        Collections.reverse(ids);
+
+        List<Session> sessions = sessionRepository.findForScoring(ids);
+
+        for (int i = 0; i < ids.size(); i++)
+            assertEquals((long) ids.get(i), sessions.get(i).getId());
+    }
+
+    @Test
+    void seminarIdIsReadWithoutLoadingTheSeminar() {
+        List<Long> ids = sessionRepository.findAllIds();
+        statistics.clear();
+
+        List<Session> sessions = sessionRepository.findForScoring(ids);
+        List<Long> seminarIds = new ArrayList<>();
+        for (Session session : sessions) {
+            // as read by the breakdown, rollups and question scores
+            seminarIds.add(session.getSeminar() != null ? session.getSeminar().getId() : null);
+        }
+
+        assertEquals(0, statistics.getEntityStatistics(Seminar.class.getName()).getLoadCount());
+        assertEquals(45, seminarIds.stream().filter(Objects::nonNull).count());
+        transactionTemplate.executeWithoutResult(status -> {
+            for (int i = 0; i < ids.size(); i++) {
+                Seminar seminar = sessionRepository.findById(ids.get(i)).get().getSeminar();
+                assertEquals(seminar == null ? null : seminar.getId(), seminarIds.get(i));
+            }
+        });
+    }
+
+    /**
+     * Statements run to load the sessions and build their breakdowns. The sessions are detached once loaded, so
+     * anything left to load lazily would fail instead of being counted.
+     */
+    private long statementsToLoad(List<Long> ids) {
+        statistics.clear();
+
+        List<Session> sessions = sessionRepository.findForScoring(ids);
+        for (Session session : sessions) {
+            ResultBreakdown breakdown = ResultBreakdown.fromSession(session, true);
+            breakdown.getBreakdown().forEach(entry -> entry.getAnswers()
+                    .forEach(answer -> answer.getVariables().forEach(value -> value.getVariable().getName())));
+        }
+
+        assertEquals(ids.size(), sessions.size());
+        return statistics.getPrepareStatementCount();
+    }
+
+    private static Question question(String name, PossibleAnswer... possibleAnswers) {
+        Question question = new Question();
+        question.setName(name);
+        question.setPossibleAnswers(asList(possibleAnswers));
+        for (PossibleAnswer possibleAnswer : possibleAnswers)
+            possibleAnswer.setQuestion(question);
+        return question;
+    }
+
+    private static PossibleAnswer possibleAnswer(String name, String... variableNames) {
+        PossibleAnswer possibleAnswer = new PossibleAnswer();
+        possibleAnswer.setName(name);
+        possibleAnswer.setFormula("1");
+        possibleAnswer.setVariables(new ArrayList<>());
+        for (String variableName : variableNames) {
+            Variable variable = new Variable();
+            variable.setName(variableName);
+            possibleAnswer.getVariables().add(variable);
+        }
+        return possibleAnswer;
+    }
+}
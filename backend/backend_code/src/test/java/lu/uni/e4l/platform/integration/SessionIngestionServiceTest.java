@@ -0,0 +1,364 @@
+package lu.uni.e4l.platform.integration;
+
+import lu.uni.e4l.platform.controller.CalculatorController;
+import lu.uni.e4l.platform.exception.ServiceUnavailableException;
+import lu.uni.e4l.platform.model.*;
+import lu.uni.e4l.platform.repository.QuestionnaireRepository;
+import lu.uni.e4l.platform.repository.SeminarRepository;
+import lu.uni.e4l.platform.repository.SessionRepository;
+import lu.uni.e4l.platform.repository.VariableRepository;
+import lu.uni.e4l.platform.service.*;
+import lu.uni.e4l.platform.service.crypto.SignedObjectSerializer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.mail.MailSenderAutoConfiguration;
+import org.springframework.boot.autoconfigure.security.servlet.SecurityAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManagerFactory;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Write-behind ingestion against the test database. Writes go through a transaction template that can hold the
+ * writers back or fail, to observe the sessions while they are queued.
+ */
+@SpringBootTest(classes = SessionIngestionServiceTest.TestConfig.class)
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:ingestion;MODE=MySQL;DATABASE_TO_UPPER=FALSE",
+    "spring.datasource.driver-class-name=org.h2.Driver",
+    "spring.datasource.username=sa",
+    "spring.datasource.password=",
+    "spring.jpa.hibernate.ddl-auto=create-drop",
+    "spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+    "JWT_SECRET=dummy",
+    "spring.main.allow-bean-definition-overriding=true"
+})
+public class SessionIngestionServiceTest {
+
+    private static final int RETRY_AFTER_SECONDS = 7;
+
+    @Configuration
+    @EnableAutoConfiguration(exclude = {
+        SecurityAutoConfiguration.class,
+        MailSenderAutoConfiguration.class
+    })
+    @EnableJpaRepositories(basePackages = "lu.uni.e4l.platform.repository")
+    @EntityScan(basePackages = "lu.uni.e4l.platform")
+    static class TestConfig {}
+
+    @Autowired
+    private SessionRepository sessionRepository;
+
+    @Autowired
+    private SeminarRepository seminarRepository;
+
+    @Autowired
+    private QuestionnaireRepository questionnaireRepository;
+
+    @Autowired
+    private VariableRepository variableRepository;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    private ControlledTransactionTemplate writes;
+    private SessionIngestionService ingestionService;
+    private long possibleAnswerId;
+
+    @BeforeEach
+    void setUp() {
+        new SignedObjectSerializer().setNameStatic("test");
+        writes = new ControlledTransactionTemplate(transactionManager);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        writes.release();
+        if (ingestionService != null)
+            ingestionService.stop();
+    }
+
+    @Test
+    void fullQueueRespondsWithServiceUnavailableAndRetryAfter() throws Exception {
+        writes.hold();
+        ingestionService = ingestionService(1, 1);
+        SessionService sessionService = sessionService(ingestionService);
+
+        sessionService.saveSession(submittedSession(), "", false);
+
+        ServiceUnavailableException refused = assertThrows(ServiceUnavailableException.class,
+                () -> sessionService.saveSession(submittedSession(), "", false));
+        assertEquals(RETRY_AFTER_SECONDS, refused.getRetryAfterSeconds());
+
+        MockMvc mockMvc = MockMvcBuilders.standaloneSetup(new CalculatorController(mock(CalculatorService.class),
+                sessionService, mock(SeminarService.class), mock(SessionScoreMigrationService.class),
+                mock(PopulationAggregateService.class), mock(QuestionScoreService.class),
+                mock(ResultBreakdownCache.class))).build();
+        mockMvc.perform(post("/session")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"answers\": [{\"possibleAnswer\": {\"id\": " + possibleAnswerId + "}}]}"))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, String.valueOf(RETRY_AFTER_SECONDS)));
+    }
+
+    @Test
+    void durableSubmissionReturnsOnceTheSessionIsWritten() {
+        writes.hold();
+        ingestionService = ingestionService(10, 1);
+        SessionService sessionService = sessionService(ingestionService);
+
+        CompletableFuture.runAsync(() -> {
+            writes.awaitWriting();
+            writes.release();
+        });
+        String signedId = sessionService.saveSession(submittedSession(), "", true);
+
+        long id = SignedObjectSerializer.deserialize(signedId, Long.class);
+        assertEquals(1, countSessions(id));
+        assertNull(ingestionService.getPendingSession(id));
+    }
+
+    @Test
+    void queuedSessionIsServedUntilItIsWritten() throws Exception {
+        writes.hold();
+        ingestionService = ingestionService(10, 1);
+
+        Session session = session(null);
+        CompletableFuture<Session> written = ingestionService.submit(session);
+        writes.awaitWriting();
+
+        assertSame(session, ingestionService.getPendingSession(session.getId()));
+        assertEquals(0, countSessions(session.getId()));
+
+        writes.release();
+        written.get(10, TimeUnit.SECONDS);
+
+        assertNull(ingestionService.getPendingSession(session.getId()));
+        assertEquals(1, countSessions(session.getId()));
+    }
+
+    @Test
+    void stopWritesTheQueuedSessions() throws Exception {
+        writes.hold();
+        ingestionService = ingestionService(10, 1);
+
+        // the writer holds the first session, the others stay queued
+        List<Session> sessions = new ArrayList<>();
+        List<CompletableFuture<Session>> written = new ArrayList<>();
+        sessions.add(session(null));
+        written.add(ingestionService.submit(sessions.get(0)));
+        writes.awaitWriting();
+        for (int i = 0; i < 4; i++) {
+            sessions.add(session(null));
+            written.add(ingestionService.submit(sessions.get(i + 1)));
+        }
+
+        CompletableFuture<Void> stopped = CompletableFuture.runAsync(() -> {
+            try {
+                ingestionService.stop();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        // the writer stops polling after its batch, the queued sessions are left to stop()
+        Thread.sleep(200);
+        assertThrows(ServiceUnavailableException.class, () -> ingestionService.submit(session(null)));
+        writes.release();
+        stopped.get(30, TimeUnit.SECONDS);
+
+        for (int i = 0; i < sessions.size(); i++) {
+            assertTrue(written.get(i).isDone());
+            assertEquals(1, countSessions(sessions.get(i).getId()));
+        }
+    }
+
+    @Test
+    void sessionsAreWrittenAgainAfterADatabaseFailure() throws Exception {
+        writes.failNext(2);
+        ingestionService = ingestionService(10, 1);
+
+        Session session = session(null);
+        CompletableFuture<Session> written = ingestionService.submit(session);
+
+        written.get(10, TimeUnit.SECONDS);
+        assertEquals(1, countSessions(session.getId()));
+        assertNull(ingestionService.getPendingSession(session.getId()));
+    }
+
+    @Test
+    void sessionRejectedByTheDatabaseIsDroppedWithoutTheOthers() throws Exception {
+        writes.hold();
+        ingestionService = ingestionService(10, 1);
+
+        Session first = session(null);
+        CompletableFuture<Session> firstWritten = ingestionService.submit(first);
+        writes.awaitWriting();
+
+        // written in one batch with a valid session, the seminar doesn't exist
+        Seminar deleted = new Seminar();
+        deleted.setId(Long.MAX_VALUE);
+        Session rejected = session(deleted);
+        Session valid = session(null);
+        CompletableFuture<Session> rejectedWritten = ingestionService.submit(rejected);
+        CompletableFuture<Session> validWritten = ingestionService.submit(valid);
+        writes.release();
+
+        firstWritten.get(10, TimeUnit.SECONDS);
+        validWritten.get(10, TimeUnit.SECONDS);
+        ExecutionException failure = assertThrows(ExecutionException.class,
+                () -> rejectedWritten.get(10, TimeUnit.SECONDS));
+        assertTrue(failure.getCause() instanceof DataIntegrityViolationException);
+
+        assertNull(ingestionService.getPendingSession(rejected.getId()));
+        assertEquals(0, countSessions(rejected.getId()));
+        assertEquals(1, countSessions(valid.getId()));
+    }
+
+    private SessionIngestionService ingestionService(int queueCapacity, int writerCount) {
+        return new SessionIngestionService(true, queueCapacity, 100, writerCount, RETRY_AFTER_SECONDS,
+                entityManagerFactory, jdbcTemplate, writes);
+    }
+
+    /**
+     * Session service with the repositories of the test database and a questionnaire of one question. The other
+     * services are not involved in the save.
+     */
+    private SessionService sessionService(SessionIngestionService ingestionService) {
+        PossibleAnswer vegan = new PossibleAnswer("vegan", "1");
+        vegan.setVariables(new ArrayList<>());
+        Question food = new Question();
+        food.setName("food");
+        food.setMinAnswersNumber(1);
+        food.setMaxAnswersNumber(1);
+        food.setPossibleAnswers(Collections.singletonList(vegan));
+        vegan.setQuestion(food);
+        Questionnaire questionnaire = new Questionnaire("ingestion", new ArrayList<>(Collections.singletonList(food)));
+        QuestionnaireCatalog catalog = transactionTemplate.execute(
+                status -> QuestionnaireCatalog.of(questionnaireRepository.save(questionnaire)));
+        possibleAnswerId = vegan.getId();
+
+        QuestionnaireService questionnaireService = mock(QuestionnaireService.class);
+        when(questionnaireService.getCatalog()).thenReturn(catalog);
+
+        return new SessionService(variableRepository, sessionRepository,
+                new SessionLoader(sessionRepository, questionnaireService), seminarRepository, questionnaireService,
+                mock(UserManagementService.class), mock(SeminarService.class),
+                mock(PopulationAggregateService.class), mock(ScoreRollupService.class),
+                mock(ResponseCountService.class), mock(QuestionScoreService.class),
+                ingestionService, transactionTemplate);
+    }
+
+    private Session submittedSession() {
+        PossibleAnswer possibleAnswer = new PossibleAnswer();
+        possibleAnswer.setId(possibleAnswerId);
+        Answer answer = new Answer();
+        answer.setPossibleAnswer(possibleAnswer);
+
+        Session session = new Session();
+        session.setAnswers(new ArrayList<>(Collections.singletonList(answer)));
+        return session;
+    }
+
+    /**
+     * Validated and scored session, with its answers only in encoded form.
+     */
+    private static Session session(Seminar seminar) {
+        Session session = new Session();
+        session.setDateTime(ZonedDateTime.now());
+        session.setSeminar(seminar);
+        session.setTotalScore(10.0);
+        session.setFormulaVersion(1);
+        session.setEncodedAnswers(new byte[0]);
+        session.setRelationalAnswers(false);
+        return session;
+    }
+
+    private int countSessions(long id) {
+        return jdbcTemplate.queryForObject("select count(*) from session where id = ?", Integer.class, id);
+    }
+
+    /**
+     * Transaction template of the writers: holds them back until released, or fails as the database would.
+     */
+    private static class ControlledTransactionTemplate extends TransactionTemplate {
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private volatile CountDownLatch released = new CountDownLatch(0);
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private ControlledTransactionTemplate(PlatformTransactionManager transactionManager) {
+            super(transactionManager);
+        }
+
+        void hold() {
+            released = new CountDownLatch(1);
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        void failNext(int count) {
+            failures.set(count);
+        }
+
+        void awaitWriting() {
+            try {
+                assertTrue(writing.await(10, TimeUnit.SECONDS), "No session is being written");
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public <T> T execute(TransactionCallback<T> action) {
+            writing.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+
+            if (failures.getAndDecrement() > 0)
+                throw new QueryTimeoutException("Database unavailable");
+            return super.execute(action);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package lu.uni.e4l.platform.integration;
+
+import lu.uni.e4l.platform.exception.BadRequestException;
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.repository.SeminarRepository;
+import lu.uni.e4l.platform.repository.SessionRepository;
+import lu.uni.e4l.platform.repository.VariableRepository;
+import lu.uni.e4l.platform.service.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.mail.MailSenderAutoConfiguration;
+import org.springframework.boot.autoconfigure.security.servlet.SecurityAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Keyset pages of the responses: newest first, sessions with the same date ordered by id, and a page starting right
+ * after the cursor of the previous one.
+ */
+@SpringBootTest(classes = SessionPageTest.TestConfig.class)
+@TestPropertySource(properties = {
+    "spring.datasource.url=jdbc:h2:mem:sessionpage;MODE=MySQL;DATABASE_TO_UPPER=FALSE",
+    "spring.datasource.driver-class-name=org.h2.Driver",
+    "spring.datasource.username=sa",
+    "spring.datasource.password=",
+    "spring.jpa.hibernate.ddl-auto=create-drop",
+    "spring.jpa.database-platform=org.hibernate.dialect.H2Dialect",
+    "JWT_SECRET=dummy",
+    "spring.main.allow-bean-definition-overriding=true"
+})
+public class SessionPageTest {
+
+    @Configuration
+    @EnableAutoConfiguration(exclude = {
+        SecurityAutoConfiguration.class,
+        MailSenderAutoConfiguration.class
+    })
+    @EnableJpaRepositories(basePackages = "lu.uni.e4l.platform.repository")
+    @EntityScan(basePackages = "lu.uni.e4l.platform")
+    static class TestConfig {}
+
+    @Autowired
+    private SessionRepository sessionRepository;
+
+    @Autowired
+    private SeminarRepository seminarRepository;
+
+    @Autowired
+    private VariableRepository variableRepository;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
+    private SessionService sessionService;
+
+    // newest first
+    private final List<Long> sessionIds = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        QuestionnaireService questionnaireService = mock(QuestionnaireService.class);
+        sessionService = new SessionService(variableRepository, sessionRepository,
+                new SessionLoader(sessionRepository, questionnaireService), seminarRepository,
+                questionnaireService, mock(UserManagementService.class), mock(SeminarService.class),
+                mock(PopulationAggregateService.class), mock(ScoreRollupService.class),
+                mock(ResponseCountService.class), mock(QuestionScoreService.class),
+                mock(SessionIngestionService.class), transactionTemplate);
+
+        sessionRepository.deleteAll();
+
+        // the second and third sessions share their date, and a page boundary with pages of 2
+        ZonedDateTime now = ZonedDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        List<Long> ids = new ArrayList<>();
+        for (ZonedDateTime dateTime : asList(now.minusHours(4), now.minusHours(3), now.minusHours(2),
+                now.minusHours(2), now.minusHours(1))) {
+            Session session = new Session();
+            session.setDateTime(dateTime);
+            session.setAnswers(new ArrayList<>());
+            ids.add(sessionRepository.save(session).getId());
+        }
+
+        sessionIds.clear();
+        for (int i = ids.size() - 1; i >= 0; i--) {
+            sessionIds.add(ids.get(i));
+        }
+    }
+
+    @Test
+    void pagesFollowEachOtherNewestFirst() {
+        List<Session> first = sessionService.getSessionPage(null, null, 2);
+        List<Session> second = sessionService.getSessionPage(null, SessionService.cursorOf(first.get(1)), 2);
+        List<Session> third = sessionService.getSessionPage(null, SessionService.cursorOf(second.get(1)), 2);
+
+        // the second page starts with the earlier of the two sessions of the same date
+        assertEquals(sessionIds.subList(0, 2), ids(first));
+        assertEquals(sessionIds.subList(2, 4), ids(second));
+        assertEquals(sessionIds.subList(4, 5), ids(third));
+    }
+
+    @Test
+    void cursorAfterTheLastSessionGivesAnEmptyPage() {
+        List<Session> all = sessionService.getSessionPage(null, null, SessionService.MAX_PAGE_SIZE);
+
+        assertEquals(sessionIds, ids(all));
+        assertTrue(sessionService.getSessionPage(null, SessionService.cursorOf(all.get(all.size() - 1)), 2).isEmpty());
+    }
+
+    @Test
+    void cursorIsTheUrlSafeDateAndIdOfTheSession() {
+        Session session = sessionService.getSessionPage(null, null, 1).get(0);
+
+        String cursor = SessionService.cursorOf(session);
+
+        assertFalse(cursor.contains("=") || cursor.contains("+") || cursor.contains("/"));
+        assertEquals(session.getDateTime().toInstant() + "," + session.getId(),
+                new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void invalidCursorOrSizeIsRejected() {
+        String notBase64 = "not a cursor";
+        String noId = Base64.getUrlEncoder().encodeToString("2021-01-01T00:00:00Z".getBytes(StandardCharsets.UTF_8));
+        String badDate = Base64.getUrlEncoder().encodeToString("yesterday,3".getBytes(StandardCharsets.UTF_8));
+
+        for (String cursor : asList(notBase64, noId, badDate)) {
+            assertThrows(BadRequestException.class, () -> sessionService.getSessionPage(null, cursor, 2));
+        }
+        assertThrows(BadRequestException.class, () -> sessionService.getSessionPage(null, null, 0));
+        assertThrows(BadRequestException.class,
+                () -> sessionService.getSessionPage(null, null, SessionService.MAX_PAGE_SIZE + 1));
+    }
+
+    @Test
+    void forEachSessionVisitsEverySessionOnce() {
+        List<Long> visited = new ArrayList<>();
+
+        sessionService.forEachSession(null, 2, session -> visited.add(session.getId()));
+
+        assertEquals(sessionIds, visited);
+    }
+
+    private static List<Long> ids(List<Session> sessions) {
+        return sessions.stream().map(Session::getId).collect(Collectors.toList());
+    }
+}
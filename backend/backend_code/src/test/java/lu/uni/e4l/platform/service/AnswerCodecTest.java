@@ -0,0 +1,176 @@
+package lu.uni.e4l.platform.service;
+
+import lu.uni.e4l.platform.model.*;
+import lu.uni.e4l.platform.model.dto.ResultBreakdown;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class AnswerCodecTest {
+
+    private QuestionnaireCatalog catalog;
+    private List<Answer> answers;
+
+    @Before
+    public void setUp() {
+        Variable dist = variable(8101, "dist");
+        Variable n = variable(8102, "n");
+        Variable type = variable(8103, "type");
+
+        Question transport = question(8001, possibleAnswer(8011, "type * dist / n", dist, n, type),
+                possibleAnswer(8012, "0.043 * dist", dist));
+        Question food = question(8002, possibleAnswer(8021, "floor(40 / n) * dist", dist, n));
+
+        Questionnaire questionnaire = new Questionnaire();
+        questionnaire.setName("test");
+        questionnaire.setQuestions(asList(transport, food));
+        catalog = QuestionnaireCatalog.of(questionnaire);
+
+        answers = asList(
+                answer(catalog.getPossibleAnswer(8011), value(dist, 17.3), value(n, 3d)),
+                answer(catalog.getPossibleAnswer(8021), value(dist, 3d), value(n, 5d)),
+                answer(catalog.getPossibleAnswer(8012), value(dist, 123.456)));
+    }
+
+    @Test
+    public void decodesEncodedAnswers() {
+        byte[] bytes = AnswerCodec.encode(answers);
+        EncodedAnswers encoded = AnswerCodec.decode(bytes);
+
+        assertEquals(3, encoded.size());
+        assertEquals(8021, encoded.getPossibleAnswerId(1));
+        assertEquals(2, encoded.variableStart(1));
+        assertEquals(8101, encoded.getVariableId(4));
+        assertEquals(123.456, encoded.getValue(4), 0d);
+
+        Session session = new Session();
+        List<Answer> decoded = encoded.toAnswers(session, catalog);
+        for (int i = 0; i < answers.size(); i++) {
+            assertEquals(answers.get(i).getPossibleAnswer().getId(), decoded.get(i).getPossibleAnswer().getId());
+            assertEquals(values(answers.get(i)), values(decoded.get(i)));
+        }
+    }
+
+    @Test
+    public void encodedTotalScoreMatchesEntityTotalScore() {
+        Session session = new Session();
+        session.setAnswers(answers);
+        SessionScorer.score(session);
+
+        double total = SessionScorer.totalScore(AnswerCodec.decode(AnswerCodec.encode(answers)), catalog);
+
+        assertEquals(session.getTotalScore(), total, 0d);
+    }
+
+    @Test
+    public void encodedOnlySessionGetsItsAnswersDecoded() {
+        Session session = new Session();
+        session.setAnswers(new ArrayList<>(answers));
+        session.setEncodedAnswers(AnswerCodec.encode(answers));
+        session.storeAnswersEncodedOnly();
+
+        // as loaded from the database
+        session.setDecodedAnswers(null);
+        assertNull(session.getAnswers());
+
+        AnswerCodec.decodeAnswers(session, catalog);
+
+        assertFalse(session.hasRelationalAnswers());
+        assertEquals(3, session.getAnswers().size());
+        assertEquals(values(answers.get(2)), values(session.getAnswers().get(2)));
+    }
+
+    @Test
+    public void answersNoLongerInTheQuestionnaireAreLeftOut() {
+        Variable removedVariable = variable(8199, "removed");
+        List<Answer> withRemoved = asList(
+                answer(possibleAnswer(8099, "1"), value(catalog.getVariable(8101), 1d)),
+                answer(catalog.getPossibleAnswer(8012), value(catalog.getVariable(8101), 2d),
+                        value(removedVariable, 3d)));
+
+        List<Answer> decoded = AnswerCodec.decode(AnswerCodec.encode(withRemoved)).toAnswers(new Session(), catalog);
+
+        assertEquals(1, decoded.size());
+        assertEquals(8012, decoded.get(0).getPossibleAnswer().getId());
+        assertEquals(asList(2d), values(decoded.get(0)));
+    }
+
+    @Test
+    public void breakdownOfDecodedAnswersDoesNotShareTheVariablesOfTheCatalog() {
+        Session session = new Session();
+        session.setAnswers(new ArrayList<>(answers));
+        session.setEncodedAnswers(AnswerCodec.encode(answers));
+        session.storeAnswersEncodedOnly();
+        session.setDecodedAnswers(null);
+        AnswerCodec.decodeAnswers(session, catalog);
+
+        ResultBreakdown breakdown = ResultBreakdown.fromSession(session, true);
+        Variable variable = breakdown.getBreakdown().get(0).getAnswers().get(0).getVariables().get(0).getVariable();
+        // as the variables are translated for the response
+        variable.setName("translated");
+
+        assertNotSame(catalog.getVariable(variable.getId()), variable);
+        assertEquals("dist", catalog.getVariable(8101).getName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedAnswers() {
+        byte[] bytes = AnswerCodec.encode(answers);
+        AnswerCodec.decode(Arrays.copyOf(bytes, bytes.length - 3));
+    }
+
+    private static List<Double> values(Answer answer) {
+        List<Double> values = new ArrayList<>();
+        for (VariableValue variableValue : answer.getVariableValues())
+            values.add(variableValue.getValue());
+        return values;
+    }
+
+    private static Variable variable(long id, String name) {
+        Variable variable = new Variable();
+        variable.setId(id);
+        variable.setName(name);
+        return variable;
+    }
+
+    private static PossibleAnswer possibleAnswer(long id, String formula, Variable... variables) {
+        PossibleAnswer possibleAnswer = new PossibleAnswer();
+        possibleAnswer.setId(id);
+        possibleAnswer.setFormula(formula);
+        possibleAnswer.setVariables(asList(variables));
+        return possibleAnswer;
+    }
+
+    private static Question question(long id, PossibleAnswer... possibleAnswers) {
+        Question question = new Question();
+        question.setId(id);
+        question.setName("question" + id);
+        question.setPossibleAnswers(asList(possibleAnswers));
+        for (PossibleAnswer possibleAnswer : possibleAnswers)
+            possibleAnswer.setQuestion(question);
+        return question;
+    }
+
+    private static Answer answer(PossibleAnswer possibleAnswer, VariableValue... values) {
+        Answer answer = new Answer();
+        answer.setPossibleAnswer(possibleAnswer);
+        answer.setVariableValues(new ArrayList<>(asList(values)));
+        return answer;
+    }
+
+    private static VariableValue value(Variable variable, double value) {
+        VariableValue variableValue = new VariableValue();
+        variableValue.setVariable(variable);
+        variableValue.setValue(value);
+        return variableValue;
+    }
+}
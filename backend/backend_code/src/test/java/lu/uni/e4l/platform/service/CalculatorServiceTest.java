@@ -2,6 +2,8 @@ package lu.uni.e4l.platform.service;
 
 import lu.uni.e4l.platform.service.crypto.SignedObjectSerializer;
 import lu.uni.e4l.platform.model.*;
+import lu.uni.e4l.platform.i18n.service.Localizer;
+import lu.uni.e4l.platform.model.dto.ResultBreakdown;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -13,6 +15,8 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
@@ -41,6 +45,121 @@ public class CalculatorServiceTest {
         assertEquals(-7d, calculatorService.calculate(session).getResult(), 0.0000001);
     }
 
+    @Test
+    public void batchTotalsMatchBreakdown() {
+        List<Session> sessions = asList(
+                getMockSession(
+                        getMockAnswer("floor(40 / n) * dist", asList(var("n", 5d), var("dist", 3d))),
+                        getMockAnswer("type * dist / n", asList(var("n", 3d), var("dist", 17.3)))),
+                getMockSession(
+                        getMockAnswer("0.043 * dist", asList(var("dist", 123.456))),
+                        getMockAnswer("type * dist / n", asList(var("type", 0.2), var("n", 7d), var("dist", 0.1)))),
+                getMockSession(
+                        getMockAnswer("-1 * ceil(0.3 * x)", asList(var("x", 100.001))),
+                        getMockAnswer("round(sin(x * y) / 2)", asList(var("x", 3.5), var("y", -2.5))))
+        );
+
+        double[] totals = SessionScorer.totalScores(sessions);
+
+        for (int i = 0; i < sessions.size(); i++)
+            assertEquals(calculatorService.calculate(sessions.get(i)).getResult(), totals[i], 0d);
+    }
+
+    @Test
+    public void storedScoresMatchComputedScores() {
+        Session session = getMockSession(
+                getMockAnswer("floor(40 / n) * dist", asList(var("n", 5d), var("dist", 3d))),
+                getMockAnswer("type * dist / n", asList(var("n", 3d), var("dist", 17.3))));
+        double computed = calculatorService.calculate(session).getResult();
+
+        SessionScorer.score(session);
+
+        assertEquals(computed, session.getTotalScore(), 0d);
+        assertEquals(computed, calculatorService.calculate(session).getResult(), 0d);
+        assertEquals(computed, SessionScorer.totalScores(asList(session))[0], 0d);
+    }
+
+    @Test
+    public void pendingScoresLeaveStoredScoresUnchanged() {
+        Session session = getMockSession(
+                getMockAnswer("floor(40 / n) * dist", asList(var("n", 5d), var("dist", 3d))),
+                getMockAnswer("type * dist / n", asList(var("n", 3d), var("dist", 17.3))));
+        SessionScorer.score(session);
+        double totalScore = session.getTotalScore();
+
+        SessionScorer.scorePending(session, Collections.emptyMap(), 2);
+
+        assertEquals(totalScore, session.getPendingTotalScore(), 0d);
+        assertEquals(totalScore, session.getTotalScore(), 0d);
+        assertEquals(2, (int) session.getPendingFormulaVersion());
+        for (Answer answer : session.getAnswers())
+            assertEquals(answer.getScore(), answer.getPendingScore());
+    }
+
+    @Test
+    public void presentation() {
+        Question work = getMockQuestion(101, "electric_and_heating_energy_consumption_where_do_you_work");
+        Question other = getMockQuestion(102, "other_energy_consumptions");
+        Session session = getMockSession(
+                getMockAnswer(work, "im_a_teacher", "0.5"),
+                getMockAnswer(other, "im_vegan", "10"),
+                getMockAnswer(work, "in_an_office", "0.25"));
+
+        ResultBreakdown resultBreakdown = calculatorService.calculate(session);
+
+        assertEquals(asList("where_do_you_work : im_a_teacher & in_an_office", "embodied_energy : im_vegan"),
+                resultBreakdown.getAns());
+        assertEquals(asList("where do you work : teacher & in an office", "embodied energy : vegan"),
+                resultBreakdown.getSituations());
+        assertEquals(asList("#17A2B8", "#343A40"), resultBreakdown.getColors());
+        assertEquals(asList(1.75, 10.0), resultBreakdown.getScores());
+        assertEquals(asList("$ The result of the question \" electric and heating energy consumption where do you work \" is increased by 1 from 0.75\n"),
+                resultBreakdown.getNote());
+
+        ResultBreakdown scoreOnly = ResultBreakdown.fromSession(session, true);
+
+        assertEquals(resultBreakdown.getResult(), scoreOnly.getResult());
+        assertEquals(0, scoreOnly.getAns().size());
+    }
+
+    @Test
+    public void localizingCopyLeavesBreakdownUnchanged() {
+        Question question = getMockQuestion(103, "how_do_you_get_to_work");
+        Answer answer = getMockAnswer(question, "by_car", "0.043 * dist");
+        answer.setVariableValues(asList(var("dist", 123.456)));
+        ResultBreakdown resultBreakdown = calculatorService.calculate(getMockSession(answer));
+
+        ResultBreakdown copy = resultBreakdown.copy();
+        Localizer.modifyObject(copy, "lu.uni.e4l.platform", String.class, 10, text -> "localized");
+
+        assertEquals("localized", copy.getAns().get(0));
+        assertEquals("localized", copy.getBreakdown().get(0).getAnswers().get(0).getVariables().get(0).getVariable().getName());
+        assertEquals("how_do_you_get_to_work : by_car", resultBreakdown.getAns().get(0));
+        assertEquals("how_do_you_get_to_work", resultBreakdown.getBreakdown().get(0).getQuestion());
+        assertEquals("dist", resultBreakdown.getBreakdown().get(0).getAnswers().get(0).getVariables().get(0).getVariable().getName());
+    }
+
+    @Test
+    public void scoreCacheMemoizesByPossibleAnswerAndValues() {
+        Answer first = getMockAnswer("type * dist / n", asList(var("n", 3d), var("dist", 17.3)));
+        Answer same = getMockAnswer("type * dist / n", asList(var("dist", 17.3), var("n", 3d)));
+        Answer other = getMockAnswer("type * dist / n", asList(var("n", 4d), var("dist", 17.3)));
+        first.getPossibleAnswer().setId(-5);
+        same.getPossibleAnswer().setId(-5);
+        other.getPossibleAnswer().setId(-5);
+        ScoreCache.invalidateAll();
+
+        long hits = ScoreCache.getStatistics().get("hits");
+        long misses = ScoreCache.getStatistics().get("misses");
+
+        assertEquals(5.76, SessionScorer.scoreAnswer(first), 0d);
+        assertEquals(5.76, SessionScorer.scoreAnswer(same), 0d);
+        assertEquals(4.32, SessionScorer.scoreAnswer(other), 0d);
+
+        assertEquals(hits + 1, (long) ScoreCache.getStatistics().get("hits"));
+        assertEquals(misses + 2, (long) ScoreCache.getStatistics().get("misses"));
+    }
+
     private Session getMockSession(Answer... answers) {
         Session session = new Session();
         session.setAnswers(asList(answers));
@@ -64,6 +183,22 @@ public class CalculatorServiceTest {
         return answer;
     }
 
+    private Question getMockQuestion(long id, String name) {
+        Question question = new Question();
+        question.setId(id);
+        question.setName(name);
+
+        return question;
+    }
+
+    private Answer getMockAnswer(Question question, String name, String formula) {
+        Answer answer = getMockAnswer(formula, new ArrayList<>());
+        answer.getPossibleAnswer().setQuestion(question);
+        answer.getPossibleAnswer().setName(name);
+
+        return answer;
+    }
+
     private VariableValue var(String name, Double value) {
         VariableValue variableValue = new VariableValue();
 
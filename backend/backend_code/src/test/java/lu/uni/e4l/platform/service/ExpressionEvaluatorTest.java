@@ -1,7 +1,9 @@
 package lu.uni.e4l.platform.service;
 
+import org.junit.Assume;
 import org.junit.Test;
 
+import java.lang.management.ManagementFactory;
 import java.util.*;
 
 import static java.util.Arrays.asList;
@@ -73,6 +75,92 @@ public class ExpressionEvaluatorTest {
                         ExpressionEvaluator.evaluate(new LinkedList<>(expr)), 0.0000000001));
     }
 
+    @Test
+    public void compile() {
+        Map<String, String> variables = new HashMap<>();
+        variables.put("type", "1.5");
+        variables.put("dist", "12.25");
+        variables.put("n", "3");
+
+        List<String> expressions = asList("4 + 12", "10.788", "type", "type * dist / n", "0.043 * dist",
+                "floor(40 / n) * dist", "round(sin(type * n) / 2)", "-1 * ceil(0.3 * dist)", "dist - n - type");
+
+        for (String expr : expressions) {
+            CompiledExpression compiled = ExpressionEvaluator.compile(expr);
+
+            double[] values = new double[compiled.getVariableCount()];
+            for (String name : compiled.getVariableNames())
+                values[compiled.slotOf(name)] = Double.parseDouble(variables.get(name));
+
+            assertEquals(expr, ExpressionEvaluator.evaluate(expr, variables), compiled.evaluate(values), 0d);
+        }
+    }
+
+    @Test
+    public void bytecodeBackendMatchesInterpreter() {
+        double[] values = {1.5, 12.25, 3};
+
+        for (String expr : asList("4 + 12", "0", "type * dist / n", "floor(40 / n) * dist + dist - type",
+                "round(sin(type * n) / 2)", "-1 * ceil(0.3 * dist) + abs(-2.5)")) {
+            CompiledExpression interpreted = ExpressionEvaluator.compile(expr);
+            CompiledExpression generated = interpreted.withBackend(FormulaBackend.BYTECODE);
+
+            double[] slots = new double[interpreted.getVariableCount()];
+            for (int i = 0; i < slots.length; i++)
+                slots[i] = values[asList("type", "dist", "n").indexOf(interpreted.getVariableNames().get(i))];
+
+            assertEquals(FormulaBackend.BYTECODE, generated.getBackend());
+            assertEquals(expr, interpreted.evaluate(slots), generated.evaluate(slots), 0d);
+        }
+    }
+
+    @Test
+    public void compileBindsEachVariableOnce() {
+        CompiledExpression compiled = ExpressionEvaluator.compile("x * x + y");
+
+        assertEquals(asList("x", "y"), compiled.getVariableNames());
+        assertEquals(11d, compiled.evaluate(new double[]{3, 2}), 0d);
+    }
+
+    @Test
+    public void compiledEvaluationDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        long threadId = Thread.currentThread().getId();
+        CompiledExpression compiled = ExpressionEvaluator.compile("floor(type * dist / n) + round(sin(dist) * 2) - abs(-3.5)");
+        double[] values = {1.5, 12.25, 3};
+        int evaluations = 1_000_000;
+
+        // warm up
+        double sink = evaluateRepeatedly(compiled, values, evaluations);
+
+        long start = threads.getThreadAllocatedBytes(threadId);
+        sink += evaluateRepeatedly(compiled, values, evaluations);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - start;
+
+        // the counter itself has a small constant cost, any per-evaluation garbage would be at least 16 bytes each
+        assertTrue("allocated " + allocated + " bytes for " + evaluations + " evaluations", allocated < evaluations);
+        assertNotEquals(0d, sink, 0d);
+    }
+
+    private static double evaluateRepeatedly(CompiledExpression compiled, double[] values, int times) {
+        double sum = 0;
+        for (int i = 0; i < times; i++)
+            sum += compiled.evaluate(values);
+        return sum;
+    }
+
+    @Test(expected = ExpressionEvaluator.InvalidExpressionException.class)
+    public void compileInvalidParenthesis() {
+        ExpressionEvaluator.compile("(2 + x * 3)) + (2 + 2)");
+    }
+
+    @Test(expected = ExpressionEvaluator.InvalidExpressionException.class)
+    public void compileInvalidNumberOfFunctionArguments() {
+        ExpressionEvaluator.compile("2 + x * ()");
+    }
+
     @Test(expected = ExpressionEvaluator.InvalidExpressionException.class)
     public void invalidParenthesis() {
         ExpressionEvaluator.evaluate("(2 + 2 * 3)) + (2 + 2)", new HashMap<>());
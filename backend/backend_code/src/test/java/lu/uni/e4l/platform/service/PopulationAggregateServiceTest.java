@@ -0,0 +1,140 @@
+package lu.uni.e4l.platform.service;
+
+import lu.uni.e4l.platform.model.Seminar;
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.model.dto.ResultBreakdown;
+import lu.uni.e4l.platform.repository.PopulationAggregateRepository;
+import lu.uni.e4l.platform.repository.SeminarScoreDigestRepository;
+import lu.uni.e4l.platform.repository.SessionRepository;
+import org.junit.Test;
+import org.springframework.data.domain.Pageable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PopulationAggregateServiceTest {
+
+    private final PopulationAggregateService populationAggregateService =
+            new PopulationAggregateService(null, null, null, null, null, null);
+
+    @Test
+    public void aggregateMatchesResultBreakdown() {
+        double[] scores = {0, 19.999, 20, 39.999, 40, 99.5, 150.25, 299.99, 300, 1234.5, 60.004};
+        List<Session> sessions = new ArrayList<>();
+
+        for (double score : scores) {
+            Session session = new Session();
+            session.setTotalScore(score);
+            sessions.add(session);
+            populationAggregateService.add(score);
+        }
+
+        ResultBreakdown resultBreakdown = new ResultBreakdown();
+        resultBreakdown.averageCalculation(sessions);
+        resultBreakdown.listOfScores(sessions);
+
+        assertEquals(scores.length, populationAggregateService.getSessionCount());
+        assertEquals(resultBreakdown.getAvgScores(), populationAggregateService.getAverageScore());
+        assertEquals(resultBreakdown.getClusters(), populationAggregateService.getClusters());
+    }
+
+    @Test
+    public void remove() {
+        populationAggregateService.add(50);
+        populationAggregateService.add(150);
+        populationAggregateService.remove(150);
+
+        assertEquals(1, populationAggregateService.getSessionCount());
+        assertEquals(50, populationAggregateService.getAverageScore());
+        assertEquals(1, (int) populationAggregateService.getClusters().get(1));
+        assertEquals(0, (int) populationAggregateService.getClusters().get(6));
+    }
+
+    @Test
+    public void emptyPopulation() {
+        assertEquals(0, populationAggregateService.getAverageScore());
+        assertEquals(0, populationAggregateService.getPercentile(100), 0d);
+    }
+
+    @Test
+    public void percentile() {
+        for (int score = 1; score <= 1000; score++)
+            populationAggregateService.add(score);
+
+        assertEquals(25, populationAggregateService.getPercentile(250), 1);
+        assertEquals(90, populationAggregateService.getPercentile(900), 1);
+        assertEquals(100, populationAggregateService.getPercentile(5000), 0d);
+        assertEquals(0, populationAggregateService.getPercentile(0), 0d);
+    }
+
+    @Test
+    public void scoresAddedWhileTheDigestIsRebuiltAreKept() {
+        SessionRepository sessionRepository = mock(SessionRepository.class);
+        PopulationAggregateService service = new PopulationAggregateService(sessionRepository, null, null,
+                mock(SeminarScoreDigestRepository.class), null, null);
+        service.add(50);
+        service.add(1000);
+
+        // the session with 1000 is deleted with its seminar while a session with 500 is saved
+        when(sessionRepository.findScoreRowsAfter(eq(0L), any(Pageable.class))).thenAnswer(invocation -> {
+            service.add(500);
+            return Collections.singletonList(row(1, 50));
+        });
+        Session deleted = new Session();
+        deleted.setTotalScore(1000d);
+        Seminar seminar = new Seminar();
+        seminar.setSessions(new ArrayList<>(Collections.singletonList(deleted)));
+        service.remove(seminar);
+
+        assertEquals(2, service.getSessionCount());
+        // without the score added during the scan, 100 would be above all scores
+        assertEquals(50, service.getPercentile(100), 25);
+        assertEquals(100, service.getPercentile(600), 0d);
+    }
+
+    @Test
+    public void sessionsSavedDuringARebuildAreCountedOnce() {
+        SessionRepository sessionRepository = mock(SessionRepository.class);
+        PopulationAggregateService service = new PopulationAggregateService(sessionRepository,
+                mock(PopulationAggregateRepository.class), null, null, null, null);
+        service.add(session(1, 50));
+        AtomicLong countDuringScan = new AtomicLong();
+
+        when(sessionRepository.countByTotalScoreIsNotNull()).thenReturn(1L);
+        when(sessionRepository.findScoreRowsAfter(eq(0L), any(Pageable.class))).thenAnswer(invocation -> {
+            // session 2 is read by the scan, session 3 is saved after the rows are read
+            service.add(session(2, 100));
+            countDuringScan.set(service.getSessionCount());
+            service.add(session(3, 150));
+            return asList(row(1, 50), row(2, 100));
+        });
+
+        service.rebuild();
+
+        // the current aggregate is read until the rebuilt one replaces it
+        assertEquals(2, countDuringScan.get());
+        // session 2 is not counted again
+        assertEquals(3, service.getSessionCount());
+        assertEquals(100, service.getAverageScore());
+    }
+
+    private static Session session(long id, double totalScore) {
+        Session session = new Session();
+        session.setId(id);
+        session.setTotalScore(totalScore);
+        return session;
+    }
+
+    private static Object[] row(long id, double totalScore) {
+        return new Object[]{id, null, null, null, totalScore};
+    }
+}
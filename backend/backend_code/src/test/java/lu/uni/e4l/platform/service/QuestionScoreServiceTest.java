@@ -0,0 +1,150 @@
+package lu.uni.e4l.platform.service;
+
+import lu.uni.e4l.platform.model.*;
+import lu.uni.e4l.platform.model.dto.QuestionComparison;
+import lu.uni.e4l.platform.repository.SessionQuestionScoreRepository;
+import lu.uni.e4l.platform.repository.SessionRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.domain.Pageable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class QuestionScoreServiceTest {
+
+    private static final long QUESTION_ID = 10;
+
+    private final SessionQuestionScoreRepository sessionQuestionScoreRepository =
+            mock(SessionQuestionScoreRepository.class);
+    private final SessionRepository sessionRepository = mock(SessionRepository.class);
+    private final SessionLoader sessionLoader = mock(SessionLoader.class);
+    private final QuestionScoreService questionScoreService =
+            new QuestionScoreService(sessionQuestionScoreRepository, sessionRepository, sessionLoader);
+
+    private PossibleAnswer byCar;
+
+    @Before
+    public void setUp() {
+        byCar = new PossibleAnswer();
+        byCar.setId(11);
+        byCar.setName("by_car");
+        byCar.setFormula("dist");
+        byCar.setVariables(new ArrayList<>());
+        Question transport = new Question();
+        transport.setId(QUESTION_ID);
+        transport.setName("transport");
+        transport.setPossibleAnswers(Collections.singletonList(byCar));
+        byCar.setQuestion(transport);
+
+        Questionnaire questionnaire = new Questionnaire();
+        questionnaire.setName("test");
+        questionnaire.setQuestions(Collections.singletonList(transport));
+        QuestionnaireCatalog.register(QuestionnaireCatalog.of(questionnaire));
+
+        // ids are given to the stored rows as the database does
+        AtomicLong nextId = new AtomicLong(100);
+        when(sessionQuestionScoreRepository.saveAll(any())).thenAnswer(invocation -> {
+            Iterable<SessionQuestionScore> scores = invocation.getArgument(0);
+            scores.forEach(score -> score.setId(nextId.getAndIncrement()));
+            return scores;
+        });
+    }
+
+    @Test
+    public void sessionSavedWhileTheStatisticsAreLoadedIsCountedOnce() {
+        when(sessionQuestionScoreRepository.findResultRowsAfter(eq(0L), any(Pageable.class))).thenAnswer(invocation -> {
+            // saved on another thread while the rows are read, without waiting for the load
+            CompletableFuture.runAsync(() -> questionScoreService.add(session(2, 30))).get(5, TimeUnit.SECONDS);
+            return Collections.singletonList(new Object[]{1L, QUESTION_ID, 20.0});
+        });
+
+        questionScoreService.load();
+
+        QuestionComparison comparison = compare(session(1, 20));
+        assertEquals(2, comparison.getSessionCount());
+        assertEquals(25, comparison.getPopulationMean(), 0d);
+    }
+
+    @Test
+    public void rebuildSkipsSessionsWhoseResultsAreStored() {
+        List<Long> ids = asList(1L, 2L);
+        when(sessionRepository.findIdsAfter(eq(0L), any(Pageable.class))).thenReturn(ids);
+        // session 2 was saved during the rebuild
+        when(sessionQuestionScoreRepository.findSessionIdsIn(ids)).thenReturn(Collections.singletonList(2L));
+        when(sessionLoader.load(ids)).thenReturn(asList(session(1, 20), session(2, 30)));
+        when(sessionQuestionScoreRepository.findResultRowsAfter(anyLong(), any(Pageable.class)))
+                .thenReturn(Collections.emptyList());
+
+        assertEquals(1, questionScoreService.rebuild());
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Iterable<SessionQuestionScore>> stored = ArgumentCaptor.forClass(Iterable.class);
+        verify(sessionQuestionScoreRepository).saveAll(stored.capture());
+        List<SessionQuestionScore> scores = new ArrayList<>();
+        stored.getValue().forEach(scores::add);
+        assertEquals(1, scores.size());
+        assertEquals(1, scores.get(0).getSessionId());
+        assertEquals(20, scores.get(0).getResult(), 0d);
+    }
+
+    @Test
+    public void resultsAreNotBackfilledOnLoad() {
+        when(sessionQuestionScoreRepository.findResultRowsAfter(anyLong(), any(Pageable.class)))
+                .thenReturn(Collections.emptyList());
+        when(sessionRepository.count()).thenReturn(5L);
+
+        questionScoreService.load();
+
+        verify(sessionQuestionScoreRepository, never()).deleteAllInBatch();
+        verify(sessionLoader, never()).load(any());
+    }
+
+    @Test
+    public void backfillIsNotStartedWhenResultsAreStored() {
+        when(sessionQuestionScoreRepository.count()).thenReturn(3L);
+        when(sessionRepository.count()).thenReturn(5L);
+
+        questionScoreService.backfill();
+
+        verify(sessionQuestionScoreRepository, never()).deleteAllInBatch();
+        verify(sessionRepository, never()).findIdsAfter(anyLong(), any(Pageable.class));
+    }
+
+    private QuestionComparison compare(Session session) {
+        SessionQuestionScore score = new SessionQuestionScore();
+        score.setSessionId(session.getId());
+        score.setQuestionId(QUESTION_ID);
+        score.setResult(20);
+        when(sessionQuestionScoreRepository.findBySessionId(session.getId()))
+                .thenReturn(Collections.singletonList(score));
+
+        List<QuestionComparison> comparisons = questionScoreService.getComparison(session.getId());
+        assertEquals(1, comparisons.size());
+        return comparisons.get(0);
+    }
+
+    private Session session(long id, double score) {
+        Answer answer = new Answer();
+        answer.setPossibleAnswer(byCar);
+        answer.setScore(score);
+
+        Session session = new Session();
+        session.setId(id);
+        session.setAnswers(new ArrayList<>(Collections.singletonList(answer)));
+        answer.setSession(session);
+        return session;
+    }
+}
@@ -0,0 +1,123 @@
+package lu.uni.e4l.platform.service;
+
+import lu.uni.e4l.platform.model.RollupGranularity;
+import lu.uni.e4l.platform.model.ScoreRollup;
+import lu.uni.e4l.platform.model.Session;
+import lu.uni.e4l.platform.repository.ScoreRollupRepository;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class ScoreRollupServiceTest {
+
+    @Test
+    public void bucketStart() {
+        LocalDate sunday = LocalDate.of(2024, 3, 3);
+
+        assertEquals(LocalDate.of(2024, 2, 26), RollupGranularity.WEEK.bucketStart(sunday));
+        assertEquals(LocalDate.of(2024, 3, 4), RollupGranularity.WEEK.bucketStart(sunday.plusDays(1)));
+        assertEquals(LocalDate.of(2024, 3, 1), RollupGranularity.MONTH.bucketStart(sunday));
+    }
+
+    @Test
+    public void mergedRollupsMatchOneRollup() {
+        double[] scores = {10, 25, 25.5, 299.99, 300, 1000};
+        ScoreRollup all = newRollup();
+        ScoreRollup first = newRollup();
+        ScoreRollup second = newRollup();
+
+        for (int i = 0; i < scores.length; i++) {
+            ScoreRollupService.add(all, scores[i]);
+            ScoreRollupService.add(i % 2 == 0 ? first : second, scores[i]);
+        }
+
+        ScoreRollup merged = newRollup();
+        ScoreRollupService.merge(merged, first);
+        ScoreRollupService.merge(merged, second);
+
+        assertEquals(scores.length, merged.getSessionCount());
+        assertEquals(all.getScoreSum(), merged.getScoreSum(), 1e-9);
+        assertEquals(all.getScoreSquareSum(), merged.getScoreSquareSum(), 1e-6);
+        assertEquals(all.getHistogram(), merged.getHistogram());
+        assertEquals(1, (long) merged.getHistogram().get(0));
+        assertEquals(2, (long) merged.getHistogram().get(1));
+        assertEquals(2, (long) merged.getHistogram().get(ScoreRollupService.HISTOGRAM_SIZE - 1));
+    }
+
+    @Test
+    public void savedSessionsAreStoredOnFlush() {
+        ScoreRollupRepository scoreRollupRepository = mock(ScoreRollupRepository.class);
+        ScoreRollupService scoreRollupService = newService(scoreRollupRepository);
+
+        scoreRollupService.add(session(25));
+        scoreRollupService.add(session(75));
+        verifyNoInteractions(scoreRollupRepository);
+
+        scoreRollupService.flush();
+
+        ArgumentCaptor<ScoreRollup> saved = ArgumentCaptor.forClass(ScoreRollup.class);
+        verify(scoreRollupRepository, times(2)).save(saved.capture());
+        for (ScoreRollup rollup : saved.getAllValues()) {
+            assertEquals(2, rollup.getSessionCount());
+            assertEquals(100, rollup.getScoreSum(), 0d);
+        }
+
+        // nothing is left to store
+        scoreRollupService.flush();
+        verify(scoreRollupRepository, times(2)).save(any());
+    }
+
+    @Test
+    public void rollupsThatCannotBeStoredAreKeptForTheNextFlush() {
+        ScoreRollupRepository scoreRollupRepository = mock(ScoreRollupRepository.class);
+        ScoreRollupService scoreRollupService = newService(scoreRollupRepository);
+        when(scoreRollupRepository.save(any()))
+                .thenThrow(new QueryTimeoutException("database unavailable"))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+
+        scoreRollupService.add(session(25));
+        scoreRollupService.flush();
+        scoreRollupService.add(session(75));
+        scoreRollupService.flush();
+
+        ArgumentCaptor<ScoreRollup> saved = ArgumentCaptor.forClass(ScoreRollup.class);
+        verify(scoreRollupRepository, times(3)).save(saved.capture());
+        List<ScoreRollup> stored = saved.getAllValues().subList(1, 3);
+        for (ScoreRollup rollup : stored) {
+            assertEquals(2, rollup.getSessionCount());
+            assertEquals(100, rollup.getScoreSum(), 0d);
+        }
+    }
+
+    private static ScoreRollupService newService(ScoreRollupRepository scoreRollupRepository) {
+        // the mocked transaction manager runs the callbacks without a transaction
+        TransactionTemplate transactionTemplate = new TransactionTemplate(mock(PlatformTransactionManager.class));
+        return new ScoreRollupService(scoreRollupRepository, null, null, transactionTemplate);
+    }
+
+    private static Session session(double totalScore) {
+        Session session = new Session();
+        session.setDateTime(ZonedDateTime.of(2024, 3, 6, 12, 0, 0, 0, ZoneOffset.UTC));
+        session.setTotalScore(totalScore);
+        return session;
+    }
+
+    private static ScoreRollup newRollup() {
+        ScoreRollup rollup = new ScoreRollup();
+        rollup.setHistogram(new ArrayList<>(Collections.nCopies(ScoreRollupService.HISTOGRAM_SIZE, 0L)));
+        return rollup;
+    }
+}